@@ -130,7 +130,34 @@ public class StatusBean {
      */
     @ManagedMetric(category="memory", displayName="Total size of HSA mapping index", metricType=MetricType.COUNTER, unit="size")
     public int getTotalIndexSize() {
-        return codeServerMEKCacheManagerService.getCurrentIndex().size();
+        return codeServerMEKCacheManagerService.isReady() ? codeServerMEKCacheManagerService.getCurrentIndex().size() : 0;
+    }
+
+    /**
+     * Returns if the HSA mapping index is ready to serve requests.
+     * @return true if there is an index.
+     */
+    @ManagedAttribute(description="Returns if the HSA mapping index is ready to serve requests")
+    public boolean isIndexReady() {
+        return codeServerMEKCacheManagerService.isReady();
+    }
+
+    /**
+     * Returns the generation of the HSA mapping index, increased each time it's rebuilt.
+     * @return the generation, or 0 if there is no index.
+     */
+    @ManagedAttribute(description="Returns the generation of the HSA mapping index, increased each time it's rebuilt")
+    public long getIndexGeneration() {
+        return codeServerMEKCacheManagerService.isReady() ? codeServerMEKCacheManagerService.getSnapshot().getGeneration() : 0;
+    }
+
+    /**
+     * Returns if the HSA mapping index is being rebuilt.
+     * @return true while the index is rebuilt.
+     */
+    @ManagedAttribute(description="Returns if the HSA mapping index is being rebuilt")
+    public boolean isIndexRebuilding() {
+        return codeServerMEKCacheManagerService.isBusy();
     }
 
     /**
@@ -0,0 +1,751 @@
+/**
+ *  Copyright (c) 2013 SLL <http://sll.se/>
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package se.sll.reimbursementadapter.admincareevent.model;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import se.sll.reimbursementadapter.parser.StateIntervals;
+import se.sll.reimbursementadapter.parser.TermItem;
+import se.sll.reimbursementadapter.parser.TermState;
+
+/**
+ * The code server index as read-only lookup tables. <p>
+ *
+ * Facilities, facility states, HSA mappings, commissions, commission states and commission types
+ * are numbered, and refer to each other by number through arrays of offsets. Strings are kept once
+ * in a string table and referred to by number, -1 is null. Validity periods are kept in arrays of
+ * milliseconds and searched with {@link StateIntervals}, so finding the state of a kombika at a date
+ * walks a few primitive arrays instead of a web of small objects. <p>
+ *
+ * The table is built from the index returned by the builder, and holds everything that is looked
+ * up when care events are transformed, so the {@link TermItem} graph can be dropped once the table
+ * is built. What isn't looked up, such as names of facilities and contract codes, is left out. The
+ * tables are written and read as they are, see {@link #write(DataOutput)}. <p>
+ *
+ * A state lookup gives the same result as {@link TermItem#getState(java.util.Date)} and
+ * {@link TermItem#getStateBefore(java.util.Date)} on the item it was built from.
+ */
+public final class FacilityIndex {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    /** The string table. */
+    private final String[] strings;
+
+    /** The kombikas in sorted order, the position is the facility number. */
+    private final String[] kombikas;
+    private final KombikaTable facilityNumbers;
+    /** The first state of each facility, and the end of the last one. */
+    private final int[] facilityStates;
+    private final BitSet facilityOrdered;
+
+    private final long[] stateFrom;
+    private final long[] stateTo;
+    private final int[] stateCustomerCodes;
+    private final int[] stateCareUnitTypes;
+    /** The HSA mapping of each facility state, or -1. */
+    private final int[] stateHsaMappings;
+    /** The first commission of each facility state, and the end of the last one. */
+    private final int[] stateCommissions;
+    private final int[] commissionRefs;
+
+    private final int[] hsaMappingStates;
+    private final BitSet hsaMappingOrdered;
+    private final long[] hsaFrom;
+    private final long[] hsaTo;
+    private final int[] hsaIds;
+
+    private final int[] commissionIds;
+    private final int[] commissionStates;
+    private final BitSet commissionOrdered;
+    private final long[] commissionFrom;
+    private final long[] commissionTo;
+    private final int[] commissionNames;
+    private final int[] commissionAssignmentTypes;
+    /** 0 if not set, 1 if false and 2 if true. */
+    private final byte[] commissionFollowsTemplate;
+    /** The commission type of each commission state, or -1. */
+    private final int[] commissionTypeRefs;
+    /** The first back reference of each commission, and the end of the last one. */
+    private final int[] commissionBackRefs;
+    /** The facilities that refer to the commissions. */
+    private final int[] backRefs;
+
+    private final int[] typeIds;
+    private final int[] typeStates;
+    private final BitSet typeOrdered;
+    private final long[] typeFrom;
+    private final long[] typeTo;
+    private final int[] typeNames;
+
+    //
+    private FacilityIndex(Map<String, TermItem<FacilityState>> index) {
+        final Numbers<String> stringNumbers = new Numbers<>(new HashMap<String, Integer>());
+
+        kombikas = index.keySet().toArray(new String[index.size()]);
+        Arrays.sort(kombikas);
+        facilityNumbers = new KombikaTable(kombikas);
+        final IdentityHashMap<TermItem<FacilityState>, Integer> facilities = new IdentityHashMap<>();
+        for (int f = 0; f < kombikas.length; f++) {
+            facilities.put(index.get(kombikas[f]), f);
+        }
+
+        // Facilities and their states.
+        final Numbers<TermItem<HSAMappingState>> hsaMappings = new Numbers<>(new IdentityHashMap<TermItem<HSAMappingState>, Integer>());
+        final Numbers<TermItemCommission<CommissionState>> commissions = new Numbers<>(new IdentityHashMap<TermItemCommission<CommissionState>, Integer>());
+        final List<FacilityState> facilityStateList = new ArrayList<>();
+        facilityStates = new int[kombikas.length + 1];
+        int refCount = 0;
+        for (int f = 0; f < kombikas.length; f++) {
+            facilityStates[f] = facilityStateList.size();
+            for (FacilityState state : index.get(kombikas[f]).getStateVector()) {
+                facilityStateList.add(state);
+                if (state.getHSAMapping() != null) {
+                    hsaMappings.of(state.getHSAMapping());
+                }
+                for (TermItemCommission<CommissionState> commission : state.getCommissions()) {
+                    if (commission != null) {
+                        commissions.of(commission);
+                        refCount++;
+                    }
+                }
+            }
+        }
+        facilityStates[kombikas.length] = facilityStateList.size();
+
+        stateFrom = from(facilityStateList);
+        stateTo = to(facilityStateList);
+        stateCustomerCodes = new int[facilityStateList.size()];
+        stateCareUnitTypes = new int[facilityStateList.size()];
+        stateHsaMappings = new int[facilityStateList.size()];
+        stateCommissions = new int[facilityStateList.size() + 1];
+        commissionRefs = new int[refCount];
+        int r = 0;
+        for (int s = 0; s < facilityStateList.size(); s++) {
+            final FacilityState state = facilityStateList.get(s);
+            stateCustomerCodes[s] = stringNumbers.ref(state.getCustomerCode());
+            stateCareUnitTypes[s] = stringNumbers.ref(state.getCareUnitType());
+            stateHsaMappings[s] = (state.getHSAMapping() == null) ? -1 : hsaMappings.of(state.getHSAMapping());
+            stateCommissions[s] = r;
+            for (TermItemCommission<CommissionState> commission : state.getCommissions()) {
+                if (commission != null) {
+                    commissionRefs[r++] = commissions.of(commission);
+                }
+            }
+        }
+        stateCommissions[facilityStateList.size()] = r;
+        facilityOrdered = ordered(stateFrom, stateTo, facilityStates);
+
+        // HSA mappings.
+        final List<HSAMappingState> hsaStateList = new ArrayList<>();
+        hsaMappingStates = new int[hsaMappings.size() + 1];
+        for (int h = 0; h < hsaMappings.size(); h++) {
+            hsaMappingStates[h] = hsaStateList.size();
+            hsaStateList.addAll(hsaMappings.get(h).getStateVector());
+        }
+        hsaMappingStates[hsaMappings.size()] = hsaStateList.size();
+        hsaFrom = from(hsaStateList);
+        hsaTo = to(hsaStateList);
+        hsaIds = new int[hsaStateList.size()];
+        for (int i = 0; i < hsaStateList.size(); i++) {
+            hsaIds[i] = stringNumbers.ref(hsaStateList.get(i).getHsaId());
+        }
+        hsaMappingOrdered = ordered(hsaFrom, hsaTo, hsaMappingStates);
+
+        // Commissions, their states and the facilities that refer to them.
+        final Numbers<TermItem<CommissionTypeState>> types = new Numbers<>(new IdentityHashMap<TermItem<CommissionTypeState>, Integer>());
+        final List<CommissionState> commissionStateList = new ArrayList<>();
+        commissionIds = new int[commissions.size()];
+        commissionStates = new int[commissions.size() + 1];
+        commissionBackRefs = new int[commissions.size() + 1];
+        int backRefCount = 0;
+        for (int c = 0; c < commissions.size(); c++) {
+            final TermItemCommission<CommissionState> commission = commissions.get(c);
+            commissionIds[c] = stringNumbers.ref(commission.getId());
+            commissionStates[c] = commissionStateList.size();
+            commissionStateList.addAll(commission.getStateVector());
+            backRefCount += commission.getBackRefs().size();
+        }
+        commissionStates[commissions.size()] = commissionStateList.size();
+        commissionFrom = from(commissionStateList);
+        commissionTo = to(commissionStateList);
+        commissionNames = new int[commissionStateList.size()];
+        commissionAssignmentTypes = new int[commissionStateList.size()];
+        commissionFollowsTemplate = new byte[commissionStateList.size()];
+        commissionTypeRefs = new int[commissionStateList.size()];
+        for (int i = 0; i < commissionStateList.size(); i++) {
+            final CommissionState state = commissionStateList.get(i);
+            commissionNames[i] = stringNumbers.ref(state.getName());
+            commissionAssignmentTypes[i] = stringNumbers.ref(state.getAssignmentType());
+            commissionFollowsTemplate[i] = (byte) ((state.getFollowsTemplate() == null) ? 0 : (state.getFollowsTemplate() ? 2 : 1));
+            commissionTypeRefs[i] = (state.getCommissionType() == null) ? -1 : types.of(state.getCommissionType());
+        }
+        commissionOrdered = ordered(commissionFrom, commissionTo, commissionStates);
+
+        // Back references to facilities outside of the index can't be looked up, and are left out.
+        final int[] refs = new int[backRefCount];
+        int b = 0;
+        for (int c = 0; c < commissions.size(); c++) {
+            commissionBackRefs[c] = b;
+            for (TermItem<FacilityState> facility : commissions.get(c).getBackRefs()) {
+                final Integer f = facilities.get(facility);
+                if (f != null) {
+                    refs[b++] = f;
+                }
+            }
+        }
+        commissionBackRefs[commissions.size()] = b;
+        backRefs = Arrays.copyOf(refs, b);
+
+        // Commission types.
+        final List<CommissionTypeState> typeStateList = new ArrayList<>();
+        typeIds = new int[types.size()];
+        typeStates = new int[types.size() + 1];
+        for (int t = 0; t < types.size(); t++) {
+            typeIds[t] = stringNumbers.ref(types.get(t).getId());
+            typeStates[t] = typeStateList.size();
+            typeStateList.addAll(types.get(t).getStateVector());
+        }
+        typeStates[types.size()] = typeStateList.size();
+        typeFrom = from(typeStateList);
+        typeTo = to(typeStateList);
+        typeNames = new int[typeStateList.size()];
+        for (int i = 0; i < typeStateList.size(); i++) {
+            typeNames[i] = stringNumbers.ref(typeStateList.get(i).getName());
+        }
+        typeOrdered = ordered(typeFrom, typeTo, typeStates);
+
+        strings = stringNumbers.items.toArray(new String[stringNumbers.size()]);
+    }
+
+    //
+    private FacilityIndex(DataInput in, long length) throws IOException {
+        strings = readStrings(in, length);
+        kombikas = readStrings(in, length);
+        facilityStates = readInts(in, length);
+        stateFrom = readLongs(in, length);
+        stateTo = readLongs(in, length);
+        stateCustomerCodes = readInts(in, length);
+        stateCareUnitTypes = readInts(in, length);
+        stateHsaMappings = readInts(in, length);
+        stateCommissions = readInts(in, length);
+        commissionRefs = readInts(in, length);
+        hsaMappingStates = readInts(in, length);
+        hsaFrom = readLongs(in, length);
+        hsaTo = readLongs(in, length);
+        hsaIds = readInts(in, length);
+        commissionIds = readInts(in, length);
+        commissionStates = readInts(in, length);
+        commissionFrom = readLongs(in, length);
+        commissionTo = readLongs(in, length);
+        commissionNames = readInts(in, length);
+        commissionAssignmentTypes = readInts(in, length);
+        commissionFollowsTemplate = readBytes(in, length);
+        commissionTypeRefs = readInts(in, length);
+        commissionBackRefs = readInts(in, length);
+        backRefs = readInts(in, length);
+        typeIds = readInts(in, length);
+        typeStates = readInts(in, length);
+        typeFrom = readLongs(in, length);
+        typeTo = readLongs(in, length);
+        typeNames = readInts(in, length);
+        check();
+
+        facilityNumbers = new KombikaTable(kombikas);
+        facilityOrdered = ordered(stateFrom, stateTo, facilityStates);
+        hsaMappingOrdered = ordered(hsaFrom, hsaTo, hsaMappingStates);
+        commissionOrdered = ordered(commissionFrom, commissionTo, commissionStates);
+        typeOrdered = ordered(typeFrom, typeTo, typeStates);
+    }
+
+    /**
+     * Checks that the tables read from a file refer to each other within bounds, so that a corrupt
+     * file fails when read rather than on a lookup.
+     */
+    private void check() throws IOException {
+        for (int f = 1; f < kombikas.length; f++) {
+            if (kombikas[f - 1].compareTo(kombikas[f]) >= 0) {
+                throw new IOException("Kombikas not in order at " + f);
+            }
+        }
+        final int stateCount = stateFrom.length;
+        checkOffsets(facilityStates, kombikas.length, stateCount);
+        checkLength(stateCount, stateTo.length, stateCustomerCodes.length, stateCareUnitTypes.length, stateHsaMappings.length);
+        checkRefs(stateCustomerCodes, strings.length, true);
+        checkRefs(stateCareUnitTypes, strings.length, true);
+        checkOffsets(stateCommissions, stateCount, commissionRefs.length);
+
+        final int hsaMappingCount = hsaMappingStates.length - 1;
+        checkRefs(stateHsaMappings, hsaMappingCount, true);
+        checkOffsets(hsaMappingStates, hsaMappingCount, hsaFrom.length);
+        checkLength(hsaFrom.length, hsaTo.length, hsaIds.length);
+        checkRefs(hsaIds, strings.length, true);
+
+        final int commissionCount = commissionIds.length;
+        final int commissionStateCount = commissionFrom.length;
+        checkRefs(commissionRefs, commissionCount, false);
+        checkRefs(commissionIds, strings.length, true);
+        checkOffsets(commissionStates, commissionCount, commissionStateCount);
+        checkLength(commissionStateCount, commissionTo.length, commissionNames.length, commissionAssignmentTypes.length,
+                    commissionFollowsTemplate.length, commissionTypeRefs.length);
+        checkRefs(commissionNames, strings.length, true);
+        checkRefs(commissionAssignmentTypes, strings.length, true);
+        for (byte followsTemplate : commissionFollowsTemplate) {
+            if (followsTemplate < 0 || followsTemplate > 2) {
+                throw new IOException("Invalid follows template flag " + followsTemplate);
+            }
+        }
+        checkRefs(commissionTypeRefs, typeIds.length, true);
+        checkOffsets(commissionBackRefs, commissionCount, backRefs.length);
+        checkRefs(backRefs, kombikas.length, false);
+
+        checkRefs(typeIds, strings.length, true);
+        checkOffsets(typeStates, typeIds.length, typeFrom.length);
+        checkLength(typeFrom.length, typeTo.length, typeNames.length);
+        checkRefs(typeNames, strings.length, true);
+    }
+
+    //
+    private static void checkOffsets(int[] offsets, int count, int end) throws IOException {
+        if (count < 0 || offsets.length != count + 1 || offsets[0] != 0 || offsets[count] != end) {
+            throw new IOException("Invalid offset table");
+        }
+        for (int i = 0; i < count; i++) {
+            if (offsets[i] > offsets[i + 1]) {
+                throw new IOException("Invalid offset at " + i);
+            }
+        }
+    }
+
+    //
+    private static void checkLength(int length, int... others) throws IOException {
+        for (int other : others) {
+            if (other != length) {
+                throw new IOException(String.format("Table length %d, expected %d", other, length));
+            }
+        }
+    }
+
+    //
+    private static void checkRefs(int[] refs, int count, boolean nullable) throws IOException {
+        for (int ref : refs) {
+            if (ref >= count || ref < (nullable ? -1 : 0)) {
+                throw new IOException(String.format("Invalid reference %d to a table of %d", ref, count));
+            }
+        }
+    }
+
+    /**
+     * Numbers objects in the order they are first seen.
+     */
+    private static final class Numbers<T> {
+        private final Map<T, Integer> numbers;
+        private final List<T> items = new ArrayList<>();
+
+        Numbers(Map<T, Integer> numbers) {
+            this.numbers = numbers;
+        }
+
+        int of(T item) {
+            Integer n = numbers.get(item);
+            if (n == null) {
+                n = items.size();
+                numbers.put(item, n);
+                items.add(item);
+            }
+            return n;
+        }
+
+        int ref(T item) {
+            return (item == null) ? -1 : of(item);
+        }
+
+        T get(int n) {
+            return items.get(n);
+        }
+
+        int size() {
+            return items.size();
+        }
+    }
+
+    //
+    private static long[] from(List<? extends TermState> states) {
+        final long[] from = new long[states.size()];
+        for (int i = 0; i < from.length; i++) {
+            from[i] = states.get(i).getValidFrom().getTime();
+        }
+        return from;
+    }
+
+    //
+    private static long[] to(List<? extends TermState> states) {
+        final long[] to = new long[states.size()];
+        for (int i = 0; i < to.length; i++) {
+            to[i] = states.get(i).getValidTo().getTime();
+        }
+        return to;
+    }
+
+    //
+    private static BitSet ordered(long[] from, long[] to, int[] offsets) {
+        final BitSet ordered = new BitSet(offsets.length - 1);
+        for (int i = 0; i < offsets.length - 1; i++) {
+            ordered.set(i, StateIntervals.isOrdered(from, to, offsets[i], offsets[i + 1]));
+        }
+        return ordered;
+    }
+
+    /**
+     * Builds the lookup table of an index.
+     *
+     * @param index the index, or null for an empty one.
+     * @return the lookup table.
+     */
+    public static FacilityIndex of(Map<String, TermItem<FacilityState>> index) {
+        return new FacilityIndex((index == null) ? Collections.<String, TermItem<FacilityState>>emptyMap() : index);
+    }
+
+    /**
+     * Reads tables written by {@link #write(DataOutput)}.
+     *
+     * @param in the input.
+     * @param length an upper bound of the number of bytes left, used to reject corrupt table lengths.
+     * @return the lookup table.
+     * @throws IOException if the input can't be read or isn't a valid set of tables.
+     */
+    public static FacilityIndex read(DataInput in, long length) throws IOException {
+        return new FacilityIndex(in, length);
+    }
+
+    /**
+     * Writes the tables. Each table is written as its length followed by the elements, strings as
+     * their length in bytes followed by the UTF-8 bytes.
+     *
+     * @param out the output.
+     * @throws IOException if the output can't be written.
+     */
+    public void write(DataOutput out) throws IOException {
+        writeStrings(out, strings);
+        writeStrings(out, kombikas);
+        writeInts(out, facilityStates);
+        writeLongs(out, stateFrom);
+        writeLongs(out, stateTo);
+        writeInts(out, stateCustomerCodes);
+        writeInts(out, stateCareUnitTypes);
+        writeInts(out, stateHsaMappings);
+        writeInts(out, stateCommissions);
+        writeInts(out, commissionRefs);
+        writeInts(out, hsaMappingStates);
+        writeLongs(out, hsaFrom);
+        writeLongs(out, hsaTo);
+        writeInts(out, hsaIds);
+        writeInts(out, commissionIds);
+        writeInts(out, commissionStates);
+        writeLongs(out, commissionFrom);
+        writeLongs(out, commissionTo);
+        writeInts(out, commissionNames);
+        writeInts(out, commissionAssignmentTypes);
+        out.writeInt(commissionFollowsTemplate.length);
+        out.write(commissionFollowsTemplate);
+        writeInts(out, commissionTypeRefs);
+        writeInts(out, commissionBackRefs);
+        writeInts(out, backRefs);
+        writeInts(out, typeIds);
+        writeInts(out, typeStates);
+        writeLongs(out, typeFrom);
+        writeLongs(out, typeTo);
+        writeInts(out, typeNames);
+    }
+
+    //
+    private static void writeStrings(DataOutput out, String[] values) throws IOException {
+        out.writeInt(values.length);
+        for (String value : values) {
+            final byte[] bytes = value.getBytes(UTF_8);
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        }
+    }
+
+    //
+    private static void writeInts(DataOutput out, int[] values) throws IOException {
+        out.writeInt(values.length);
+        for (int value : values) {
+            out.writeInt(value);
+        }
+    }
+
+    //
+    private static void writeLongs(DataOutput out, long[] values) throws IOException {
+        out.writeInt(values.length);
+        for (long value : values) {
+            out.writeLong(value);
+        }
+    }
+
+    //
+    private static int readLength(DataInput in, long length, int size) throws IOException {
+        final int n = in.readInt();
+        if (n < 0 || (long) n * size > length) {
+            throw new IOException("Invalid table length " + n);
+        }
+        return n;
+    }
+
+    //
+    private static String[] readStrings(DataInput in, long length) throws IOException {
+        final String[] values = new String[readLength(in, length, 4)];
+        for (int i = 0; i < values.length; i++) {
+            final byte[] bytes = readBytes(in, length);
+            values[i] = new String(bytes, UTF_8);
+        }
+        return values;
+    }
+
+    //
+    private static byte[] readBytes(DataInput in, long length) throws IOException {
+        final byte[] values = new byte[readLength(in, length, 1)];
+        in.readFully(values);
+        return values;
+    }
+
+    //
+    private static int[] readInts(DataInput in, long length) throws IOException {
+        final int[] values = new int[readLength(in, length, 4)];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = in.readInt();
+        }
+        return values;
+    }
+
+    //
+    private static long[] readLongs(DataInput in, long length) throws IOException {
+        final long[] values = new long[readLength(in, length, 8)];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = in.readLong();
+        }
+        return values;
+    }
+
+    /** @return the number of kombikas. */
+    public int size() {
+        return kombikas.length;
+    }
+
+    /**
+     * @param facility the facility number.
+     * @return the kombika of the facility.
+     */
+    public String getKombika(int facility) {
+        return kombikas[facility];
+    }
+
+    /**
+     * @param kombika the kombika.
+     * @return the facility number, or -1 if the kombika isn't in the index.
+     */
+    public int facilityOf(String kombika) {
+        return facilityNumbers.get(kombika);
+    }
+
+    /**
+     * @param facility the facility number.
+     * @param time the time in milliseconds.
+     * @return the number of the facility state valid at the time, or -1.
+     */
+    public int stateAt(int facility, long time) {
+        return StateIntervals.indexOfValid(stateFrom, stateTo, facilityStates[facility], facilityStates[facility + 1],
+                                           facilityOrdered.get(facility), time);
+    }
+
+    /**
+     * @param facility the facility number.
+     * @param time the time in milliseconds.
+     * @return the number of the first facility state that became valid before the time, or -1.
+     */
+    public int stateBefore(int facility, long time) {
+        return StateIntervals.indexOfBefore(stateFrom, facilityStates[facility], facilityStates[facility + 1],
+                                            facilityOrdered.get(facility), time);
+    }
+
+    /**
+     * @param state the facility state number.
+     * @return the customer code (KUND) of the facility state, or null.
+     */
+    public String getCustomerCode(int state) {
+        return string(stateCustomerCodes[state]);
+    }
+
+    /**
+     * @param state the facility state number.
+     * @return the care unit type (AVDTYP) of the facility state, or null.
+     */
+    public String getCareUnitType(int state) {
+        return string(stateCareUnitTypes[state]);
+    }
+
+    /**
+     * @param state the facility state number.
+     * @param time the time in milliseconds.
+     * @return the HSA-id the facility state is mapped to at the time, or null.
+     */
+    public String getHsaIdAt(int state, long time) {
+        final int h = stateHsaMappings[state];
+        if (h < 0) {
+            return null;
+        }
+        final int i = StateIntervals.indexOfValid(hsaFrom, hsaTo, hsaMappingStates[h], hsaMappingStates[h + 1],
+                                                  hsaMappingOrdered.get(h), time);
+        return (i < 0) ? null : string(hsaIds[i]);
+    }
+
+    /**
+     * @param state the facility state number.
+     * @param time the time in milliseconds.
+     * @return the HSA-id of the first mapping of the facility state that became valid before the time, or null.
+     */
+    public String getHsaIdBefore(int state, long time) {
+        final int h = stateHsaMappings[state];
+        if (h < 0) {
+            return null;
+        }
+        final int i = StateIntervals.indexOfBefore(hsaFrom, hsaMappingStates[h], hsaMappingStates[h + 1],
+                                                   hsaMappingOrdered.get(h), time);
+        return (i < 0) ? null : string(hsaIds[i]);
+    }
+
+    /**
+     * @param state the facility state number.
+     * @return the number of commissions of the facility state.
+     */
+    public int getCommissionCount(int state) {
+        return stateCommissions[state + 1] - stateCommissions[state];
+    }
+
+    /**
+     * @param state the facility state number.
+     * @param i the position of the commission in the facility state, from 0.
+     * @return the commission number.
+     */
+    public int getCommissionRef(int state, int i) {
+        return commissionRefs[stateCommissions[state] + i];
+    }
+
+    /**
+     * @param commission the commission number.
+     * @return the id of the commission (SAMVERKS).
+     */
+    public String getCommissionId(int commission) {
+        return string(commissionIds[commission]);
+    }
+
+    /**
+     * @param commission the commission number.
+     * @param time the time in milliseconds.
+     * @return the number of the commission state valid at the time, or -1.
+     */
+    public int getCommissionStateAt(int commission, long time) {
+        return StateIntervals.indexOfValid(commissionFrom, commissionTo, commissionStates[commission], commissionStates[commission + 1],
+                                           commissionOrdered.get(commission), time);
+    }
+
+    /**
+     * @param commissionState the commission state number.
+     * @return the name of the commission state, or null.
+     */
+    public String getCommissionName(int commissionState) {
+        return string(commissionNames[commissionState]);
+    }
+
+    /**
+     * @param commissionState the commission state number.
+     * @return the assignment type of the commission state, or null.
+     */
+    public String getAssignmentType(int commissionState) {
+        return string(commissionAssignmentTypes[commissionState]);
+    }
+
+    /**
+     * @param commissionState the commission state number.
+     * @return if the commission state follows a template, or null if not set.
+     */
+    public Boolean getFollowsTemplate(int commissionState) {
+        final byte followsTemplate = commissionFollowsTemplate[commissionState];
+        return (followsTemplate == 0) ? null : Boolean.valueOf(followsTemplate == 2);
+    }
+
+    /**
+     * @param commissionState the commission state number.
+     * @return the commission type number, or -1.
+     */
+    public int getCommissionType(int commissionState) {
+        return commissionTypeRefs[commissionState];
+    }
+
+    /**
+     * @param type the commission type number.
+     * @return the id of the commission type.
+     */
+    public String getCommissionTypeId(int type) {
+        return string(typeIds[type]);
+    }
+
+    /**
+     * @param type the commission type number.
+     * @param time the time in milliseconds.
+     * @return the name of the commission type state valid at the time, or null.
+     */
+    public String getCommissionTypeNameAt(int type, long time) {
+        final int i = StateIntervals.indexOfValid(typeFrom, typeTo, typeStates[type], typeStates[type + 1],
+                                                  typeOrdered.get(type), time);
+        return (i < 0) ? null : string(typeNames[i]);
+    }
+
+    /**
+     * @param commission the commission number.
+     * @return the number of references from facilities to the commission, a facility that
+     * refers to it in more than one state is counted once per state.
+     */
+    public int getBackRefCount(int commission) {
+        return commissionBackRefs[commission + 1] - commissionBackRefs[commission];
+    }
+
+    /**
+     * @param commission the commission number.
+     * @param i the position of the reference, from 0.
+     * @return the number of the facility that refers to the commission.
+     */
+    public int getBackRef(int commission, int i) {
+        return backRefs[commissionBackRefs[commission] + i];
+    }
+
+    //
+    private String string(int ref) {
+        return (ref < 0) ? null : strings[ref];
+    }
+}
@@ -0,0 +1,127 @@
+/**
+ *  Copyright (c) 2013 SLL <http://sll.se/>
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package se.sll.reimbursementadapter.admincareevent.model;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Maps kombikas to numbers without boxing or entry objects. <p>
+ *
+ * A kombika such as "19108011M04" is encoded into a long, one base 37 digit per character, and
+ * looked up in an open addressing table of longs. Keys that can't be encoded, i.e. longer than
+ * 12 characters or with other characters than digits and upper case letters, are kept in a
+ * plain map.
+ */
+final class KombikaTable {
+
+    /** The longest key that can be encoded, 37^12 is less than Long.MAX_VALUE. */
+    static final int MAX_ENCODED_LENGTH = 12;
+
+    /** An empty slot, no key encodes to 0. */
+    private static final long EMPTY = 0L;
+
+    private final long[] keys;
+    private final int[] values;
+    private final int shift;
+    private final Map<String, Integer> others = new HashMap<>();
+
+    /**
+     * Creates a table mapping each kombika to its position in the array.
+     *
+     * @param kombikas the kombikas, without duplicates.
+     */
+    KombikaTable(String[] kombikas) {
+        int capacity = 2;
+        while (capacity < kombikas.length * 2) {
+            capacity <<= 1;
+        }
+        keys = new long[capacity];
+        values = new int[capacity];
+        shift = 64 - Integer.numberOfTrailingZeros(capacity);
+        for (int i = 0; i < kombikas.length; i++) {
+            final long code = encode(kombikas[i]);
+            if (code < 0) {
+                others.put(kombikas[i], i);
+                continue;
+            }
+            int slot = slot(code);
+            while (keys[slot] != EMPTY) {
+                slot = (slot + 1) & (capacity - 1);
+            }
+            keys[slot] = code;
+            values[slot] = i;
+        }
+    }
+
+    /**
+     * @param kombika the kombika.
+     * @return the position of the kombika, or -1 if it isn't in the table.
+     */
+    int get(String kombika) {
+        final long code = encode(kombika);
+        if (code < 0) {
+            final Integer i = (kombika == null) ? null : others.get(kombika);
+            return (i == null) ? -1 : i;
+        }
+        final int mask = keys.length - 1;
+        for (int slot = slot(code); ; slot = (slot + 1) & mask) {
+            final long key = keys[slot];
+            if (key == code) {
+                return values[slot];
+            }
+            if (key == EMPTY) {
+                return -1;
+            }
+        }
+    }
+
+    /**
+     * Encodes a key, each character is a digit from 1 to 36 so that keys of different length
+     * never encode to the same number.
+     *
+     * @param kombika the key.
+     * @return the code, or -1 if the key can't be encoded.
+     */
+    static long encode(String kombika) {
+        if (kombika == null) {
+            return -1;
+        }
+        final int length = kombika.length();
+        if (length == 0 || length > MAX_ENCODED_LENGTH) {
+            return -1;
+        }
+        long code = 0;
+        for (int i = length - 1; i >= 0; i--) {
+            final char c = kombika.charAt(i);
+            final int digit;
+            if (c >= '0' && c <= '9') {
+                digit = c - '0' + 1;
+            } else if (c >= 'A' && c <= 'Z') {
+                digit = c - 'A' + 11;
+            } else {
+                return -1;
+            }
+            code = code * 37 + digit;
+        }
+        return code;
+    }
+
+    //
+    private int slot(long code) {
+        return (int) ((code * 0x9E3779B97F4A7C15L) >>> shift);
+    }
+}
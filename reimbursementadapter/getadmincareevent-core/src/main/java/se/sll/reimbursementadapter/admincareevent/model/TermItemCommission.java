@@ -20,6 +20,7 @@ import java.util.ArrayList;
 import java.util.Date;
 import java.util.List;
 
+import se.sll.reimbursementadapter.parser.StateIntervals;
 import se.sll.reimbursementadapter.parser.TermItem;
 import se.sll.reimbursementadapter.parser.TermState;
 
@@ -40,6 +41,10 @@ public class TermItemCommission<T extends TermState> implements Serializable {
      * @serial
      */
     private List<T> stateVector = new ArrayList<>();
+    /**
+     * The validity periods of the state vector, frozen on the first lookup.
+     */
+    private transient volatile StateIntervals intervals;
 
     private List<TermItem<FacilityState>> backRef = new ArrayList<>();
 
@@ -57,11 +62,13 @@ public class TermItemCommission<T extends TermState> implements Serializable {
     
     public void addState(final T termState) {
         stateVector.add(termState);
+        intervals = null;
     }
     
     @SuppressWarnings("unchecked")
     public void orderStates() {
         TermItem.orderStates((List<TermState>) stateVector, id);
+        intervals = null;
     }
     
     /**
@@ -71,12 +78,18 @@ public class TermItemCommission<T extends TermState> implements Serializable {
      * @return the state or null if none found.
      */
     public T getState(final Date date) {
-        for (final T state : stateVector) {
-            if (state.isValid(date)) {
-                return state;
-            }
+        final int i = getIntervals().indexOfValid(date.getTime());
+        return (i < 0) ? null : stateVector.get(i);
+    }
+
+    //
+    private StateIntervals getIntervals() {
+        StateIntervals frozen = intervals;
+        if (frozen == null || frozen.size() != stateVector.size()) {
+            frozen = StateIntervals.of(stateVector);
+            intervals = frozen;
         }
-        return null;
+        return frozen;
     }
 
     @Override
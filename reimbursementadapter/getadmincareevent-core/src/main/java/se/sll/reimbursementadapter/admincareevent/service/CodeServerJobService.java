@@ -54,7 +54,7 @@ public class CodeServerJobService {
 
     /**
      * Invokes an externally managed script to fetch master data, and
-     * then revalidates the index.
+     * then revalidates the index if any of the files changed.
      * <p/>
      * The actual cron expression is configurable using "pr.ftp.cron", and the script runs in the current working
      * directory as the configuration setting "pr.ftp.localPath".
@@ -79,7 +79,7 @@ public class CodeServerJobService {
                 LOG.error("Script {} returned with exit code {}", script, p.exitValue());
             } else {
                 LOG.info("Script {} completed successfully", script);
-                codeServerMEKCacheManagerService.revalidate();
+                codeServerMEKCacheManagerService.revalidateIfChanged();
                 success = true;
             }
         } catch (Exception e) {
@@ -15,15 +15,27 @@
  */
 package se.sll.reimbursementadapter.admincareevent.service;
 
+import java.io.IOException;
 import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import javax.annotation.PreDestroy;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 
+import se.sll.reimbursementadapter.admincareevent.model.FacilityIndex;
 import se.sll.reimbursementadapter.admincareevent.model.FacilityState;
 import se.sll.reimbursementadapter.admincareevent.util.CodeServerMEKCacheBuilder;
+import se.sll.reimbursementadapter.admincareevent.util.CodeServerMEKIndexFile;
 import se.sll.reimbursementadapter.parser.TermItem;
 import se.sll.reimbursementadapter.util.FileObjectStore;
 
@@ -34,7 +46,8 @@ import se.sll.reimbursementadapter.util.FileObjectStore;
  * The index is built from code-server master XML files, and the result is saved/cached on local disk.
  * The local cache is always used if it exists, and the only way to rebuild the index is to
  * invoke the <code>revalidate</code> method, which is intended to be called by an external scheduled
- * job.
+ * job, or <code>revalidateAsync</code> to rebuild it in the background. The old index is used until
+ * the new one is built, and a new index that looks broken is rejected.
  *
  * @author Peter
  * @see #revalidate()
@@ -60,19 +73,35 @@ public class CodeServerMEKCacheManagerService {
     /** The file name for the MEK file. */
     @Value("${pr.mekFile}")
     private String mekFile;
+    /** The largest fraction of the facilities that may disappear in a rebuild, 1 accepts any index. */
+    @Value("${pr.cs.maxIndexShrink:0.2}")
+    private double maxIndexShrink = 0.2;
 
     /** Flag indicating if the service is currently processing. */
-    private boolean busy;
+    private volatile boolean busy;
     /** The singleton instance of this class. */
     private static CodeServerMEKCacheManagerService instance;
     /** Logger. */
     private static final Logger LOG = LoggerFactory.getLogger(CodeServerMEKCacheManagerService.class);
-    /** The current index. */
-    private Map<String, TermItem<FacilityState>> currentIndex;
+    /** The current index, read without locking. */
+    private final AtomicReference<IndexSnapshot> currentSnapshot = new AtomicReference<>();
+    /** The generation of the last published index. */
+    private final AtomicLong generation = new AtomicLong();
     /** The build lock object. */
     private final Object buildLock = new Object();
-    /** The {@link se.sll.reimbursementadapter.util.FileObjectStore} to write the HSA-index with. */
+    /** The lock for reading the index from disk the first time and for publishing a new index. */
+    private final Object loadLock = new Object();
+    /** The {@link se.sll.reimbursementadapter.util.FileObjectStore} to read an index written by an earlier version with. */
     private FileObjectStore fileObjectStore = new FileObjectStore();
+    /** Builds the index, and keeps what's needed to only parse the files that changed in the next build. */
+    private CodeServerMEKCacheBuilder builder;
+    /** Runs background rebuilds, created on first use. */
+    private ExecutorService rebuildExecutor;
+    /** Set when the service is shut down, no more background rebuilds are started. */
+    private boolean shutdown;
+
+    /** The largest number of kombikas of the old index that are looked up in a rebuilt index. */
+    static final int KOMBIKA_SAMPLE_SIZE = 1000;
 
     /** Constructor needed to setup the Mule and some unit test context that are not launched via Spring. */
     public CodeServerMEKCacheManagerService() {
@@ -85,14 +114,20 @@ public class CodeServerMEKCacheManagerService {
         return localPath + (localPath.endsWith("/") ? "" : "/") + name;
     }
 
-    private Map<String, TermItem<FacilityState>> build() {
-        CodeServerMEKCacheBuilder builder = new CodeServerMEKCacheBuilder()
-                .withCommissionFile(path(commissionFile))
-                .withCommissionTypeFile(path(commissionTypeFile))
-                .withFacilityFile(path(facilityFile))
-                .withMekFile(path(mekFile));
+    //
+    private synchronized CodeServerMEKCacheBuilder getBuilder() {
+        if (builder == null) {
+            builder = new CodeServerMEKCacheBuilder()
+                    .withCommissionFile(path(commissionFile))
+                    .withCommissionTypeFile(path(commissionTypeFile))
+                    .withFacilityFile(path(facilityFile))
+                    .withMekFile(path(mekFile));
+        }
+        return builder;
+    }
 
-        return builder.build();
+    private Map<String, TermItem<FacilityState>> build() {
+        return getBuilder().build();
     }
 
     /**
@@ -109,7 +144,7 @@ public class CodeServerMEKCacheManagerService {
     }
 
     /**
-     * Rebuilds the index from XML source. <p>
+     * Rebuilds the index from XML source, files that are unchanged since the last build are not parsed again. <p>
      * <p/>
      * Can only be invoked once, i.e. if a rebuild process is ongoing
      * this method returns without doing anything.
@@ -127,15 +162,27 @@ public class CodeServerMEKCacheManagerService {
             setBusy(true);
             try {
                 LOG.info(String.format("Building index"));
-                final Map<String, TermItem<FacilityState>> index = build();
+                // Only the lookup tables are kept, the graph from the build isn't used after this.
+                final FacilityIndex facilityIndex = FacilityIndex.of(build());
+                final IndexSnapshot current = currentSnapshot.get();
+                final String rejection = validate((current == null) ? null : current.getFacilityIndex(), facilityIndex, maxIndexShrink, 
+                                                  System.currentTimeMillis());
+                if (rejection != null) {
+                    LOG.error(String.format("Rejected rebuilt index, keeping generation %d: %s", current.getGeneration(), rejection));
+                    return;
+                }
                 if (fileName.trim().isEmpty()) {
                     LOG.info(String.format("Skipping write of index, pr.cs.indexFile is empty."));
                 }
                 else {
                     LOG.info(String.format("Writing index to %s.", fileName));
-                    fileObjectStore.write(index, fileName);
+                    try {
+                        CodeServerMEKIndexFile.write(facilityIndex, fileName);
+                    } catch (IOException e) {
+                        LOG.error("Unable to write HSA index to file: " + fileName, e);
+                    }
                 }
-                setCurrentIndex(index);
+                setCurrentIndex(facilityIndex);
             } finally {
                 setBusy(false);
             }
@@ -143,6 +190,140 @@ public class CodeServerMEKCacheManagerService {
     }
 
 
+    /**
+     * Rebuilds the index if any of the code server files has changed since the last build, or if
+     * there is no index. Only the changed files are parsed again.
+     *
+     * @see #revalidate()
+     */
+    public void revalidateIfChanged() {
+        final IndexSnapshot current = currentSnapshot.get();
+        if (current != null && !getBuilder().isChanged()) {
+            LOG.info(String.format("Code server files are unchanged, keeping index generation %d.", current.getGeneration()));
+            return;
+        }
+        revalidate();
+    }
+
+    /**
+     * Rebuilds the index on a background thread, the current index is used until the new one is ready.
+     *
+     * @return the future for the rebuild.
+     * @throws RejectedExecutionException if the service is shut down.
+     * @see #revalidate()
+     */
+    public Future<?> revalidateAsync() {
+        return getRebuildExecutor().submit(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    revalidate();
+                } catch (RuntimeException e) {
+                    LOG.error("Failed to rebuild index.", e);
+                    throw e;
+                }
+            }
+        });
+    }
+
+    /**
+     * Returns if an index is available for requests, without reading it from disk.
+     *
+     * @return true if there is a current index.
+     */
+    public boolean isReady() {
+        return currentSnapshot.get() != null;
+    }
+
+    /**
+     * Checks that a rebuilt index is sane compared to the current one: not empty, not shrunk by more
+     * than maxShrink, and with most of a sample of the current kombikas still resolving to an HSA-id
+     * the way a referral is looked up, through the facility state and its HSA mapping.
+     *
+     * @param current the current index, or null if there is none.
+     * @param index the rebuilt index.
+     * @param maxShrink the largest fraction of the kombikas that may disappear.
+     * @param time the time to look up the kombikas at, in milliseconds.
+     * @return a description of the problem, or null if the index is accepted.
+     */
+    static String validate(FacilityIndex current, FacilityIndex index, double maxShrink, long time) {
+        if (current == null || current.size() == 0 || maxShrink >= 1) {
+            return null;
+        }
+        if (index == null || index.size() == 0) {
+            return "the index is empty.";
+        }
+        if (index.size() < current.size() * (1 - maxShrink)) {
+            return String.format("the index has %d kombikas, down from %d.", index.size(), current.size());
+        }
+        // Spread the sample over the kombikas, which are in sorted order.
+        final int step = Math.max(1, current.size() / KOMBIKA_SAMPLE_SIZE);
+        int sampled = 0;
+        int broken = 0;
+        for (int avd = 0; avd < current.size() && sampled < KOMBIKA_SAMPLE_SIZE; avd += step) {
+            sampled++;
+            final String kombika = current.getKombika(avd);
+            if (resolve(current, kombika, time) != null && resolve(index, kombika, time) == null) {
+                broken++;
+            }
+        }
+        if (broken > sampled * maxShrink) {
+            return String.format("%d of %d sampled kombikas no longer resolve to an HSA-id.", broken, sampled);
+        }
+        return null;
+    }
+
+    /**
+     * Looks up the HSA-id of a kombika at a time, or else the last one before the time.
+     *
+     * @return the HSA-id, or null if the kombika doesn't resolve.
+     */
+    private static String resolve(FacilityIndex index, String kombika, long time) {
+        final int avd = index.facilityOf(kombika);
+        if (avd < 0) {
+            return null;
+        }
+        int state = index.stateAt(avd, time);
+        if (state >= 0) {
+            final String hsaId = index.getHsaIdAt(state, time);
+            if (hsaId != null) {
+                return hsaId;
+            }
+        }
+        state = index.stateBefore(avd, time);
+        return (state < 0) ? null : index.getHsaIdBefore(state, time);
+    }
+
+    //
+    private synchronized ExecutorService getRebuildExecutor() {
+        if (shutdown) {
+            throw new RejectedExecutionException("The code server index service is shut down.");
+        }
+        if (rebuildExecutor == null) {
+            rebuildExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "codeserver-index-rebuild");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+        }
+        return rebuildExecutor;
+    }
+
+    /**
+     * Stops the background rebuild thread, interrupting a rebuild in progress.
+     */
+    @PreDestroy
+    public synchronized void shutdown() {
+        shutdown = true;
+        if (rebuildExecutor != null) {
+            rebuildExecutor.shutdownNow();
+            rebuildExecutor = null;
+        }
+    }
+
     /**
      * Returns the singleton instance. <p>
      * <p/>
@@ -159,29 +340,71 @@ public class CodeServerMEKCacheManagerService {
      * Returns the current index, or null if none exists.
      *
      * @return the current index.
+     * @see #getSnapshot()
      */
+    public FacilityIndex getCurrentIndex() {
+        IndexSnapshot snapshot = getSnapshot();
+        return (snapshot == null) ? null : snapshot.getFacilityIndex();
+    }
+
+    /**
+     * Returns the current version of the index, reading it from disk the first time. Once read,
+     * this doesn't lock, and the snapshot stays the same however long it's used.
+     *
+     * @return the current snapshot, or null if none exists.
+     */
+    public IndexSnapshot getSnapshot() {
+        IndexSnapshot snapshot = currentSnapshot.get();
+        if (snapshot != null) {
+            return snapshot;
+        }
+        synchronized (loadLock) {
+            snapshot = currentSnapshot.get();
+            if (snapshot == null) {
+                if (fileName == null || fileName.trim().isEmpty()) {
+                    LOG.info("Skipping read of index, filename is empty.");
+                    return null;
+                }
 
-    public synchronized Map<String, TermItem<FacilityState>> getCurrentIndex() {
-        if (currentIndex == null) {
-            if (fileName == null || fileName.trim().isEmpty()) {
-                LOG.info("Skipping read of index, filename is empty.");
-                return null;
+                LOG.info(String.format("Reading index from %s.", fileName));
+                setCurrentIndex(read(fileName));
+                snapshot = currentSnapshot.get();
             }
-            
-            LOG.info(String.format("Reading index from %s.", fileName));
-            Map<String, TermItem<FacilityState>> index = fileObjectStore.read(fileName);
-            setCurrentIndex(index);
+            return snapshot;
         }
-        return this.currentIndex;
     }
 
     /**
-     * Updates the current index.
+     * Reads an index file, in the binary format or else as serialized by an earlier version.
+     *
+     * @param fileName the file name (full path).
+     * @return the index, or null if unable to read it or if the file doesn't exist.
+     */
+    private FacilityIndex read(String fileName) {
+        if (!CodeServerMEKIndexFile.isIndexFile(fileName)) {
+            final Map<String, TermItem<FacilityState>> index = fileObjectStore.read(fileName);
+            return (index == null) ? null : FacilityIndex.of(index);
+        }
+        try {
+            return CodeServerMEKIndexFile.read(fileName);
+        } catch (IOException e) {
+            LOG.warn(e.toString());
+            return null;
+        }
+    }
+
+    /**
+     * Updates the current index, by publishing it as a new snapshot.
      *
      * @param currentIndex the new index.
      */
-    protected synchronized void setCurrentIndex(Map<String, TermItem<FacilityState>> currentIndex) {
-        this.currentIndex = currentIndex;
-        LOG.info("Current index set, size: {}.", (this.currentIndex == null) ? 0 : this.currentIndex.size());
+    protected void setCurrentIndex(FacilityIndex currentIndex) {
+        // Only writers lock, so that generations are published in order.
+        synchronized (loadLock) {
+            IndexSnapshot snapshot = (currentIndex == null) ? null : new IndexSnapshot(generation.incrementAndGet(), currentIndex);
+            currentSnapshot.set(snapshot);
+            LOG.info("Current index set, size: {}, generation: {}.", (currentIndex == null) ? 0 : currentIndex.size(), 
+                     (snapshot == null) ? 0 : snapshot.getGeneration());
+        }
     }
 }
@@ -23,6 +23,7 @@ import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Service;
 
 import se.sll.reimbursementadapter.admincareevent.jmx.StatusBean;
+import se.sll.reimbursementadapter.gvr.transform.GVRFilePreTransformer;
 import se.sll.reimbursementadapter.service.JobServiceUtilities;
 
 /**
@@ -46,6 +47,10 @@ public class GVRJobService {
     @Autowired
     private StatusBean statusBean;
 
+    /** Transforms newly fetched files ahead of the requests. */
+    @Autowired
+    private GVRFilePreTransformer preTransformer;
+
     /**
      * Invokes an externally managed script to fetch master data, and
      * then revalidates the index. <p>
@@ -91,6 +96,9 @@ public class GVRJobService {
         } finally {
             //statusBean.stop(success);
         }
+
+        // Files may also be delivered by other means than the script, so always look for new files.
+        preTransformer.prepareNewFiles();
     }
 
 }
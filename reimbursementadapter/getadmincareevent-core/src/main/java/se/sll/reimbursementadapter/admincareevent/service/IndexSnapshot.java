@@ -0,0 +1,57 @@
+/**
+ *  Copyright (c) 2013 SLL <http://sll.se/>
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package se.sll.reimbursementadapter.admincareevent.service;
+
+import se.sll.reimbursementadapter.admincareevent.model.FacilityIndex;
+
+/**
+ * One version of the code server index. A snapshot is never changed once published, a rebuilt
+ * index is published as a new snapshot with a higher generation. <p>
+ *
+ * A request keeps the snapshot it started with, so all of its care events are transformed with
+ * the same index even if the index is revalidated meanwhile.
+ *
+ * @see CodeServerMEKCacheManagerService#getSnapshot()
+ */
+public final class IndexSnapshot {
+
+    private final long generation;
+    private final FacilityIndex facilityIndex;
+
+    IndexSnapshot(long generation, FacilityIndex facilityIndex) {
+        this.generation = generation;
+        this.facilityIndex = facilityIndex;
+    }
+
+    /**
+     * @return the generation, starting at 1 and increasing each time an index is published.
+     */
+    public long getGeneration() {
+        return generation;
+    }
+
+    /**
+     * @return the index.
+     */
+    public FacilityIndex getFacilityIndex() {
+        return facilityIndex;
+    }
+
+    @Override
+    public String toString() {
+        return "IndexSnapshot [generation=" + generation + ", size=" + facilityIndex.size() + "]";
+    }
+}
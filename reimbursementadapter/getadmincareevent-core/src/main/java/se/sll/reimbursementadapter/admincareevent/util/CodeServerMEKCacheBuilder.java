@@ -15,11 +15,24 @@
  */
 package se.sll.reimbursementadapter.admincareevent.util;
 
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -41,7 +54,13 @@ import se.sll.reimbursementadapter.parser.TermState;
 /**
  * Builds HSA Mapping index. <p>
  * 
- * Uses XML parsing utilities to traverse input files.
+ * Uses XML parsing utilities to traverse input files. The MEK file is parsed on another thread
+ * while the commission type and commission files are parsed, and both are joined before the
+ * facility file is parsed, since it links to them. <p>
+ * 
+ * A builder can be used again, then only the files whose content changed since the last build
+ * are parsed again, and the facility file is always parsed to link the facilities. Use
+ * {@link #isChanged()} to find out if a build is needed at all.
  * 
  * @author Peter
  */
@@ -68,7 +87,14 @@ public class CodeServerMEKCacheBuilder {
     private String facilityFile;
     private String commissionFile;
     private String commissionTypeFile;
+    private ExecutorService executor;
     
+    /** The sources and sub-indexes of the last build, reused if the files haven't changed. */
+    private final Map<String, SourceFile> sources = new HashMap<>();
+    private HashMap<String, TermItem<CommissionTypeState>> lastCommissionTypeIndex;
+    private HashMap<String, TermItemCommission<CommissionState>> lastCommissionIndex;
+    private Map<String, List<TermItem<HSAMappingState>>> lastHSAIndex;
+
     private Date newerThan = CodeServiceXMLParser.BREAK_POINT;
 
     /**
@@ -116,6 +142,17 @@ public class CodeServerMEKCacheBuilder {
     }
    
 
+    /**
+     * Executor to parse the MEK file on (optional), default is a thread of its own for each build.
+     * 
+     * @param executor the executor, it must not be the one running the build.
+     * @return the builder.
+     */
+    public CodeServerMEKCacheBuilder withExecutor(ExecutorService executor) {
+        this.executor = executor;
+        return this;
+    }
+
     /**
      * Indicates how to filter out old data items, default setting is to keep one year old data, i.e.
      * expiration date is less than one year back in time.
@@ -133,12 +170,123 @@ public class CodeServerMEKCacheBuilder {
      * 
      * @return a map with Kombika as keys and {@link FacilityState} as value objects.
      */
-    public Map<String, TermItem<FacilityState>> build() {
+    public synchronized Map<String, TermItem<FacilityState>> build() {
 
         final HashMap<String, TermItem<FacilityState>> avdIndex = createFacilityIndex();
 
         return avdIndex;
     }
+
+    /**
+     * Returns if any of the input files has changed since the last build, by content. The content
+     * is only read if the size or modification time of a file has changed.
+     * 
+     * @return true if a build would give another index, or if there hasn't been a build.
+     */
+    public synchronized boolean isChanged() {
+        for (String file : Arrays.asList(commissionTypeFile, commissionFile, mekFile, facilityFile)) {
+            if (source(file).isChanged()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    //
+    private SourceFile source(String file) {
+        SourceFile source = sources.get(file);
+        if (source == null) {
+            source = new SourceFile(file);
+            sources.put(file, source);
+        }
+        return source;
+    }
+
+    /**
+     * The content of an input file at the last build, identified by a hash of the content.
+     */
+    static final class SourceFile {
+        private final File file;
+        /** Size, modification time and hash at the last build, null hash if none. */
+        private long builtLength;
+        private long builtModified;
+        private byte[] builtHash;
+        /** The content being built. */
+        private long pendingLength;
+        private long pendingModified;
+        private byte[] pendingHash;
+        /** The last read, to not hash the file again if it's unchanged. */
+        private long readLength = -1;
+        private long readModified;
+        private byte[] readHash;
+
+        SourceFile(String file) {
+            this.file = new File(file);
+        }
+
+        /**
+         * @return true if the content differs from the last build.
+         */
+        boolean isChanged() {
+            if (builtHash == null) {
+                return true;
+            }
+            if (file.length() == builtLength && file.lastModified() == builtModified) {
+                return false;
+            }
+            return !Arrays.equals(builtHash, hash());
+        }
+
+        /**
+         * Reads the content before it's parsed.
+         *
+         * @return true if the content differs from the last build.
+         */
+        boolean prepare() {
+            pendingHash = hash();
+            pendingLength = readLength;
+            pendingModified = readModified;
+            return builtHash == null || !Arrays.equals(builtHash, pendingHash);
+        }
+
+        /**
+         * Remembers the content read by {@link #prepare()} as built.
+         */
+        void built() {
+            builtHash = pendingHash;
+            builtLength = pendingLength;
+            builtModified = pendingModified;
+        }
+
+        //
+        private byte[] hash() {
+            final long length = file.length();
+            final long modified = file.lastModified();
+            if (readHash == null || length != readLength || modified != readModified) {
+                readHash = digest(file);
+                readLength = length;
+                readModified = modified;
+            }
+            return readHash;
+        }
+
+        //
+        private static byte[] digest(File file) {
+            try (InputStream in = new FileInputStream(file)) {
+                final MessageDigest md = MessageDigest.getInstance("SHA-256");
+                final byte[] buffer = new byte[1 << 16];
+                for (int n = in.read(buffer); n >= 0; n = in.read(buffer)) {
+                    md.update(buffer, 0, n);
+                }
+                return md.digest();
+            } catch (IOException e) {
+                // Can't be read, parsing the file will report it.
+                return new byte[0];
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+    }
     
     
     /**
@@ -167,17 +315,108 @@ public class CodeServerMEKCacheBuilder {
      * type FacilityState.
      */
     protected HashMap<String, TermItem<FacilityState>> createFacilityIndex() {
-        // Create underlying indexes to this one that will be linked in.
-        final HashMap<String, TermItemCommission<CommissionState>> samverksIndex = createCommissionIndex();
-        
-        final Map<String, List<TermItem<HSAMappingState>>> hsaIndex = createHSAIndex();
+        // Create underlying indexes to this one that will be linked in, or use the ones from the last build if the
+        // files are unchanged. The MEK file doesn't depend on the others.
+        final SourceFile commissionTypeSource = source(commissionTypeFile);
+        final SourceFile commissionSource = source(commissionFile);
+        final SourceFile mekSource = source(mekFile);
+        final SourceFile facilitySource = source(facilityFile);
+        final boolean commissionTypesChanged = commissionTypeSource.prepare() || lastCommissionTypeIndex == null;
+        final boolean commissionsChanged = commissionSource.prepare() || commissionTypesChanged || lastCommissionIndex == null;
+        final boolean mekChanged = mekSource.prepare() || lastHSAIndex == null;
+        facilitySource.prepare();
+
+        final ExecutorService mekExecutor = (!mekChanged || executor != null) ? executor : Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "codeserver-index-mek");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        final HashMap<String, TermItem<CommissionTypeState>> uppdragstypIndex;
+        final HashMap<String, TermItemCommission<CommissionState>> commissionIndex;
+        final Map<String, List<TermItem<HSAMappingState>>> hsaIndex;
+        try {
+            final Future<Map<String, List<TermItem<HSAMappingState>>>> hsaFuture = !mekChanged ? null : mekExecutor.submit(new Callable<Map<String, List<TermItem<HSAMappingState>>>>() {
+                @Override
+                public Map<String, List<TermItem<HSAMappingState>>> call() {
+                    final Map<String, List<TermItem<HSAMappingState>>> hsaIndex = createHSAIndex();
+                    for (List<TermItem<HSAMappingState>> list : hsaIndex.values()) {
+                        for (TermItem<HSAMappingState> entry : list) {
+                            entry.orderStates();
+                        }
+                    }
+                    return hsaIndex;
+                }
+            });
+            try {
+                if (commissionTypesChanged) {
+                    LOG.info("build commissionTypeIndex (UPPDRAGSTYP) from: {}", commissionTypeFile);
+                    uppdragstypIndex = createCommissionTypeIndex();
+                    LOG.info("commissionTypeIndex (UPPDRAGSTYP) size: {}", uppdragstypIndex.size());
+                } else {
+                    LOG.info("commissionTypeIndex (UPPDRAGSTYP) unchanged, size: {}", lastCommissionTypeIndex.size());
+                    uppdragstypIndex = lastCommissionTypeIndex;
+                }
+                if (commissionsChanged) {
+                    commissionIndex = createCommissionIndex(uppdragstypIndex);
+                } else {
+                    LOG.info("commissionIndex (SAMVERKS-REL) unchanged, size: {}", lastCommissionIndex.size());
+                    commissionIndex = lastCommissionIndex;
+                }
+            } catch (RuntimeException e) {
+                if (hsaFuture != null) {
+                    hsaFuture.cancel(true);
+                }
+                throw e;
+            }
+            if (hsaFuture != null) {
+                hsaIndex = join(hsaFuture);
+            } else {
+                LOG.info("hsaMappingIndex (MEK) unchanged, size: {}", lastHSAIndex.size());
+                hsaIndex = lastHSAIndex;
+            }
+        } finally {
+            if (mekExecutor != executor) {
+                mekExecutor.shutdown();
+            }
+        }
 
-        for (List<TermItem<HSAMappingState>> list : hsaIndex.values()) {
-            for (TermItem<HSAMappingState> entry : list) {
-                entry.orderStates();
+        // The facilities refer back to the commissions they link to, link copies so that the
+        // commissions can be linked again in the next build.
+        final HashMap<String, TermItemCommission<CommissionState>> samverksIndex = new HashMap<>(commissionIndex.size() * 2);
+        for (TermItemCommission<CommissionState> commission : commissionIndex.values()) {
+            final TermItemCommission<CommissionState> copy = new TermItemCommission<>();
+            copy.setId(commission.getId());
+            for (CommissionState state : commission.getStateVector()) {
+                copy.addState(state);
             }
+            samverksIndex.put(copy.getId(), copy);
         }
         
+        final HashMap<String, TermItem<FacilityState>> index = linkFacilityIndex(samverksIndex, hsaIndex);
+
+        lastCommissionTypeIndex = uppdragstypIndex;
+        lastCommissionIndex = commissionIndex;
+        lastHSAIndex = hsaIndex;
+        commissionTypeSource.built();
+        commissionSource.built();
+        mekSource.built();
+        facilitySource.built();
+
+        return index;
+    }
+
+    /**
+     * Parses the facility file and links the facilities to the commission and HSA mapping indexes.
+     *
+     * @param samverksIndex the commissions, with no back references.
+     * @param hsaIndex the HSA mappings.
+     * @return the facility index.
+     */
+    private HashMap<String, TermItem<FacilityState>> linkFacilityIndex(final HashMap<String, TermItemCommission<CommissionState>> samverksIndex,
+                                                                       final Map<String, List<TermItem<HSAMappingState>>> hsaIndex) {
         LOG.info("build facilityIndex (AVD-REL) from: {}", facilityFile);
         
         // Create a index structure
@@ -261,6 +500,27 @@ public class CodeServerMEKCacheBuilder {
         return index;
     }
 
+    /**
+     * Waits for an index built on another thread, failures are rethrown as if it had been built on this thread.
+     */
+    private static <T> T join(Future<T> future) {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            future.cancel(true);
+            throw new IllegalStateException("Interrupted while building index", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            if (e.getCause() instanceof Error) {
+                throw (Error) e.getCause();
+            }
+            throw new IllegalStateException(e.getCause());
+        }
+    }
+
     /**
      * Creates an index for mapping between Facility Id:s (Kombika) to the national HSA-id format.
      * The index is created by parsing the MEK XML File, mekFile.
@@ -339,13 +599,24 @@ public class CodeServerMEKCacheBuilder {
      * type CommissionState.
      */
     protected HashMap<String, TermItemCommission<CommissionState>> createCommissionIndex() {
-
-        final HashMap<String, TermItemCommission<CommissionState>> index = new HashMap<>();
-
         LOG.info("build commissionTypeIndex (UPPDRAGSTYP) from: {}", commissionTypeFile);
         final HashMap<String, TermItem<CommissionTypeState>> uppdragstypIndex = createCommissionTypeIndex();
         LOG.info("commissionTypeIndex (UPPDRAGSTYP) size: {}", uppdragstypIndex.size());
 
+        return createCommissionIndex(uppdragstypIndex);
+    }
+
+    /**
+     * Builds the Commission (Samverks) index with a given Commission Type (Samverkstyp) index.
+     *
+     * @param uppdragstypIndex the commission type index.
+     * @return the commission index.
+     * @see #createCommissionIndex()
+     */
+    protected HashMap<String, TermItemCommission<CommissionState>> createCommissionIndex(final HashMap<String, TermItem<CommissionTypeState>> uppdragstypIndex) {
+
+        final HashMap<String, TermItemCommission<CommissionState>> index = new HashMap<>();
+
         LOG.info("build commissionIndex (SAMVERKS-REL) from: {}", commissionFile);
 
         final CodeServiceXMLParser parser = new CodeServiceXMLParser(this.commissionFile, new CodeServiceEntryCallback() {
@@ -0,0 +1,121 @@
+/**
+ *  Copyright (c) 2013 SLL <http://sll.se/>
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package se.sll.reimbursementadapter.admincareevent.util;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+import se.sll.reimbursementadapter.admincareevent.model.FacilityIndex;
+
+/**
+ * Reads and writes the code server index in a versioned binary format, instead of Java serialization. <p>
+ *
+ * The file starts with a magic number and a version, followed by the tables of the {@link FacilityIndex}
+ * as they are: a string table and arrays of numbers that refer to strings and to each other by position,
+ * see {@link FacilityIndex#write(java.io.DataOutput)}. <p>
+ *
+ * The file is read through a buffered stream straight into the arrays that the lookups are made in, no
+ * object graph is built. The file isn't kept open, so the next write can replace it. A file in an
+ * older version is rejected, and the index is rebuilt from the code server files.
+ */
+public final class CodeServerMEKIndexFile {
+
+    /** The magic number, "GVRI". */
+    static final int MAGIC = 0x47565249;
+    /** The version of the format, 1 was the object graph. */
+    static final int VERSION = 2;
+
+    //
+    private CodeServerMEKIndexFile() {
+    }
+
+    /**
+     * Returns if a file is in this format, i.e. starts with the magic number.
+     *
+     * @param fileName the file name (full path).
+     * @return true if the file exists and is in this format.
+     */
+    public static boolean isIndexFile(final String fileName) {
+        final File file = new File(fileName);
+        if (!file.isFile() || file.length() < 8) {
+            return false;
+        }
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            return raf.readInt() == MAGIC;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Writes an index. The file is written next to the target and then moved in place, so that
+     * a reader never sees a partly written file.
+     *
+     * @param index the index.
+     * @param fileName the file name (full path).
+     * @throws IOException if the file can't be written.
+     */
+    public static void write(final FacilityIndex index, final String fileName) throws IOException {
+        final File target = new File(fileName);
+        final File tmp = new File(fileName + ".tmp");
+        try (DataOutputStream os = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp), 1 << 16))) {
+            os.writeInt(MAGIC);
+            os.writeInt(VERSION);
+            index.write(os);
+        }
+        try {
+            Files.move(tmp.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            Files.move(tmp.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    /**
+     * Reads an index.
+     *
+     * @param fileName the file name (full path).
+     * @return the index.
+     * @throws IOException if the file can't be read, isn't in this format or is in another version.
+     */
+    public static FacilityIndex read(final String fileName) throws IOException {
+        final File file = new File(fileName);
+        try (DataInputStream is = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 16))) {
+            if (is.readInt() != MAGIC) {
+                throw new IOException("Not a code server index file: " + fileName);
+            }
+            final int version = is.readInt();
+            if (version != VERSION) {
+                throw new IOException(String.format("Unsupported code server index version %d in %s", version, fileName));
+            }
+            return FacilityIndex.read(is, file.length());
+        } catch (EOFException e) {
+            throw new IOException("Truncated code server index file: " + fileName, e);
+        } catch (RuntimeException e) {
+            // IndexOutOfBoundsException and the like on a corrupt file.
+            throw new IOException("Corrupt code server index file: " + fileName, e);
+        }
+    }
+}
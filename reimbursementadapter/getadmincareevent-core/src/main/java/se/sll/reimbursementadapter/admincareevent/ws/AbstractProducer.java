@@ -16,12 +16,11 @@
 package se.sll.reimbursementadapter.admincareevent.ws;
 
 import java.io.IOException;
-import java.io.Reader;
 import java.nio.file.Path;
-import java.util.ArrayList;
 import java.util.Date;
 import java.util.GregorianCalendar;
 import java.util.List;
+import java.util.concurrent.ForkJoinPool;
 
 import javax.annotation.Resource;
 import javax.xml.bind.JAXBException;
@@ -42,14 +41,19 @@ import riv.followup.processdevelopment.reimbursement.getadministrativecareeventr
 import riv.followup.processdevelopment.reimbursement.getadministrativecareeventresponder.v1.GetAdministrativeCareEventType;
 import riv.followup.processdevelopment.reimbursement.v1.CareEventType;
 import riv.followup.processdevelopment.reimbursement.v1.DateTimePeriodType;
-import se.sll.ersmo.xml.indata.ERSMOIndata;
-import se.sll.ersmo.xml.indata.ERSMOIndata.Ersättningshändelse;
+import se.sll.reimbursementadapter.admincareevent.service.CodeServerMEKCacheManagerService;
+import se.sll.reimbursementadapter.admincareevent.service.IndexSnapshot;
 import se.sll.reimbursementadapter.exception.NotFoundException;
 import se.sll.reimbursementadapter.exception.TransformationException;
 import se.sll.reimbursementadapter.gvr.RetryBin;
+import se.sll.reimbursementadapter.gvr.reader.GVRFile;
 import se.sll.reimbursementadapter.gvr.reader.GVRFileReader;
-import se.sll.reimbursementadapter.gvr.transform.ERSMOIndataMarshaller;
+import se.sll.reimbursementadapter.gvr.transform.CareEventTransformPool;
 import se.sll.reimbursementadapter.gvr.transform.ERSMOIndataToCareEventTransformer;
+import se.sll.reimbursementadapter.gvr.transform.GVRFilePreTransformer;
+import se.sll.reimbursementadapter.gvr.transform.GVRFilePipeline;
+import se.sll.reimbursementadapter.gvr.transform.GVRFilePipelineExecutor;
+import se.sll.reimbursementadapter.gvr.transform.GVRFilePipeline.LoadedFile;
 import se.sll.reimbursementadapter.gvr.transform.TransformHelper;
 
 /**
@@ -74,6 +78,18 @@ public class AbstractProducer {
 
     @Autowired
     public RetryBin retryBin;
+
+    /** Prepares care events from newly arrived GVR files ahead of the request. */
+    @Autowired
+    public GVRFilePreTransformer preTransformer;
+
+    /** Reads and transforms GVR files ahead of the one being added to the response, or null to handle one file at a time. */
+    @Autowired
+    public GVRFilePipelineExecutor pipelineExecutor;
+
+    /** Transforms the care events within a file in parallel, or null to transform them one at a time. */
+    @Autowired
+    public CareEventTransformPool transformPool;
     
     /** Reference to the JAX-WS {@link javax.xml.ws.WebServiceContext}. */
     @Resource
@@ -113,9 +129,9 @@ public class AbstractProducer {
                                    maximumNewEvents, gvrFileReader.localPath));
 
             // List all the GVR files between the start- and end dates in the configured incoming directory
-            List<Path> pathList;
+            List<GVRFile> fileList;
             try {
-                pathList = gvrFileReader.getFileList(startDate, endDate);
+                fileList = gvrFileReader.getFiles(startDate, endDate);
             } catch (Exception e) {
                 return errorResponse("Error when listing files in GVR directory.", e);
             }
@@ -127,59 +143,74 @@ public class AbstractProducer {
                 return errorResponse(String.format("Error when loading retry bin: %s", e.getMessage()), e);
             }
 
-            // Create the response list object.
-            List<CareEventType> careEventList = new ArrayList<CareEventType>();
+            // Use the same version of the code server index for the whole request, a revalidation
+            // while the request is processed is picked up by the next one.
+            CodeServerMEKCacheManagerService cacheManager = CodeServerMEKCacheManagerService.getInstance();
+            IndexSnapshot index = (cacheManager != null) ? cacheManager.getSnapshot() : null;
+            if (cacheManager != null && index == null) {
+                return errorResponse("The code server index is not ready yet, it's being built.", null);
+            }
+
+            // Care events are added straight to the response, to not hold two lists of them.
+            GetAdministrativeCareEventResponse response = new GetAdministrativeCareEventResponse();
+            List<CareEventType> careEventList = response.getCareEvent();
             Date fileUpdatedTime = null;
             String resultCode = "OK";
             String responseComment = "All known new care events translated and returned.";
 
             // Iterate over each file and process it. (convert to RIV format and insert into response)
-            for (Path currentFile : pathList) {
-                // Get a reader for the current file, read it and then Unmarshal it into a generated ERSMOIndata object.
-                ERSMOIndata ersmoIndata;
-                try (Reader fileContent = gvrFileReader.getReaderForFile(currentFile)) {
-                    ERSMOIndataMarshaller unmarshaller = new ERSMOIndataMarshaller();
-                    ersmoIndata = unmarshaller.unmarshal(fileContent);
-                } catch (IOException e) {
-                    return errorResponse("Error when creating Reader for file: " + currentFile.getFileName(), e);
-                } 
-                catch (SAXException e) {
-                    return errorResponse("Error when loading schema file for ERSOMIndata", e);
-                } 
-                catch (JAXBException e) {
-                    return errorResponse("JAXB Error when parsing " + currentFile.getFileName() + ", is the XML Invalid?", e);
-                }
+            // The files are read and transformed ahead on worker threads, but handed out in order. Files are counted
+            // first, a file that can't fit is handed out with only the count, without reading it.
+            GVRFilePipeline pipeline = new GVRFilePipeline(gvrFileReader, preTransformer, fileList,
+                                                           (pipelineExecutor != null) ? pipelineExecutor.getExecutor() : null,
+                                                           (pipelineExecutor != null) ? pipelineExecutor.getDepth() : 1, maximumNewEvents,
+                                                           index, getTransformPool());
+            try {
+                LoadedFile loadedFile;
+                while ((loadedFile = pipeline.next(careEventList.size())) != null) {
+                    GVRFile gvrFile = loadedFile.getFile();
+                    Path currentFile = gvrFile.getPath();
+                    if (loadedFile.getReadErrorMessage() != null) {
+                        return errorResponse(loadedFile.getReadErrorMessage(), loadedFile.getReadError());
+                    }
 
-                fileUpdatedTime = gvrFileReader.getDateFromGVRFile(currentFile);
+                    fileUpdatedTime = gvrFile.getDate();
+                    int eventCount = loadedFile.getEventCount();
 
-                List<Ersättningshändelse> ershList = ersmoIndata.getErsättningshändelse();
+                    // Calculate whether we should break now or not.
 
-                // Calculate whether we should break now or not.
+                    if (eventCount + careEventList.size() > maximumNewEvents) {
+                        if (careEventList.size() == 0) {
+                            return errorResponse(String.format("ERSMOIndata from file (%s) is too big (%d events) for maximumNewEvents (%d), reconfigure it!",
+                                                               currentFile.getFileName(), eventCount, maximumNewEvents), null);
+                        }
+                        resultCode = "TRUNCATED";
+                        responseComment = String.format("Response was truncated due to hitting maximumNewEvents config at %d.", maximumNewEvents);  
+                        break;
+                    }
 
-                if (ershList.size() + careEventList.size() > maximumNewEvents) {
-                    if (careEventList.size() == 0) {
-                        return errorResponse(String.format("ERSMOIndata from file (%s) is too big (%d events) for maximumNewEvents (%d), reconfigure it!",
-                                                           currentFile.getFileName(), ershList.size(), maximumNewEvents), null);
+                    // Transform all the Ersättningshändelse within the object to CareEventType and add them to the
+                    // response.
+                    String källa = loadedFile.getKälla();
+                    if (!TransformHelper.SLL_GVR_SOURCE.equals(källa)) {
+                        return errorResponse(String.format("Unexpected källa %s when parsing %s.", källa, currentFile.getFileName()), null);
                     }
-                    resultCode = "TRUNCATED";
-                    responseComment = String.format("Response was truncated due to hitting maximumNewEvents config at %d.", maximumNewEvents);  
-                    break;
-                }
 
-                // Transform all the Ersättningshändelse within the object to CareEventType and add them to the
-                // response.
-                String källa = ersmoIndata.getKälla();
-                if (!TransformHelper.SLL_GVR_SOURCE.equals(källa)) {
-                    return errorResponse(String.format("Unexpected källa %s when parsing %s.", källa, currentFile.getFileName()), null);
-                }
+                    try {
+                        boolean addLookupFails = true;
+                        ERSMOIndataToCareEventTransformer.apply(retryBin, addLookupFails, careEventList, loadedFile.getEvents());
+                    }
+                    catch (TransformationException | DatatypeConfigurationException e) {
+                        return errorResponse(String.format("Exception when parsing %s: %s", currentFile.getFileName(), e.getMessage()), e);
+                    } 
 
-                try {
-                    boolean addLookupFails = true;
-                    ERSMOIndataToCareEventTransformer.doTransform(retryBin, addLookupFails, careEventList, ershList, fileUpdatedTime, currentFile);
+                    if (preTransformer != null) {
+                        preTransformer.release(gvrFile);
+                    }
                 }
-                catch (TransformationException | DatatypeConfigurationException e) {
-                    return errorResponse(String.format("Exception when parsing %s: %s", currentFile.getFileName(), e.getMessage()), e);
-                } 
+            }
+            finally {
+                pipeline.close();
             }
 
             if (careEventList.size() > 0) {
@@ -187,11 +218,9 @@ public class AbstractProducer {
 
                 // Add from retry bin to response. We only want to piggyback on a response with new entries because we do want to use the fileUpdateTime to not
                 // send too new care events from the retry bin (in case someone requests time intervals backwards). The ersh in the retry bin itself has faked
-                // fileUpdateTime of +1 ms from the original ersh.
+                // fileUpdateTime of +1 ms from the original ersh. Events that would fail as before aren't transformed again.
                 try {
-                    boolean addLookupFails = false;
-                    ERSMOIndataToCareEventTransformer.doTransform(retryBin, addLookupFails, careEventList, retryBin.getOld(fileUpdatedTime),
-                                                                  null, retryBin.getCurrentFile());
+                    ERSMOIndataToCareEventTransformer.retry(retryBin, careEventList, fileUpdatedTime, index, getTransformPool());
                 }
                 catch (TransformationException | DatatypeConfigurationException e) {
                     return errorResponse(String.format("Exception when parsing %s: %s", retryBin.getCurrentFile(), e.getMessage()), e);
@@ -218,11 +247,9 @@ public class AbstractProducer {
             }
             responsePeriod.setEnd(maxLastUpdatedTime);
             
-            GetAdministrativeCareEventResponse response = new GetAdministrativeCareEventResponse();
             response.setResponseTimePeriod(responsePeriod);
             response.setResultCode(resultCode);
             response.setComment(responseComment);
-            response.getCareEvent().addAll(careEventList);
             
             LOG.info(String.format("Responding with %d events from %s to %s.", 
                                    careEventList.size(), responsePeriod.getStart().normalize().toXMLFormat(), responsePeriod.getEnd().normalize().toXMLFormat()));
@@ -370,6 +397,16 @@ public class AbstractProducer {
         return status;
     }
 
+    /**
+     * Returns the pool to transform the care events within a file on, or null if they should be transformed
+     * one at a time.
+     *
+     * @return the pool or null.
+     */
+    private ForkJoinPool getTransformPool() {
+        return (transformPool != null) ? transformPool.getPool() : null;
+    }
+
     public GVRFileReader getGvrFileReader() {
         return gvrFileReader;
     }
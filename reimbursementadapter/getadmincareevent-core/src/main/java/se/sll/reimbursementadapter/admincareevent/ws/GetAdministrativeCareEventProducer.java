@@ -33,21 +33,21 @@ import riv.followup.processdevelopment.reimbursement.getadministrativecareeventr
 public class GetAdministrativeCareEventProducer extends AbstractProducer implements
         GetAdministrativeCareEventResponderInterface {
 
-    private static GetAdministrativeCareEventResponse response;
-
     @Override
     @WebResult(name = "GetAdministrativeCareEventResponse", targetNamespace = "urn:riv:followup:processdevelopment:GetAdministrativeCareEventResponder:1", partName = "parameters")
     @WebMethod(operationName = "GetAdministrativeCareEvent", action = "urn:riv:followup:processdevelopment:GetAdministrativeCareEventResponder:1:GetAdministrativeCareEvent")
     public GetAdministrativeCareEventResponse getAdministrativeCareEvent(
             @WebParam(partName = "LogicalAddress", name = "LogicalAddress", targetNamespace = "urn:riv:itintegration:registry:1", header = true) String logicalAddress,
             @WebParam(partName = "parameters", name = "GetAdministrativeCareEvent", targetNamespace = "urn:riv:followup:processdevelopment:GetAdministrativeCareEventResponder:1") final GetAdministrativeCareEventType parameters) {
+        // Only held by the request, so the care events can be collected as soon as the response is written.
+        final GetAdministrativeCareEventResponse[] response = new GetAdministrativeCareEventResponse[1];
         fulfill(new Runnable() {
             @Override
             public void run() {
-                response = getAdministrativeCareEvent0(parameters);
+                response[0] = getAdministrativeCareEvent0(parameters);
             }
         });
-        return response;
+        return response[0];
     }
 
 }
\ No newline at end of file
@@ -1,8 +1,16 @@
 package se.sll.reimbursementadapter.gvr;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
+import java.io.FilenameFilter;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.io.OutputStreamWriter;
@@ -10,13 +18,13 @@ import java.nio.charset.Charset;
 import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.Date;
 import java.util.GregorianCalendar;
-import java.util.HashMap;
-import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.List;
-import java.util.Map;
-import java.util.Map.Entry;
+import java.util.Set;
+import java.util.UUID;
 
 import javax.xml.bind.JAXBException;
 import javax.xml.datatype.DatatypeConfigurationException;
@@ -37,37 +45,99 @@ import se.sll.reimbursementadapter.gvr.transform.TransformHelper;
 /**
  * Component that keeps a list of files that triggered an error when processing,
  * but was deemed that the fault was fixable (i.e. updated code server definitions).
- * Used by the AbstractProducer to continually resend messages along with the new ones.
+ * Used by the AbstractProducer to continually resend messages along with the new ones. <p>
+ *
+ * The bin is stored as checkpoint files, "retry-bin-NNNNNNNNN.xml" with all events, each followed by
+ * a journal, "retry-bin-NNNNNNNNN.journal", with the changes made since the checkpoint. A request
+ * only appends its changes to the journal, a new checkpoint is written when the journal has grown
+ * too big. Loading reads the last checkpoint and replays its journal. The failures of the events, see
+ * {@link #setFailed(Ersättningshändelse, long, List)}, are only kept in the journals. <p>
+ *
+ * The bin is kept in memory between requests, it's only loaded again when the files have been
+ * changed by someone else, or when the changes of the last request weren't saved. The old events
+ * are kept encoded once loaded or accepted, see {@link TimeOrderedEventMap#compact()}.
  */
 @Component
 public class RetryBin
 {
     private static final Logger LOG = LoggerFactory.getLogger(RetryBin.class);
+
+    private static final Charset CHARSET = Charset.forName("ISO-8859-1");
+    private static final String CHECKPOINT_SUFFIX = ".xml";
+    private static final String JOURNAL_SUFFIX = ".journal";
+
+    /**
+     * "RBJ2", the first bytes of a journal, followed by the ID of its checkpoint and the number of
+     * records written with the checkpoint.
+     */
+    private static final int JOURNAL_MAGIC = 0x52424A32;
+
+    /** Journal records, the changes of a request are written in this order and end with a commit. */
+    private static final byte DISCARD_RECORD = 'D';
+    private static final byte REMOVE_RECORD = 'R';
+    private static final byte PUT_RECORD = 'P';
+    private static final byte RUN_RECORD = 'G';
+    private static final byte FAILURE_RECORD = 'F';
+    private static final byte COMMIT_RECORD = 'C';
+
+    /**
+     * Identifies this process in the failure records. The generations of the code server index start
+     * over in each process, so generations written by another process are not used.
+     */
+    private static final String RUN_ID = UUID.randomUUID().toString();
     
     /** Path to directory where the retry bin is stored. If empty the retry bin will be disabled. */
     @Value("${pr.gvr.io.retryBinDir:}")
     public String dir;
 
-    /** The number of files to keep in the history. */
+    /** The number of checkpoint files to keep in the history. */
     @Value("${pr.gvr.io.retryBinFileKeepCount:240}")
     public int fileKeepCount;
 
+    /** The maximum number of records in a journal before a new checkpoint is written, 0 writes one for every change. */
+    @Value("${pr.gvr.io.retryBinJournalMaxRecords:10000}")
+    public int journalMaxRecords;
+
     /** The age in days after which the files should be discarded from the bin. */
     @Value("${pr.gvr.io.discardOldDays:180}")
     public long discardOldDays;
     
     /** All Ersättningshändelser that came from the retry bin file (been there since last request). */
-    public Map<String, Ersättningshändelse> old;
+    public TimeOrderedEventMap old;
     
     /** All Ersättningshändelser that was added in this request. */
-    public Map<String, Ersättningshändelse> nev;
+    public TimeOrderedEventMap nev;
 
     public File lastLoadedFile;
-    
+
+    /**
+     * The ID of the last loaded or saved checkpoint. Each checkpoint gets a random ID, which is also
+     * written to its journal, so a journal is never replayed onto another checkpoint with the same name.
+     */
+    private String checkpointId;
+
+    /** The journal to append the changes to, or null if a new checkpoint must be written. */
+    private File journal;
+    private int journalRecords;
+    /** The records written with the checkpoint, they don't count towards journalMaxRecords. */
+    private int journalBase;
+
+    /** The changes to old since it was loaded or saved, the new ones are in nev. */
+    private final Set<String> removed = new LinkedHashSet<String>();
+    private Date discardedBefore;
+    /** The events whose failure has been set, see {@link #setFailed(Ersättningshändelse, long, List)}. */
+    private final Set<String> failed = new LinkedHashSet<String>();
+
+    /** True if old is the same as the files, as they were when last loaded or saved. */
+    private boolean resident;
+    private long checkpointModified;
+    private long checkpointLength;
+    private long journalModified;
+    private long journalLength;
 
     public RetryBin() {
-        old = new HashMap<String, Ersättningshändelse>();
-        nev = new HashMap<String, Ersättningshändelse>();
+        old = new TimeOrderedEventMap();
+        nev = new TimeOrderedEventMap();
         lastLoadedFile = null;
     }
 
@@ -83,18 +153,19 @@ public class RetryBin
         if (disabled()) return;
          
         String id = ersh.getID();
+        long fileUpdatedTime = fileUpdatedTimestamp.getTime();
         
-        Ersättningshändelse existing = old.get(id);
+        Long existing = old.getTime(id);
         if (existing != null) { 
-            if (fileUpdatedTimestamp.after(xmlCalToDate(existing.getLastUpdated()))) {
-                old.remove(id);
+            if (fileUpdatedTime > existing) {
+                old.delete(id);
                 existing = null;
             }
         }
         else {
-            existing = nev.get(id);
-            if  (existing != null && fileUpdatedTimestamp.after(xmlCalToDate(existing.getLastUpdated()))) {
-                nev.remove(id);
+            existing = nev.getTime(id);
+            if  (existing != null && fileUpdatedTime > existing) {
+                nev.delete(id);
                 existing = null;
             }
         }
@@ -112,7 +183,8 @@ public class RetryBin
     }
 
     /**
-     * Load the old {@link Ersättningshändelse} from the file system.
+     * Load the old {@link Ersättningshändelse} from the file system, i.e. the last checkpoint
+     * and the changes in its journal. Nothing is done if they are already in memory, unchanged.
      *
      * @throws SAXException XML error when parsing file contents.
      * @throws JAXBException XML error when parsing file contents.
@@ -122,27 +194,49 @@ public class RetryBin
     {
         if (disabled()) return;
 
+        File[] files = listCheckpoints();
+        if (resident && !hasChanges() && isCurrent(files)) {
+            LOG.debug(String.format("Retry bin with %d events already loaded.", old.size()));
+            compact();
+            return;
+        }
+
         nev.clear();
         old.clear();
+        clearChanges();
+        journal = null;
+        resident = false;
+        lastLoadedFile = null;
+        checkpointId = null;
         
-        File[] files = new File(dir).listFiles();
-        Arrays.sort(files);
         if (files.length > 0) {
             lastLoadedFile = files[files.length - 1];
             
-            InputStreamReader in = new InputStreamReader(new FileInputStream(lastLoadedFile), Charset.forName("ISO-8859-1").newDecoder());
+            InputStreamReader in = new InputStreamReader(new FileInputStream(lastLoadedFile), CHARSET.newDecoder());
             ERSMOIndata xml = (new ERSMOIndataMarshaller()).unmarshal(in);
             in.close();
+            checkpointId = xml.getID();
             for (Ersättningshändelse ersh : xml.getErsättningshändelse()) {
                 old.put(ersh.getID(), ersh);
             }
             LOG.info(String.format("Loaded %d events from retry bin file %s.", old.size(), lastLoadedFile.getAbsolutePath()));
+
+            // A checkpoint without an ID is from before the journals, the next save writes a new one.
+            File journalFile = journalOf(lastLoadedFile);
+            journalRecords = 0;
+            journalBase = 0;
+            if (!checkpointId.isEmpty() && (!journalFile.isFile() || replay(journalFile))) {
+                journal = journalFile;
+            }
         }
+        stamp();
+        compact();
         
     }
 
     /**
-     * Add all from new collection to old collection and save all to file.
+     * Add all from new collection to old collection and save the changes to the journal, or
+     * all to a new checkpoint file when there's no journal to append to or it has grown too big.
      *
      * @throws SAXException XML error when parsing file contents.
      * @throws JAXBException XML error when parsing file contents.
@@ -155,14 +249,51 @@ public class RetryBin
         // Accept new.
         
         int newSize = nev.size();
+        List<Ersättningshändelse> accepted = new ArrayList<Ersättningshändelse>(nev.values());
         old.putAll(nev);
         nev.clear();
+        List<TimeOrderedEventMap.Header> failures = headersOf(failed);
+
+        int changes = accepted.size() + removed.size() + ((discardedBefore == null) ? 0 : 1) + failures.size();
+        File[] files = listCheckpoints();
+        resident = false;
         
+        try {
+            if (journal == null || files.length == 0 || !journal.equals(journalOf(files[files.length - 1]))
+                    || journalRecords - journalBase + changes > journalMaxRecords) {
+                saveCheckpoint(files, newSize);
+            }
+            else if (changes == 0) {
+                LOG.info(String.format("Retry bin with %d events unchanged.", old.size()));
+            }
+            else {
+                appendJournal(accepted, failures);
+                journalRecords += changes;
+                LOG.info(String.format("Saved %d changes to retry bin journal %s, accepted %d new, %d events in bin.", 
+                                       changes, journal.getAbsolutePath(), newSize, old.size()));
+            }
+            if (journal != null) {
+                stamp();
+            }
+        }
+        catch (IOException | JAXBException | SAXException e) {
+            // The journal may end with a partial record, start over with a new checkpoint.
+            journal = null;
+            throw e;
+        }
+        finally {
+            clearChanges();
+        }
+    }
+
+    /**
+     * Saves all old to a new checkpoint file. Its journal starts with the failures of the events, as
+     * they aren't part of the checkpoint.
+     */
+    private void saveCheckpoint(File[] files, int newSize) throws SAXException, JAXBException, IOException
+    {
         // Find out new file name.
         
-        File[] files = new File(dir).listFiles();
-        Arrays.sort(files);
-        
         File saveFile;
         
         if (files.length == 0) {
@@ -175,14 +306,29 @@ public class RetryBin
         
         // Save it.
         
+        String id = UUID.randomUUID().toString();
         ERSMOIndata xml = new ERSMOIndata();
         xml.getErsättningshändelse().addAll(old.values());
         xml.setKälla(TransformHelper.SLL_GVR_SOURCE);
-        xml.setID("");
+        xml.setID(id);
         
-        OutputStreamWriter out = new OutputStreamWriter(new FileOutputStream(saveFile), Charset.forName("ISO-8859-1").newEncoder());
+        OutputStreamWriter out = new OutputStreamWriter(new FileOutputStream(saveFile), CHARSET.newEncoder());
         (new ERSMOIndataMarshaller()).marshal(xml, out);
         out.close();
+
+        lastLoadedFile = saveFile;
+        checkpointId = id;
+        journal = journalOf(saveFile);
+        journal.delete();
+        List<TimeOrderedEventMap.Header> failures = headersOf(old.keySet());
+        if (!failures.isEmpty()) {
+            try (DataOutputStream journalOut = openJournal(failures.size())) {
+                writeFailures(journalOut, failures);
+                journalOut.writeByte(COMMIT_RECORD);
+            }
+        }
+        journalRecords = failures.size();
+        journalBase = failures.size();
         
         LOG.info(String.format("Saved %d events to retry bin file %s, accepted %d new.", old.size(), saveFile.getAbsolutePath(), newSize));
         
@@ -191,9 +337,189 @@ public class RetryBin
         for (int i = 0; i < files.length - fileKeepCount + 1; ++i) {
             LOG.info(String.format("Removing excess retry bin file %s.", files[i].getAbsolutePath()));
             files[i].delete();
+            journalOf(files[i]).delete();
         }
     }
 
+    /**
+     * Opens the journal for appending, writing the header if it's empty.
+     *
+     * @param baseRecords the number of records written with the checkpoint.
+     */
+    private DataOutputStream openJournal(int baseRecords) throws IOException
+    {
+        boolean created = !journal.isFile() || journal.length() == 0;
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(journal, true)));
+        if (created) {
+            out.writeInt(JOURNAL_MAGIC);
+            out.writeUTF(checkpointId);
+            out.writeInt(baseRecords);
+        }
+        return out;
+    }
+
+    /**
+     * Appends the changes since the last load or save to the journal, ending with a commit.
+     */
+    private void appendJournal(Collection<Ersättningshändelse> accepted, List<TimeOrderedEventMap.Header> failures)
+            throws SAXException, JAXBException, IOException
+    {
+        try (DataOutputStream out = openJournal(0)) {
+            if (discardedBefore != null) {
+                out.writeByte(DISCARD_RECORD);
+                out.writeLong(discardedBefore.getTime());
+            }
+            for (String id : removed) {
+                out.writeByte(REMOVE_RECORD);
+                out.writeUTF(id);
+            }
+            if (!accepted.isEmpty()) {
+                // All the new events in one document, to not marshal them one by one.
+                ERSMOIndata xml = new ERSMOIndata();
+                xml.getErsättningshändelse().addAll(accepted);
+                xml.setKälla(TransformHelper.SLL_GVR_SOURCE);
+                xml.setID("");
+                ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                OutputStreamWriter writer = new OutputStreamWriter(bytes, CHARSET.newEncoder());
+                (new ERSMOIndataMarshaller()).marshal(xml, writer);
+                writer.close();
+                out.writeByte(PUT_RECORD);
+                out.writeInt(bytes.size());
+                bytes.writeTo(out);
+            }
+            writeFailures(out, failures);
+            out.writeByte(COMMIT_RECORD);
+        }
+    }
+
+    /**
+     * Writes the failures of events, after the ID of this process.
+     */
+    private static void writeFailures(DataOutputStream out, List<TimeOrderedEventMap.Header> failures) throws IOException
+    {
+        if (failures.isEmpty()) {
+            return;
+        }
+        out.writeByte(RUN_RECORD);
+        out.writeUTF(RUN_ID);
+        for (TimeOrderedEventMap.Header header : failures) {
+            out.writeByte(FAILURE_RECORD);
+            out.writeUTF(header.getId());
+            out.writeLong(header.getFailedGeneration());
+            out.writeShort(header.getFailedKombikas().size());
+            for (String kombika : header.getFailedKombikas()) {
+                out.writeUTF(kombika);
+            }
+        }
+    }
+
+    /**
+     * Applies the committed changes in a journal to old.
+     *
+     * @return false if the journal ends with changes that weren't committed, which are ignored,
+     *         or if it was written for another version of the checkpoint, then it's ignored.
+     */
+    private boolean replay(File journalFile) throws SAXException, JAXBException, IOException
+    {
+        int batches = 0;
+        int baseRecords = 0;
+        boolean complete = true;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(journalFile)))) {
+            if (in.readInt() != JOURNAL_MAGIC) {
+                throw new IOException(String.format("%s is not a retry bin journal.", journalFile.getAbsolutePath()));
+            }
+            if (!in.readUTF().equals(checkpointId)) {
+                // The checkpoint has been replaced.
+                LOG.warn(String.format("Ignored retry bin journal %s, it was written for another version of %s.", 
+                                       journalFile.getAbsolutePath(), lastLoadedFile.getName()));
+                return false;
+            }
+            baseRecords = in.readInt();
+            Date discard = null;
+            List<String> removes = new ArrayList<String>();
+            List<Ersättningshändelse> puts = new ArrayList<Ersättningshändelse>();
+            List<Failure> failures = new ArrayList<Failure>();
+            String run = null;
+            int records = 0;
+            try {
+                for (;;) {
+                    int type = in.read();
+                    if (type == -1) {
+                        complete = (records == 0);
+                        break;
+                    }
+                    switch (type) {
+                    case DISCARD_RECORD:
+                        discard = new Date(in.readLong());
+                        records++;
+                        break;
+                    case REMOVE_RECORD:
+                        removes.add(in.readUTF());
+                        records++;
+                        break;
+                    case PUT_RECORD:
+                        byte[] bytes = new byte[in.readInt()];
+                        in.readFully(bytes);
+                        InputStreamReader reader = new InputStreamReader(new ByteArrayInputStream(bytes), CHARSET.newDecoder());
+                        List<Ersättningshändelse> events = (new ERSMOIndataMarshaller()).unmarshal(reader).getErsättningshändelse();
+                        puts.addAll(events);
+                        records += events.size();
+                        break;
+                    case RUN_RECORD:
+                        run = in.readUTF();
+                        break;
+                    case FAILURE_RECORD:
+                        String failedId = in.readUTF();
+                        long generation = in.readLong();
+                        List<String> kombikas = new ArrayList<String>();
+                        for (int n = in.readUnsignedShort(); n > 0; n--) {
+                            kombikas.add(in.readUTF());
+                        }
+                        failures.add(new Failure(failedId, RUN_ID.equals(run) ? generation : 0L, kombikas));
+                        records++;
+                        break;
+                    case COMMIT_RECORD:
+                        if (discard != null) {
+                            discard(discard);
+                        }
+                        for (String id : removes) {
+                            old.delete(id);
+                        }
+                        for (Ersättningshändelse ersh : puts) {
+                            old.put(ersh.getID(), ersh);
+                        }
+                        for (Failure failure : failures) {
+                            old.setFailure(failure.id, failure.generation, failure.kombikas);
+                        }
+                        journalRecords += records;
+                        batches++;
+                        discard = null;
+                        removes.clear();
+                        puts.clear();
+                        failures.clear();
+                        records = 0;
+                        break;
+                    default:
+                        throw new IOException(String.format("Unknown record %d in retry bin journal %s.", type, journalFile.getAbsolutePath()));
+                    }
+                }
+            }
+            catch (EOFException e) {
+                complete = false;
+            }
+        }
+        catch (EOFException e) {
+            // Not even the header was written.
+            complete = false;
+        }
+        if (!complete) {
+            LOG.warn(String.format("Ignored uncommitted changes at the end of retry bin journal %s.", journalFile.getAbsolutePath()));
+        }
+        journalBase = Math.min(baseRecords, journalRecords);
+        LOG.info(String.format("Replayed %d saves from retry bin journal %s, %d events in bin.", batches, journalFile.getAbsolutePath(), old.size()));
+        return complete;
+    }
+
     /**
      * Return all {@link Ersättningshändelse} from the old bin who have a updated timestamp
      * before or equal to the incoming filterTimestamp parameter.
@@ -204,18 +530,64 @@ public class RetryBin
      */
     public List<Ersättningshändelse> getOld(Date filterTimestamp)
     {
-        if (disabled()) new ArrayList<Ersättningshändelse>();
+        if (disabled()) return new ArrayList<Ersättningshändelse>();
 
-        GregorianCalendar cal = new GregorianCalendar();
-        cal.setTime(filterTimestamp);
-        
-        ArrayList<Ersättningshändelse> list = new ArrayList<Ersättningshändelse>();
-        for (Ersättningshändelse ersh : old.values()) {
-           if (!ersh.getLastUpdated().toGregorianCalendar().after(cal)) {
-               list.add(ersh);
-           }
+        return old.atOrBefore(filterTimestamp.getTime());
+    }
+
+    /**
+     * Same as {@link #getOld(Date)}, but returns the headers, without decoding the events.
+     *
+     * @param filterTimestamp A {@link Date} the filter date.
+     * @return The headers of the old events updated at or before the filter date.
+     */
+    public List<TimeOrderedEventMap.Header> getOldHeaders(Date filterTimestamp)
+    {
+        if (disabled()) return new ArrayList<TimeOrderedEventMap.Header>();
+
+        return old.headersAtOrBefore(filterTimestamp.getTime());
+    }
+
+    /**
+     * Returns the old {@link Ersättningshändelse} of a header from {@link #getOldHeaders(Date)}. The
+     * event may be kept encoded, in which case it's decoded into a new object on each call.
+     *
+     * @param header The header.
+     * @return The event, or null if it has been removed or put again since the header was read.
+     */
+    public Ersättningshändelse getOld(TimeOrderedEventMap.Header header)
+    {
+        if (old.getHeader(header.getId()) != header) return null;
+
+        return old.get(header.getId());
+    }
+
+    /**
+     * Remembers that the transformation of an {@link Ersättningshändelse} in the bin failed, so that it
+     * isn't transformed again until the code server index has changed. The failure is saved with the
+     * other changes. The generation only applies to the running process, when loaded by another process
+     * only the failed kombikas are kept.
+     *
+     * @param ersh The {@link Ersättningshändelse}, nothing is done unless it's the one in the bin, or
+     *             a copy of an old one.
+     * @param generation The generation of the code server index it failed with.
+     * @param failedKombikas The kombikas whose lookups failed, empty if the failure had another cause.
+     */
+    public void setFailed(Ersättningshändelse ersh, long generation, List<String> failedKombikas)
+    {
+        String id = ersh.getID();
+        if (nev.get(id) == ersh) {
+            nev.setFailure(id, generation, failedKombikas);
+            failed.add(id);
+        }
+        else if (!nev.containsKey(id) && ersh.getLastUpdated() != null) {
+            // The old events are decoded when read, the same ID and time means the same event.
+            Long time = old.getTime(id);
+            if (time != null && time == ersh.getLastUpdated().toGregorianCalendar().getTimeInMillis()) {
+                old.setFailure(id, generation, failedKombikas);
+                failed.add(id);
+            }
         }
-        return list;
     }
 
     /**
@@ -226,8 +598,11 @@ public class RetryBin
      */
     public void remove(String id)
     {        
-        nev.remove(id);
-        old.remove(id);
+        boolean wasNew = nev.delete(id) != null;
+        boolean wasOld = old.delete(id) != null;
+        if (wasNew || wasOld) {
+            removed.add(id);
+        }
     }
 
     /**
@@ -249,22 +624,23 @@ public class RetryBin
      */
     public void discardOld(Date now)
     {
-        GregorianCalendar cal = new GregorianCalendar();
         Date date = new Date(now.getTime() - 1000L * 3600L * 24L * discardOldDays);
-        cal.setTime(date);
-        
-        Iterator<Entry<String, Ersättningshändelse>> iterator = old.entrySet().iterator();
-        int removeCount = 0;
-        while (iterator.hasNext()) {
-            Entry<String, Ersättningshändelse> entry = iterator.next();
-            GregorianCalendar entryCal = entry.getValue().getLastUpdated().toGregorianCalendar();
-            if (entryCal.before(cal)) {
-                iterator.remove();
-                ++removeCount;
-            }
+        int removeCount = discard(date);
+        if (removeCount > 0 && (discardedBefore == null || date.after(discardedBefore))) {
+            discardedBefore = date;
         }
         LOG.info(String.format("Discarded %d old entries from retry bin.", removeCount));
     }
+
+    /**
+     * Removes the old entries updated before a date.
+     *
+     * @return the number of removed entries.
+     */
+    private int discard(Date date)
+    {
+        return old.removeBefore(date.getTime());
+    }
     
     public static Date xmlCalToDate(XMLGregorianCalendar xcal) throws DatatypeConfigurationException
     {
@@ -286,4 +662,116 @@ public class RetryBin
         return dir == null || dir.trim().length() == 0;
     }
 
+    /**
+     * Encodes the old events that were added since the last time, they are decoded when retried.
+     */
+    private void compact()
+    {
+        int count = old.compact();
+        if (count > 0) {
+            LOG.info(String.format("Compacted %d events in retry bin.", count));
+        }
+    }
+
+    /**
+     * Returns true if there are changes that haven't been saved.
+     */
+    private boolean hasChanges()
+    {
+        return !nev.isEmpty() || !removed.isEmpty() || discardedBefore != null || !failed.isEmpty();
+    }
+
+    /**
+     * Remembers the current files as the ones in memory.
+     */
+    private void stamp()
+    {
+        if (lastLoadedFile != null) {
+            File journalFile = journalOf(lastLoadedFile);
+            checkpointModified = lastLoadedFile.lastModified();
+            checkpointLength = lastLoadedFile.length();
+            journalModified = journalFile.lastModified();
+            journalLength = journalFile.length();
+        }
+        resident = true;
+    }
+
+    /**
+     * Returns true if the files are the ones in memory, i.e. there's no newer checkpoint and
+     * neither the checkpoint nor the journal has been modified.
+     */
+    private boolean isCurrent(File[] files)
+    {
+        if (files.length == 0 || lastLoadedFile == null) {
+            return files.length == 0 && lastLoadedFile == null;
+        }
+        File journalFile = journalOf(lastLoadedFile);
+        return files[files.length - 1].equals(lastLoadedFile)
+                && lastLoadedFile.lastModified() == checkpointModified && lastLoadedFile.length() == checkpointLength
+                && journalFile.lastModified() == journalModified && journalFile.length() == journalLength;
+    }
+
+    private void clearChanges()
+    {
+        removed.clear();
+        discardedBefore = null;
+        failed.clear();
+    }
+
+    /**
+     * Returns the headers of the old events with the given IDs that have failed.
+     */
+    private List<TimeOrderedEventMap.Header> headersOf(Collection<String> ids)
+    {
+        List<TimeOrderedEventMap.Header> headers = new ArrayList<TimeOrderedEventMap.Header>();
+        for (String id : ids) {
+            TimeOrderedEventMap.Header header = old.getHeader(id);
+            if (header != null && (header.getFailedGeneration() != 0 || !header.getFailedKombikas().isEmpty())) {
+                headers.add(header);
+            }
+        }
+        return headers;
+    }
+
+    /**
+     * A failure read from the journal, set when its changes are committed.
+     */
+    private static final class Failure
+    {
+        private final String id;
+        private final long generation;
+        private final List<String> kombikas;
+
+        Failure(String id, long generation, List<String> kombikas)
+        {
+            this.id = id;
+            this.generation = generation;
+            this.kombikas = kombikas;
+        }
+    }
+
+    /**
+     * Returns the checkpoint files, oldest first.
+     */
+    private File[] listCheckpoints()
+    {
+        File[] files = new File(dir).listFiles(new FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String name) {
+                return name.endsWith(CHECKPOINT_SUFFIX);
+            }
+        });
+        if (files == null) {
+            return new File[0];
+        }
+        Arrays.sort(files);
+        return files;
+    }
+
+    private static File journalOf(File checkpoint)
+    {
+        String name = checkpoint.getName();
+        return new File(checkpoint.getParentFile(), name.substring(0, name.length() - CHECKPOINT_SUFFIX.length()) + JOURNAL_SUFFIX);
+    }
+
 }
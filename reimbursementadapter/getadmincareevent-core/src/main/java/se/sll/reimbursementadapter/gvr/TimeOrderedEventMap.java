@@ -0,0 +1,407 @@
+/**
+ *  Copyright (c) 2013 SLL <http://sll.se/>
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package se.sll.reimbursementadapter.gvr;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+import javax.xml.bind.JAXBException;
+import javax.xml.datatype.XMLGregorianCalendar;
+
+import org.xml.sax.SAXException;
+
+import se.sll.ersmo.xml.indata.ERSMOIndata.Ersättningshändelse;
+import se.sll.reimbursementadapter.gvr.transform.ERSMOIndataMarshaller;
+
+/**
+ * Maps {@link Ersättningshändelse} IDs to events, also ordered by their lastUpdated time. <p>
+ *
+ * The time of an event is taken when it's put, events whose time is changed must be put again.
+ * Events without a lastUpdated time come first. The events of a file share the same time, so
+ * the events are kept in one bucket per time. Querying and removing by time only visits the
+ * buckets in range, without converting any calendars. <p>
+ *
+ * Each event also has a {@link Header} with the outcome of its last failed transformation, which
+ * is reset when the event is put again. <p>
+ *
+ * Events that are left alone for a long time can be {@link #compact() compacted}, i.e. kept as
+ * deflated XML instead of object graphs. Compacting only visits the events put since the last
+ * time. The events are decoded each time they're read, so a compacted event is a new object
+ * every time, and should only be read when the object is needed. The headers are never encoded,
+ * so they can be read without decoding the events.
+ */
+public final class TimeOrderedEventMap extends AbstractMap<String, Ersättningshändelse> {
+
+    private final Map<String, Header> headers = new HashMap<>();
+
+    /** The values are either Ersättningshändelse objects or encoded events. */
+    private final NavigableMap<Long, Map<String, Object>> byTime = new TreeMap<>();
+
+    /** The IDs of the events kept as objects, i.e. those to encode when compacting. */
+    private final Set<String> unencoded = new HashSet<>();
+
+    /**
+     * The time of an event and the outcome of its last failed transformation.
+     */
+    public static final class Header {
+        private final String id;
+        private final long time;
+        private long failedGeneration;
+        private List<String> failedKombikas = Collections.emptyList();
+
+        Header(String id, long time) {
+            this.id = id;
+            this.time = time;
+        }
+
+        /** @return the event ID. */
+        public String getId() {
+            return id;
+        }
+
+        /** @return the lastUpdated time in milliseconds. */
+        public long getTime() {
+            return time;
+        }
+
+        /** @return the generation of the code server index the event last failed with, or 0 if not known. */
+        public long getFailedGeneration() {
+            return failedGeneration;
+        }
+
+        /** @return the kombikas whose lookups failed when the event last failed, can't be modified. */
+        public List<String> getFailedKombikas() {
+            return failedKombikas;
+        }
+    }
+
+    private final Set<Map.Entry<String, Ersättningshändelse>> entrySet = new AbstractSet<Map.Entry<String, Ersättningshändelse>>() {
+        @Override
+        public Iterator<Map.Entry<String, Ersättningshändelse>> iterator() {
+            return new EntryIterator();
+        }
+
+        @Override
+        public int size() {
+            return headers.size();
+        }
+    };
+
+    @Override
+    public Set<Map.Entry<String, Ersättningshändelse>> entrySet() {
+        return entrySet;
+    }
+
+    /**
+     * @return the IDs, without decoding any events. The set can't be modified.
+     */
+    @Override
+    public Set<String> keySet() {
+        return Collections.unmodifiableSet(headers.keySet());
+    }
+
+    @Override
+    public int size() {
+        return headers.size();
+    }
+
+    @Override
+    public boolean containsKey(Object id) {
+        return headers.containsKey(id);
+    }
+
+    @Override
+    public Ersättningshändelse get(Object id) {
+        final Header header = headers.get(id);
+        return (header == null) ? null : decode(byTime.get(header.time).get(id));
+    }
+
+    @Override
+    public Ersättningshändelse put(String id, Ersättningshändelse ersh) {
+        return decode(store(id, ersh, timeOf(ersh)));
+    }
+
+    @Override
+    public Ersättningshändelse remove(Object id) {
+        return decode(delete(id));
+    }
+
+    /**
+     * Same as {@link #remove(Object)}, but without decoding the removed event.
+     *
+     * @param id the event ID.
+     * @return the removed event, possibly encoded, or null if there was no such event.
+     */
+    public Object delete(Object id) {
+        final Header header = headers.remove(id);
+        if (header == null) {
+            return null;
+        }
+        final Map<String, Object> bucket = byTime.get(header.time);
+        final Object value = bucket.remove(id);
+        if (bucket.isEmpty()) {
+            byTime.remove(header.time);
+        }
+        unencoded.remove(id);
+        return value;
+    }
+
+    /**
+     * Same as {@link Map#putAll(Map)}, but keeps the headers of events from another TimeOrderedEventMap,
+     * and copies its events as they are, without decoding them.
+     */
+    @Override
+    public void putAll(Map<? extends String, ? extends Ersättningshändelse> map) {
+        if (!(map instanceof TimeOrderedEventMap)) {
+            super.putAll(map);
+            return;
+        }
+        final TimeOrderedEventMap from = (TimeOrderedEventMap) map;
+        for (Map<String, Object> bucket : from.byTime.values()) {
+            for (Map.Entry<String, Object> entry : bucket.entrySet()) {
+                final Header header = from.headers.get(entry.getKey());
+                store(entry.getKey(), entry.getValue(), header.time);
+                setFailure(entry.getKey(), header.failedGeneration, header.failedKombikas);
+            }
+        }
+    }
+
+    @Override
+    public void clear() {
+        headers.clear();
+        byTime.clear();
+        unencoded.clear();
+    }
+
+    /**
+     * @param id the event ID.
+     * @return the lastUpdated time of the event in milliseconds, or null if there's no such event.
+     */
+    public Long getTime(String id) {
+        final Header header = headers.get(id);
+        return (header == null) ? null : header.time;
+    }
+
+    /**
+     * @param id the event ID.
+     * @return the header of the event, or null if there's no such event.
+     */
+    public Header getHeader(String id) {
+        return headers.get(id);
+    }
+
+    /**
+     * Remembers that the transformation of an event failed.
+     *
+     * @param id the event ID, nothing is done if there's no such event.
+     * @param generation the generation of the code server index it failed with, or 0 if not known.
+     * @param failedKombikas the kombikas whose lookups failed, empty if the failure had another cause.
+     */
+    public void setFailure(String id, long generation, List<String> failedKombikas) {
+        final Header header = headers.get(id);
+        if (header != null) {
+            header.failedGeneration = generation;
+            header.failedKombikas = failedKombikas.isEmpty()
+                    ? Collections.<String>emptyList() : Collections.unmodifiableList(new ArrayList<>(failedKombikas));
+        }
+    }
+
+    /**
+     * @param time the time in milliseconds.
+     * @return the events updated at or before the time, oldest first.
+     */
+    public List<Ersättningshändelse> atOrBefore(long time) {
+        final ArrayList<Ersättningshändelse> list = new ArrayList<>();
+        for (Map<String, Object> bucket : byTime.headMap(time, true).values()) {
+            for (Object value : bucket.values()) {
+                list.add(decode(value));
+            }
+        }
+        return list;
+    }
+
+    /**
+     * Same as {@link #atOrBefore(long)}, but returns the headers without decoding any events.
+     *
+     * @param time the time in milliseconds.
+     * @return the headers of the events updated at or before the time, oldest first.
+     */
+    public List<Header> headersAtOrBefore(long time) {
+        final ArrayList<Header> list = new ArrayList<>();
+        for (Map<String, Object> bucket : byTime.headMap(time, true).values()) {
+            for (String id : bucket.keySet()) {
+                list.add(headers.get(id));
+            }
+        }
+        return list;
+    }
+
+    /**
+     * Removes the events updated before a time.
+     *
+     * @param time the time in milliseconds.
+     * @return the number of removed events.
+     */
+    public int removeBefore(long time) {
+        final NavigableMap<Long, Map<String, Object>> head = byTime.headMap(time, false);
+        int count = 0;
+        for (Map<String, Object> bucket : head.values()) {
+            headers.keySet().removeAll(bucket.keySet());
+            unencoded.removeAll(bucket.keySet());
+            count += bucket.size();
+        }
+        head.clear();
+        return count;
+    }
+
+    /**
+     * Encodes the events that are kept as objects, i.e. those put since the last time.
+     *
+     * @return the number of encoded events.
+     */
+    public int compact() {
+        final int count = unencoded.size();
+        for (String id : unencoded) {
+            final Map<String, Object> bucket = byTime.get(headers.get(id).time);
+            bucket.put(id, encode((Ersättningshändelse) bucket.get(id)));
+        }
+        unencoded.clear();
+        return count;
+    }
+
+    //
+    /**
+     * Puts an event, encoded or not, with a new header.
+     *
+     * @return the replaced event, possibly encoded, or null if there was no such event.
+     */
+    private Object store(String id, Object value, long time) {
+        final Object previous = delete(id);
+        headers.put(id, new Header(id, time));
+        Map<String, Object> bucket = byTime.get(time);
+        if (bucket == null) {
+            bucket = new LinkedHashMap<>();
+            byTime.put(time, bucket);
+        }
+        bucket.put(id, value);
+        if (value instanceof Ersättningshändelse) {
+            unencoded.add(id);
+        }
+        return previous;
+    }
+
+    private static long timeOf(Ersättningshändelse ersh) {
+        final XMLGregorianCalendar lastUpdated = ersh.getLastUpdated();
+        return (lastUpdated == null) ? Long.MIN_VALUE : lastUpdated.toGregorianCalendar().getTimeInMillis();
+    }
+
+    /**
+     * Deflates the XML of an event.
+     */
+    static byte[] encode(Ersättningshändelse ersh) {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream(512);
+        final Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        try (DeflaterOutputStream out = new DeflaterOutputStream(bytes, deflater)) {
+            new ERSMOIndataMarshaller().marshalEvent(ersh, out);
+        } catch (IOException | JAXBException e) {
+            throw new IllegalStateException(String.format("Failed to encode event %s: %s", ersh.getID(), e.getMessage()), e);
+        } finally {
+            deflater.end();
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * @return the event, decoded if encoded.
+     */
+    static Ersättningshändelse decode(Object value) {
+        if (!(value instanceof byte[])) {
+            return (Ersättningshändelse) value;
+        }
+        final Inflater inflater = new Inflater();
+        try (InputStream in = new InflaterInputStream(new ByteArrayInputStream((byte[]) value), inflater)) {
+            return new ERSMOIndataMarshaller().unmarshalEvent(in);
+        } catch (IOException | SAXException | JAXBException e) {
+            throw new IllegalStateException(String.format("Failed to decode event: %s", e.getMessage()), e);
+        } finally {
+            inflater.end();
+        }
+    }
+
+    /**
+     * Iterates over the buckets, decoding the events. A bucket emptied through the iterator is left
+     * in place, empty buckets are skipped.
+     */
+    private final class EntryIterator implements Iterator<Map.Entry<String, Ersättningshändelse>> {
+        private final Iterator<Map<String, Object>> buckets = byTime.values().iterator();
+        private Iterator<Map.Entry<String, Object>> entries;
+        private Iterator<Map.Entry<String, Object>> lastEntries;
+        private String lastId;
+
+        @Override
+        public boolean hasNext() {
+            while (entries == null || !entries.hasNext()) {
+                if (!buckets.hasNext()) {
+                    return false;
+                }
+                entries = buckets.next().entrySet().iterator();
+            }
+            return true;
+        }
+
+        @Override
+        public Map.Entry<String, Ersättningshändelse> next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            final Map.Entry<String, Object> entry = entries.next();
+            lastEntries = entries;
+            lastId = entry.getKey();
+            return new SimpleImmutableEntry<>(entry.getKey(), decode(entry.getValue()));
+        }
+
+        @Override
+        public void remove() {
+            if (lastEntries == null) {
+                throw new IllegalStateException();
+            }
+            lastEntries.remove();
+            headers.remove(lastId);
+            unencoded.remove(lastId);
+            lastEntries = null;
+        }
+    }
+}
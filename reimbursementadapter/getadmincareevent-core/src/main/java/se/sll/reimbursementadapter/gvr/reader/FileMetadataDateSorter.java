@@ -1,36 +0,0 @@
-/**
- *  Copyright (c) 2013 SLL <http://sll.se/>
- *
- *    Licensed under the Apache License, Version 2.0 (the "License");
- *    you may not use this file except in compliance with the License.
- *    You may obtain a copy of the License at
- *
- *        http://www.apache.org/licenses/LICENSE-2.0
- *
- *    Unless required by applicable law or agreed to in writing, software
- *    distributed under the License is distributed on an "AS IS" BASIS,
- *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
- *    See the License for the specific language governing permissions and
- *    limitations under the License.
- */
-package se.sll.reimbursementadapter.gvr.reader;
-
-import java.io.IOException;
-import java.nio.file.Files;
-import java.nio.file.Path;
-
-/**
- * Basic comparator that sorts GVR files based on the file metadata.
- */
-public class FileMetadataDateSorter implements java.util.Comparator<Path> {
-
-    @Override
-    public int compare(Path o1, Path o2) {
-        try {
-            return Files.getLastModifiedTime(o1).compareTo(Files.getLastModifiedTime(o2));
-        } catch (IOException e) {
-            // handle exception
-        }
-        return 0;
-    }
-}
@@ -16,26 +16,38 @@
 package se.sll.reimbursementadapter.gvr.reader;
 
 import java.nio.file.Path;
-import java.util.Comparator;
 import java.util.Date;
 
 /**
- * Basic comparator that sorts GVR files (Paths) based on their file name.
- * The file name is extracted from the file name using the provided GVRFileReader.
+ * A GVR file together with its timestamp (from the file name or file meta data depending on the
+ * {@link DateFilterMethod}), so that the timestamp is only resolved once per file.
  */
-public class FileNameDateSorter implements Comparator<Path> {
+public class GVRFile {
 
-    /** The {@link GVRFileReader} object to use for extracting dates from the file names. */
-    private GVRFileReader gvrFileReader;
+    private final Path path;
+    private final long timestamp;
 
-    public FileNameDateSorter(GVRFileReader gvrFileReader) {
-        this.gvrFileReader = gvrFileReader;
+    public GVRFile(Path path, long timestamp) {
+        this.path = path;
+        this.timestamp = timestamp;
+    }
+
+    public Path getPath() {
+        return path;
+    }
+
+    /** @return the GVR timestamp of the file in epoch millis. */
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    /** @return the GVR timestamp of the file as a new {@link Date}. */
+    public Date getDate() {
+        return new Date(timestamp);
     }
 
     @Override
-    public int compare(Path o1, Path o2) {
-        Date file1UpdatedTime = gvrFileReader.getDateFromGVRFile(o1);
-        Date file2UpdatedTime = gvrFileReader.getDateFromGVRFile(o2);
-        return file1UpdatedTime.compareTo(file2UpdatedTime);
+    public String toString() {
+        return path.toString();
     }
 }
@@ -0,0 +1,370 @@
+/**
+ *  Copyright (c) 2013 SLL <http://sll.se/>
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package se.sll.reimbursementadapter.gvr.reader;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.annotation.PostConstruct;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import se.sll.reimbursementadapter.util.FileObjectStore;
+
+/**
+ * Keeps a catalog of the GVR files in the incoming directory, sorted on the GVR file timestamp. <p>
+ *
+ * The catalog is synchronized incrementally with the directory: a timestamp is only resolved for
+ * files that are new or changed since the last sync, and when filtering on file names the directory
+ * isn't listed at all as long as its own last modified time is unchanged. Range queries are then
+ * answered with a binary search on the sorted timestamps. <p>
+ *
+ * The catalog is optionally persisted to disk (pr.gvr.io.catalogFile) so that a restart doesn't
+ * have to resolve every file again.
+ */
+@Component
+public class GVRFileCatalog {
+
+    /** Logger */
+    private static final Logger LOG = LoggerFactory.getLogger(GVRFileCatalog.class);
+
+    /**
+     * A directory whose last modified time is closer than this to the time of the last sync might
+     * have been changed again within the file system timestamp granularity, and is always listed.
+     */
+    static final long RACY_INTERVAL_MILLIS = 2000L;
+
+    /** Event count for files that haven't been read yet. */
+    public static final int UNKNOWN_EVENT_COUNT = -1;
+
+    /** File to persist the catalog to, set to empty to keep the catalog in memory only. */
+    @Value("${pr.gvr.io.catalogFile:}")
+    private String catalogFile;
+
+    private final FileObjectStore fileObjectStore = new FileObjectStore();
+
+    private Catalog catalog;
+
+    private boolean dirty;
+
+    /**
+     * One GVR file in the catalog.
+     */
+    public static class Entry implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        private final String fileName;
+        private final long timestamp;
+        private final long size;
+        private final long lastModified;
+        private int eventCount = UNKNOWN_EVENT_COUNT;
+
+        Entry(String fileName, long timestamp, long size, long lastModified) {
+            this.fileName = fileName;
+            this.timestamp = timestamp;
+            this.size = size;
+            this.lastModified = lastModified;
+        }
+
+        public String getFileName() {
+            return fileName;
+        }
+
+        /** @return the GVR timestamp of the file (epoch millis), from the file name or file meta data. */
+        public long getTimestamp() {
+            return timestamp;
+        }
+
+        public long getSize() {
+            return size;
+        }
+
+        public long getLastModified() {
+            return lastModified;
+        }
+
+        /** @return the number of Ersättningshändelse in the file, or {@link GVRFileCatalog#UNKNOWN_EVENT_COUNT}. */
+        public int getEventCount() {
+            return eventCount;
+        }
+
+        boolean isSameFile(BasicFileAttributes attrs) {
+            return size == attrs.size() && lastModified == attrs.lastModifiedTime().toMillis();
+        }
+    }
+
+    /**
+     * The persisted state, a catalog is only valid for the directory and filter method it was built with.
+     */
+    static class Catalog implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        private final String directory;
+        private final DateFilterMethod dateFilterMethod;
+        private final Map<String, Entry> entries = new HashMap<>();
+        private Entry[] sorted = new Entry[0];
+        private long[] timestamps = new long[0];
+        private long directoryLastModified = -1L;
+        private long lastSync = -1L;
+
+        Catalog(String directory, DateFilterMethod dateFilterMethod) {
+            this.directory = directory;
+            this.dateFilterMethod = dateFilterMethod;
+        }
+
+        boolean isFor(String directory, DateFilterMethod dateFilterMethod) {
+            return this.directory.equals(directory) && this.dateFilterMethod == dateFilterMethod;
+        }
+
+        void reindex() {
+            sorted = entries.values().toArray(new Entry[entries.size()]);
+            Arrays.sort(sorted, new Comparator<Entry>() {
+                @Override
+                public int compare(Entry o1, Entry o2) {
+                    if (o1.timestamp != o2.timestamp) {
+                        return o1.timestamp < o2.timestamp ? -1 : 1;
+                    }
+                    return o1.fileName.compareTo(o2.fileName);
+                }
+            });
+            timestamps = new long[sorted.length];
+            for (int i = 0; i < sorted.length; i++) {
+                timestamps[i] = sorted[i].timestamp;
+            }
+        }
+
+        /** @return the index of the first entry with a timestamp >= (or > if exclusive) the provided one. */
+        int lowerBound(long timestamp, boolean exclusive) {
+            int low = 0;
+            int high = timestamps.length;
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                if (timestamps[mid] < timestamp || (exclusive && timestamps[mid] == timestamp)) {
+                    low = mid + 1;
+                } else {
+                    high = mid;
+                }
+            }
+            return low;
+        }
+    }
+
+    /**
+     * Loads a previously persisted catalog, if configured.
+     */
+    @PostConstruct
+    public void init() {
+        if (isPersistent()) {
+            Catalog stored = fileObjectStore.read(catalogFile);
+            if (stored != null) {
+                LOG.info(String.format("Loaded GVR file catalog with %d files from %s.", stored.entries.size(), catalogFile));
+                this.catalog = stored;
+            }
+        }
+    }
+
+    /**
+     * Brings the catalog in sync with the provided directory. Only new or changed files are resolved.
+     *
+     * @param directory the directory with GVR files.
+     * @param reader the reader, used to resolve file name timestamps and the filter method.
+     * @param dateFilterMethod the configured date filter method.
+     * @throws IOException if the directory can't be listed.
+     */
+    public synchronized void sync(Path directory, GVRFileReader reader, DateFilterMethod dateFilterMethod) throws IOException {
+        String key = directory.toAbsolutePath().normalize().toString();
+        if (catalog == null || !catalog.isFor(key, dateFilterMethod)) {
+            catalog = new Catalog(key, dateFilterMethod);
+            dirty = true;
+        }
+
+        long syncStart = System.currentTimeMillis();
+        long directoryLastModified = Files.getLastModifiedTime(directory).toMillis();
+
+        // Entries are only added or removed when the directory itself is modified. File contents (and
+        // with that the file meta data) can change without touching the directory though.
+        if (dateFilterMethod == DateFilterMethod.FILENAME
+                && directoryLastModified == catalog.directoryLastModified
+                && catalog.lastSync - directoryLastModified > RACY_INTERVAL_MILLIS) {
+            persistIfDirty();
+            return;
+        }
+
+        Map<String, Entry> previous = new HashMap<>(catalog.entries);
+        boolean changed = false;
+        try (DirectoryStream<Path> ds = Files.newDirectoryStream(directory)) {
+            for (Path p : ds) {
+                String fileName = p.getFileName().toString();
+                if (!fileName.toLowerCase().endsWith(".xml")) {
+                    if (dateFilterMethod == DateFilterMethod.FILENAME) {
+                        LOG.warn("File " + p.toString() + " is not an XML file and will therefore be filtered away");
+                    }
+                    continue;
+                }
+                BasicFileAttributes attrs;
+                try {
+                    attrs = Files.readAttributes(p, BasicFileAttributes.class);
+                } catch (NoSuchFileException e) {
+                    // Removed while listing.
+                    continue;
+                }
+                if (!attrs.isRegularFile()) {
+                    continue;
+                }
+                Entry existing = previous.remove(fileName);
+                if (existing != null && existing.isSameFile(attrs)) {
+                    continue;
+                }
+                Entry entry = createEntry(p, fileName, attrs, existing, reader, dateFilterMethod);
+                if (entry == null) {
+                    if (existing != null) {
+                        catalog.entries.remove(fileName);
+                        changed = true;
+                    }
+                    continue;
+                }
+                catalog.entries.put(fileName, entry);
+                changed = true;
+            }
+        }
+        for (String removed : previous.keySet()) {
+            catalog.entries.remove(removed);
+            changed = true;
+        }
+        if (changed) {
+            catalog.reindex();
+        }
+        catalog.directoryLastModified = directoryLastModified;
+        catalog.lastSync = syncStart;
+        dirty |= changed;
+        persistIfDirty();
+    }
+
+    /**
+     * Lists the files with a timestamp within the provided (inclusive) period, in timestamp order.
+     *
+     * @param directory the directory that was last synced.
+     * @param fromDate the start of the period, or null for no lower limit.
+     * @param toDate the end of the period, or null for no upper limit.
+     * @return the matching files, with their timestamps.
+     */
+    public synchronized List<GVRFile> getFiles(Path directory, Date fromDate, Date toDate) {
+        List<GVRFile> response = new ArrayList<>();
+        if (catalog == null || !catalog.directory.equals(directory.toAbsolutePath().normalize().toString())) {
+            return response;
+        }
+        int from = fromDate == null ? 0 : catalog.lowerBound(fromDate.getTime(), false);
+        int to = toDate == null ? catalog.sorted.length : catalog.lowerBound(toDate.getTime(), true);
+        for (int i = from; i < to; i++) {
+            Entry entry = catalog.sorted[i];
+            response.add(new GVRFile(directory.resolve(entry.fileName), entry.timestamp));
+        }
+        return response;
+    }
+
+    /**
+     * Returns the catalog entry for a file, if it's still unchanged on disk.
+     *
+     * @param file the GVR file.
+     * @return the entry or null if the file isn't in the catalog, or has changed since it was cataloged.
+     */
+    public synchronized Entry getEntry(Path file) {
+        Entry entry = lookup(file);
+        if (entry == null) {
+            return null;
+        }
+        try {
+            return entry.isSameFile(Files.readAttributes(file, BasicFileAttributes.class)) ? entry : null;
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Records the number of Ersättningshändelse read from a cataloged file.
+     *
+     * @param file the GVR file.
+     * @param eventCount the number of events in the file.
+     */
+    public synchronized void recordEventCount(Path file, int eventCount) {
+        Entry entry = lookup(file);
+        if (entry != null && entry.eventCount != eventCount) {
+            entry.eventCount = eventCount;
+            dirty = true;
+        }
+    }
+
+    //
+    private Entry lookup(Path file) {
+        if (catalog == null || file.getFileName() == null) {
+            return null;
+        }
+        Path parent = file.toAbsolutePath().normalize().getParent();
+        if (parent == null || !catalog.directory.equals(parent.toString())) {
+            return null;
+        }
+        return catalog.entries.get(file.getFileName().toString());
+    }
+
+    //
+    private Entry createEntry(Path p, String fileName, BasicFileAttributes attrs, Entry existing,
+                              GVRFileReader reader, DateFilterMethod dateFilterMethod) {
+        long lastModified = attrs.lastModifiedTime().toMillis();
+        long timestamp;
+        if (dateFilterMethod == DateFilterMethod.METADATA) {
+            timestamp = lastModified;
+        } else if (existing != null) {
+            // Same name, same timestamp.
+            timestamp = existing.timestamp;
+        } else {
+            Date gvrFileDate = reader.getDateFromGVRFile(p);
+            if (gvrFileDate == null) {
+                LOG.warn("File " + p.toString() + " does not have a valid date and will therefore be filtered away");
+                return null;
+            }
+            timestamp = gvrFileDate.getTime();
+        }
+        return new Entry(fileName, timestamp, attrs.size(), lastModified);
+    }
+
+    //
+    private void persistIfDirty() {
+        if (dirty && isPersistent()) {
+            fileObjectStore.write(catalog, catalogFile);
+        }
+        dirty = false;
+    }
+
+    //
+    private boolean isPersistent() {
+        return catalogFile != null && catalogFile.trim().length() > 0;
+    }
+}
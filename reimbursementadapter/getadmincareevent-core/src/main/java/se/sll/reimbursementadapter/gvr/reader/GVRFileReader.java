@@ -19,7 +19,6 @@ import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.Reader;
 import java.nio.charset.Charset;
-import java.nio.file.DirectoryStream;
 import java.nio.file.FileSystems;
 import java.nio.file.Files;
 import java.nio.file.Path;
@@ -29,14 +28,19 @@ import java.security.InvalidParameterException;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
-import java.util.Collections;
 import java.util.Date;
 import java.util.List;
+import java.util.regex.Pattern;
 
 import javax.annotation.PostConstruct;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Component;
 
@@ -50,6 +54,8 @@ public class GVRFileReader {
     /** Logger */
     private static final Logger LOG = LoggerFactory.getLogger(GVRFileReader.class);
 
+    private static final String ERSÄTTNINGSHÄNDELSE = "Ersättningshändelse";
+
     /** Local path to the directory where GVR files are stored. */
     @Value("${pr.gvr.ftp.localPath:/tmp/gvr/in}")
     public String localPath;
@@ -80,9 +86,24 @@ public class GVRFileReader {
     @Value("${pr.gvr.io.retryInterval}")
     private int gvrRetryInterval;
 
+    /** Sorted catalog of the files in the configured directory. */
+    @Autowired
+    private GVRFileCatalog gvrFileCatalog;
+
     /** The configured {@link DateFilterMethod} for the class. METADATA or FILENAME. */
     private DateFilterMethod dateFilterMethod;
 
+    /** Compiled gvrTimestampExtractionRegEx. */
+    private Pattern gvrTimestampExtractionPattern;
+
+    /** SimpleDateFormat isn't thread safe, keep one gvrTimestampFormat parser per thread. */
+    private final ThreadLocal<SimpleDateFormat> gvrTimestampFormatter = new ThreadLocal<SimpleDateFormat>() {
+        @Override
+        protected SimpleDateFormat initialValue() {
+            return new SimpleDateFormat(gvrTimestampFormat);
+        }
+    };
+
     /**
      * Post construct initiator for setting the dateFilterMethod enum based on the injected contents of gvrFilterMethod.
      */
@@ -92,6 +113,7 @@ public class GVRFileReader {
             LOG.error("DateFilterMethod for filtering GVR files on dates is not set!");
         }
         this.dateFilterMethod = DateFilterMethod.valueOf(gvrFilterMethod);
+        this.gvrTimestampExtractionPattern = Pattern.compile(gvrTimestampExtractionRegEx);
     }
 
     /**
@@ -108,7 +130,7 @@ public class GVRFileReader {
      */
     public List<Path> getFileList(String fromDateString, String toDateString)
             throws InvalidParameterException, ParseException, IOException {
-        SimpleDateFormat df = new SimpleDateFormat(gvrTimestampFormat);
+        SimpleDateFormat df = gvrTimestampFormatter.get();
         Date fromDate = null;
         Date toDate = null;
         if (fromDateString != null && !fromDateString.equals("")) {
@@ -123,30 +145,37 @@ public class GVRFileReader {
 
     /**
      * Gets a list of file {@link java.nio.file.Path}s in a configured directory that has a modified
-     * date that is newer than the date parameter provided.
+     * date that is newer than the date parameter provided. The files are listed from the
+     * {@link GVRFileCatalog}, which is brought in sync with the directory first.
      *
      * @param fromDate The date to compare the files with (format: yyyyMMddHHmmss).
-     * @return a List of {@link java.nio.file.Path} objects.
+     * @return a List of {@link java.nio.file.Path} objects, sorted according to the configured DateFilterMethod.
      * @throws java.security.InvalidParameterException If the supplied date format is not valid.
      */
     public List<Path> getFileList(final Date fromDate, final Date toDate) throws IOException {
-        Path directoryToIterate = FileSystems.getDefault().getPath(localPath);
-
-        // Read all the wanted files from the current directory.
         List<Path> response = new ArrayList<>();
+        for (GVRFile file : getFiles(fromDate, toDate)) {
+            response.add(file.getPath());
+        }
+        return response;
+    }
 
-        // Create the appropriate directory filter that matches the current configuration (DateFilterMethod).
-        DirectoryStream.Filter<Path> configuresDirectoryFilter = dateFilterMethod.equals(DateFilterMethod.METADATA) ?
-                new MetadataDateRangeFilter(fromDate, toDate) :
-                new FileNameDateRangeFilter(fromDate, toDate, this);
+    /**
+     * Gets the GVR files in the configured directory with a timestamp within the provided period,
+     * together with the timestamps. The files are listed from the {@link GVRFileCatalog}, which is
+     * brought in sync with the directory first.
+     *
+     * @param fromDate The start of the period (inclusive), or null.
+     * @param toDate The end of the period (inclusive), or null.
+     * @return a List of {@link GVRFile} objects, sorted according to the configured DateFilterMethod.
+     */
+    public List<GVRFile> getFiles(final Date fromDate, final Date toDate) throws IOException {
+        Path directoryToIterate = FileSystems.getDefault().getPath(localPath);
 
-        // Create a new DirectoryStream for the configured directory and corresponding filter.
+        // Sync the catalog with the configured directory.
         for (int currentTry = 0; currentTry < gvrNumRetries; currentTry++) {
-            try(DirectoryStream<Path> ds = Files.newDirectoryStream(directoryToIterate, configuresDirectoryFilter))  {
-                for (Path p : ds) {
-                    // Add every non-filtered file to the response list.
-                    response.add(p);
-                }
+            try {
+                gvrFileCatalog.sync(directoryToIterate, this, dateFilterMethod);
                 break;
             } catch (IOException e) {
                 // If within the retry count, warn and sleep for a bit, then try again.
@@ -165,12 +194,59 @@ public class GVRFileReader {
             }
         }
 
-        // Sort the list according to the configured DateFilterMethod.
-        Collections.sort(response, dateFilterMethod.equals(DateFilterMethod.METADATA) ?
-                new FileMetadataDateSorter() :
-                new FileNameDateSorter(this));
+        // The catalog is kept sorted according to the configured DateFilterMethod.
+        return gvrFileCatalog.getFiles(directoryToIterate, fromDate, toDate);
+    }
 
-        return response;
+    /**
+     * Records the number of Ersättningshändelse read from a GVR file in the file catalog.
+     *
+     * @param file The GVR file.
+     * @param eventCount The number of Ersättningshändelse in the file.
+     */
+    public void recordEventCount(Path file, int eventCount) {
+        gvrFileCatalog.recordEventCount(file, eventCount);
+    }
+
+    /**
+     * Returns the number of Ersättningshändelse in a GVR file without unmarshalling it. The count is taken
+     * from the file catalog if the file has been read before, otherwise the elements are counted. The file
+     * isn't validated, an invalid file can still be counted.
+     *
+     * @param file The GVR file.
+     * @return The number of Ersättningshändelse, or {@link GVRFileCatalog#UNKNOWN_EVENT_COUNT} if the file can't be read.
+     */
+    public int getEventCount(Path file) {
+        GVRFileCatalog.Entry entry = gvrFileCatalog.getEntry(file);
+        if (entry != null && entry.getEventCount() != GVRFileCatalog.UNKNOWN_EVENT_COUNT) {
+            return entry.getEventCount();
+        }
+
+        int eventCount = 0;
+        try (Reader reader = getReaderForFile(file)) {
+            XMLStreamReader xmlReader = XMLInputFactory.newInstance().createXMLStreamReader(reader);
+            try {
+                // Only the children of the root element.
+                int depth = 0;
+                while (xmlReader.hasNext()) {
+                    int event = xmlReader.next();
+                    if (event == XMLStreamConstants.START_ELEMENT) {
+                        if (++depth == 2 && ERSÄTTNINGSHÄNDELSE.equals(xmlReader.getLocalName())) {
+                            eventCount++;
+                        }
+                    } else if (event == XMLStreamConstants.END_ELEMENT) {
+                        depth--;
+                    }
+                }
+            } finally {
+                xmlReader.close();
+            }
+        } catch (IOException | XMLStreamException e) {
+            LOG.warn(String.format("Unable to count events in %s: %s", file, e.toString()));
+            return GVRFileCatalog.UNKNOWN_EVENT_COUNT;
+        }
+        recordEventCount(file, eventCount);
+        return eventCount;
     }
 
     /**
@@ -183,12 +259,10 @@ public class GVRFileReader {
         Date gvrFileDate = null;
 
         if (dateFilterMethod.equals(DateFilterMethod.FILENAME)) {
-            SimpleDateFormat gvrFormat = new SimpleDateFormat(gvrTimestampFormat);
-
             String fileName = file.getFileName().toString();
-            String fileTimestamp = fileName.replaceFirst(gvrTimestampExtractionRegEx, "$1");
+            String fileTimestamp = gvrTimestampExtractionPattern.matcher(fileName).replaceFirst("$1");
             try {
-                gvrFileDate = gvrFormat.parse(fileTimestamp);
+                gvrFileDate = gvrTimestampFormatter.get().parse(fileTimestamp);
             } catch (ParseException e) {
                 LOG.error("The timestamp of format: " + gvrTimestampFormat + " could not be parsed from file name: "
                         + fileName);
@@ -0,0 +1,70 @@
+/**
+ *  Copyright (c) 2013 SLL <http://sll.se/>
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package se.sll.reimbursementadapter.gvr.transform;
+
+import java.util.concurrent.ForkJoinPool;
+
+import javax.annotation.PreDestroy;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+/**
+ * Owns the fork-join pool that the care events within a GVR file are transformed on, see
+ * {@link ERSMOIndataToCareEventTransformer#doTransform}. The pool is created on first use and shut
+ * down when the application context is closed.
+ */
+@Component
+public class CareEventTransformPool {
+
+    /**
+     * The number of threads used to transform the care events within a single GVR file. 0 or 1
+     * transforms them one at a time.
+     */
+    @Value("${pr.gvr.io.transformThreads:0}")
+    public int threads;
+
+    private ForkJoinPool pool;
+
+    private boolean shutdown;
+
+    /**
+     * Returns the pool, or null if the care events should be transformed one at a time or the pool is shut down.
+     *
+     * @return the pool or null.
+     */
+    public synchronized ForkJoinPool getPool() {
+        if (threads <= 1 || shutdown) {
+            return null;
+        }
+        if (pool == null) {
+            pool = new ForkJoinPool(threads);
+        }
+        return pool;
+    }
+
+    /**
+     * Stops the threads, interrupting any transformation in progress.
+     */
+    @PreDestroy
+    public synchronized void shutdown() {
+        shutdown = true;
+        if (pool != null) {
+            pool.shutdownNow();
+            pool = null;
+        }
+    }
+}
@@ -15,50 +15,66 @@
  */
 package se.sll.reimbursementadapter.gvr.transform;
 
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.Reader;
 import java.io.Writer;
-import java.net.URL;
 
-import javax.xml.XMLConstants;
-import javax.xml.bind.JAXBContext;
+import javax.xml.bind.JAXBElement;
 import javax.xml.bind.JAXBException;
 import javax.xml.bind.Marshaller;
-import javax.xml.bind.Unmarshaller;
-import javax.xml.validation.Schema;
-import javax.xml.validation.SchemaFactory;
+import javax.xml.namespace.QName;
+import javax.xml.transform.stream.StreamSource;
 
 import org.xml.sax.SAXException;
 
 import se.sll.ersmo.xml.indata.ERSMOIndata;
+import se.sll.ersmo.xml.indata.ERSMOIndata.Ersättningshändelse;
+import se.sll.reimbursementadapter.util.JAXBRegistry;
 
 /**
  * Unmarshals an XML Document in the form of a String to an ERSMOIndata XML Object.
  */
 public class ERSMOIndataMarshaller {
-    
-    public ERSMOIndata unmarshal(Reader src) throws SAXException, JAXBException {
-        // Read the schema from the XSD to apply the validation to the unmarshalled XML object.
-        SchemaFactory sf = SchemaFactory.newInstance(XMLConstants.W3C_XML_SCHEMA_NS_URI);
-        URL url = getClass().getClassLoader().getResource("xsd/ERSMOIndata/ERSMOIndata2.2.xsd");
-        Schema schema = sf.newSchema(url);
 
-        // Create a new JAXB Unmarshaller for ERSMOIndata and unmarshal the source XML.
-        JAXBContext jaxbContext = JAXBContext.newInstance(ERSMOIndata.class);
-        Unmarshaller unmarshaller = jaxbContext.createUnmarshaller();
-        unmarshaller.setSchema(schema);
+    /** The JAXB context and schema, shared by all instances. */
+    static final JAXBRegistry.Binding BINDING = JAXBRegistry.getBinding(ERSMOIndata.class, "xsd/ERSMOIndata/ERSMOIndata2.2.xsd");
 
-        return (ERSMOIndata) unmarshaller.unmarshal(src);
+    /** The element of a single event. */
+    private static final QName EVENT = new QName("Ersättningshändelse");
+    
+    public ERSMOIndata unmarshal(Reader src) throws SAXException, JAXBException {
+        // The unmarshaller validates against the XSD.
+        return (ERSMOIndata) BINDING.getUnmarshaller(true).unmarshal(src);
     }
 
     public void marshal(ERSMOIndata xml, Writer writer) throws SAXException, JAXBException {
-        SchemaFactory sf = SchemaFactory.newInstance(XMLConstants.W3C_XML_SCHEMA_NS_URI);
-        URL url = getClass().getClassLoader().getResource("xsd/ERSMOIndata/ERSMOIndata2.2.xsd");
-        Schema schema = sf.newSchema(url);
-        JAXBContext jaxbContext = JAXBContext.newInstance(ERSMOIndata.class);
-        Marshaller marshaller = jaxbContext.createMarshaller();
+        Marshaller marshaller = BINDING.getMarshaller();
         marshaller.setProperty("jaxb.encoding", "ISO-8859-1");
         marshaller.setProperty(Marshaller.JAXB_FORMATTED_OUTPUT, Boolean.TRUE);
-        marshaller.setSchema(schema);
         marshaller.marshal(xml, writer);
     }
+
+    /**
+     * Marshals a single event as an XML fragment in UTF-8, without validating it.
+     *
+     * @param ersh the event.
+     * @param out the stream to write to.
+     * @throws JAXBException if the event can't be marshalled.
+     */
+    public void marshalEvent(Ersättningshändelse ersh, OutputStream out) throws JAXBException {
+        BINDING.getFragmentMarshaller().marshal(new JAXBElement<>(EVENT, Ersättningshändelse.class, ersh), out);
+    }
+
+    /**
+     * Unmarshals a single event written by {@link #marshalEvent(Ersättningshändelse, OutputStream)}, without validating it.
+     *
+     * @param in the stream to read from.
+     * @return the event.
+     * @throws SAXException if the unmarshaller can't be created.
+     * @throws JAXBException if the event can't be unmarshalled.
+     */
+    public Ersättningshändelse unmarshalEvent(InputStream in) throws SAXException, JAXBException {
+        return BINDING.getUnmarshaller(false).unmarshal(new StreamSource(in), Ersättningshändelse.class).getValue();
+    }
 }
@@ -0,0 +1,252 @@
+/**
+ *  Copyright (c) 2013 SLL <http://sll.se/>
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package se.sll.reimbursementadapter.gvr.transform;
+
+import java.io.Reader;
+
+import javax.xml.bind.JAXBException;
+import javax.xml.bind.UnmarshalException;
+import javax.xml.bind.Unmarshaller;
+import javax.xml.stream.Location;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import javax.xml.stream.util.StreamReaderDelegate;
+import javax.xml.validation.Schema;
+import javax.xml.validation.ValidatorHandler;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.xml.sax.Locator;
+import org.xml.sax.SAXException;
+import org.xml.sax.helpers.AttributesImpl;
+
+import se.sll.ersmo.xml.indata.ERSMOIndata.Ersättningshändelse;
+
+/**
+ * Reads an ERSMOIndata XML document one Ersättningshändelse at a time, instead of unmarshalling
+ * the whole document like {@link ERSMOIndataMarshaller}. The unmarshaller is the one of the calling thread,
+ * so a reader must only be used by the thread that created it. <p>
+ *
+ * The whole document is still validated against the schema as it's read, an invalid document
+ * results in an {@link UnmarshalException} when the reader gets to the invalid part.
+ */
+public class ERSMOIndataStreamReader implements AutoCloseable {
+
+    /** Logger */
+    private static final Logger LOG = LoggerFactory.getLogger(ERSMOIndataStreamReader.class);
+
+    private static final String ERSÄTTNINGSHÄNDELSE = "Ersättningshändelse";
+    private static final String KÄLLA = "Källa";
+    private static final String ID = "ID";
+
+    private static final ThreadLocal<XMLInputFactory> inputFactory = new ThreadLocal<XMLInputFactory>() {
+        @Override
+        protected XMLInputFactory initialValue() {
+            return XMLInputFactory.newInstance();
+        }
+    };
+
+    private final XMLStreamReader reader;
+    private final Unmarshaller unmarshaller;
+    private final String källa;
+    private final String id;
+
+    /**
+     * Creates a reader and reads up to the first Ersättningshändelse.
+     *
+     * @param src the document, it's up to the caller to close it.
+     * @throws SAXException if the schema can't be loaded.
+     * @throws JAXBException if the document can't be read or isn't valid.
+     */
+    public ERSMOIndataStreamReader(Reader src) throws SAXException, JAXBException {
+        // Validation is done on the whole stream, not by the unmarshaller.
+        this.unmarshaller = ERSMOIndataMarshaller.BINDING.getUnmarshaller(false);
+        Schema schema = ERSMOIndataMarshaller.BINDING.getSchema();
+
+        try {
+            this.reader = new ValidatingStreamReader(inputFactory.get().createXMLStreamReader(src), schema.newValidatorHandler());
+            reader.nextTag();
+            this.källa = reader.getAttributeValue(null, KÄLLA);
+            this.id = reader.getAttributeValue(null, ID);
+            reader.next();
+        } catch (XMLStreamException e) {
+            throw new UnmarshalException(e);
+        }
+    }
+
+    /** @return the Källa attribute of the document. */
+    public String getKälla() {
+        return källa;
+    }
+
+    /** @return the ID attribute of the document. */
+    public String getId() {
+        return id;
+    }
+
+    /**
+     * Reads the next Ersättningshändelse.
+     *
+     * @return the next Ersättningshändelse or null at the end of the document.
+     * @throws JAXBException if the document can't be read or isn't valid.
+     */
+    public Ersättningshändelse next() throws JAXBException {
+        try {
+            while (reader.getEventType() != XMLStreamConstants.END_DOCUMENT) {
+                if (reader.isStartElement() && ERSÄTTNINGSHÄNDELSE.equals(reader.getLocalName())) {
+                    // Leaves the reader at the event after the end of the element.
+                    return unmarshaller.unmarshal(reader, Ersättningshändelse.class).getValue();
+                }
+                reader.next();
+            }
+            return null;
+        } catch (XMLStreamException e) {
+            throw new UnmarshalException(e);
+        }
+    }
+
+    @Override
+    public void close() {
+        try {
+            reader.close();
+        } catch (XMLStreamException e) {
+            LOG.debug("Unable to close the ERSMOIndata stream reader", e);
+        }
+    }
+
+    /**
+     * Passes every event that is read on to a schema {@link ValidatorHandler}.
+     */
+    static class ValidatingStreamReader extends StreamReaderDelegate {
+        private final ValidatorHandler validator;
+
+        ValidatingStreamReader(XMLStreamReader reader, ValidatorHandler validator) throws XMLStreamException {
+            super(reader);
+            this.validator = validator;
+            validator.setDocumentLocator(new Locator() {
+                @Override
+                public String getPublicId() {
+                    return getLocation().getPublicId();
+                }
+
+                @Override
+                public String getSystemId() {
+                    return getLocation().getSystemId();
+                }
+
+                @Override
+                public int getLineNumber() {
+                    return getLocation().getLineNumber();
+                }
+
+                @Override
+                public int getColumnNumber() {
+                    return getLocation().getColumnNumber();
+                }
+            });
+            try {
+                validator.startDocument();
+            } catch (SAXException e) {
+                throw new XMLStreamException(e.getMessage(), getLocation(), e);
+            }
+        }
+
+        @Override
+        public int next() throws XMLStreamException {
+            int event = super.next();
+            try {
+                validate(event);
+            } catch (SAXException e) {
+                Location location = getLocation();
+                throw new XMLStreamException(e.getMessage(), location, e);
+            }
+            return event;
+        }
+
+        @Override
+        public int nextTag() throws XMLStreamException {
+            int event = next();
+            while (event == CHARACTERS && isWhiteSpace() || event == CDATA && isWhiteSpace()
+                    || event == SPACE || event == PROCESSING_INSTRUCTION || event == COMMENT) {
+                event = next();
+            }
+            if (event != START_ELEMENT && event != END_ELEMENT) {
+                throw new XMLStreamException("Expected start or end tag", getLocation());
+            }
+            return event;
+        }
+
+        @Override
+        public String getElementText() throws XMLStreamException {
+            StringBuilder text = new StringBuilder();
+            int event = next();
+            while (event != END_ELEMENT) {
+                if (event == CHARACTERS || event == CDATA || event == SPACE || event == ENTITY_REFERENCE) {
+                    text.append(getText());
+                } else if (event != PROCESSING_INSTRUCTION && event != COMMENT) {
+                    throw new XMLStreamException("Unexpected event in element text", getLocation());
+                }
+                event = next();
+            }
+            return text.toString();
+        }
+
+        //
+        private void validate(int event) throws SAXException {
+            switch (event) {
+            case START_ELEMENT:
+                for (int i = 0; i < getNamespaceCount(); i++) {
+                    validator.startPrefixMapping(nullToEmpty(getNamespacePrefix(i)), nullToEmpty(getNamespaceURI(i)));
+                }
+                AttributesImpl attributes = new AttributesImpl();
+                for (int i = 0; i < getAttributeCount(); i++) {
+                    attributes.addAttribute(nullToEmpty(getAttributeNamespace(i)), getAttributeLocalName(i),
+                                            qName(getAttributePrefix(i), getAttributeLocalName(i)), "CDATA", getAttributeValue(i));
+                }
+                validator.startElement(nullToEmpty(getNamespaceURI()), getLocalName(), qName(getPrefix(), getLocalName()), attributes);
+                break;
+            case END_ELEMENT:
+                validator.endElement(nullToEmpty(getNamespaceURI()), getLocalName(), qName(getPrefix(), getLocalName()));
+                for (int i = 0; i < getNamespaceCount(); i++) {
+                    validator.endPrefixMapping(nullToEmpty(getNamespacePrefix(i)));
+                }
+                break;
+            case CHARACTERS:
+            case CDATA:
+            case SPACE:
+                validator.characters(getTextCharacters(), getTextStart(), getTextLength());
+                break;
+            case END_DOCUMENT:
+                validator.endDocument();
+                break;
+            default:
+                break;
+            }
+        }
+
+        //
+        private static String qName(String prefix, String localName) {
+            return (prefix == null || prefix.isEmpty()) ? localName : prefix + ":" + localName;
+        }
+
+        //
+        private static String nullToEmpty(String s) {
+            return (s == null) ? "" : s;
+        }
+    }
+}
@@ -16,10 +16,13 @@
 package se.sll.reimbursementadapter.gvr.transform;
 
 import java.nio.file.Path;
+import java.util.ArrayList;
 import java.util.Calendar;
 import java.util.Date;
 import java.util.GregorianCalendar;
 import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
 
 import javax.xml.datatype.DatatypeConfigurationException;
 import javax.xml.datatype.XMLGregorianCalendar;
@@ -39,14 +42,11 @@ import se.sll.ersmo.xml.indata.VisteFöre;
 import se.sll.ersmo.xml.indata.Vkhform;
 import se.sll.ersmo.xml.indata.Vårdkontakt;
 import se.sll.ersmo.xml.indata.Åtgärder;
-import se.sll.reimbursementadapter.admincareevent.model.CommissionState;
-import se.sll.reimbursementadapter.admincareevent.model.FacilityState;
-import se.sll.reimbursementadapter.admincareevent.model.HSAMappingState;
-import se.sll.reimbursementadapter.admincareevent.model.TermItemCommission;
 import se.sll.reimbursementadapter.admincareevent.service.CodeServerMEKCacheManagerService;
+import se.sll.reimbursementadapter.admincareevent.service.IndexSnapshot;
 import se.sll.reimbursementadapter.exception.TransformationException;
 import se.sll.reimbursementadapter.gvr.RetryBin;
-import se.sll.reimbursementadapter.parser.TermItem;
+import se.sll.reimbursementadapter.gvr.TimeOrderedEventMap;
 
 /**
  * Transforms a single ERSMOIndata XML object to a number of CareEventType XML objects.
@@ -56,12 +56,54 @@ public class ERSMOIndataToCareEventTransformer {
     
     private static final Logger LOG = LoggerFactory.getLogger(ERSMOIndataToCareEventTransformer.class);
 
+    /** The number of care events below which a transformation isn't split any further. */
+    static final int PARALLEL_THRESHOLD = 256;
+
     private enum Status {
         LOOKUP_FAIL,
         TEST_SAMVERKS,
         OK
     }
     
+    /**
+     * The outcome of transforming a single {@link se.sll.ersmo.xml.indata.ERSMOIndata.Ersättningshändelse}, before
+     * it has been applied to the retry bin and response.
+     */
+    public static class TransformedEvent {
+        private final String ershId;
+        private final Ersättningshändelse ersh;
+        private final CareEventType careEvent;
+        private final Status status;
+        private final Date fileUpdatedTime;
+        private final long generation;
+        private final List<String> failedKombikas;
+
+        TransformedEvent(Ersättningshändelse ersh, CareEventType careEvent, Status status, Date fileUpdatedTime,
+                         long generation, List<String> failedKombikas) {
+            this.ershId = ersh.getID();
+            // Only lookup fails need the source, to be put in the retry bin.
+            this.ersh = (status == Status.LOOKUP_FAIL) ? ersh : null;
+            this.careEvent = careEvent;
+            this.status = status;
+            this.fileUpdatedTime = fileUpdatedTime;
+            this.generation = generation;
+            this.failedKombikas = failedKombikas;
+        }
+
+        public String getErshId() {
+            return ershId;
+        }
+
+        /** @return the source Ersättningshändelse for a lookup fail, otherwise null. */
+        public Ersättningshändelse getErsh() {
+            return ersh;
+        }
+
+        public CareEventType getCareEvent() {
+            return careEvent;
+        }
+    }
+
     /**
      * Transforms a list of {@link se.sll.ersmo.xml.indata.ERSMOIndata.Ersättningshändelse} (taken from
      * a single {@link se.sll.ersmo.xml.indata.ERSMOIndata} object) to a list of
@@ -82,43 +124,278 @@ public class ERSMOIndataToCareEventTransformer {
                                    List<Ersättningshändelse> sourceList, Date fileUpdatedTime, Path currentFile) 
             throws TransformationException, DatatypeConfigurationException 
     {
-        ObjectFactory of = new ObjectFactory();
+        doTransform(retryBin, addLookupFails, responseList, sourceList, fileUpdatedTime, currentFile, null);
+    }
+
+    /**
+     * Same as {@link #doTransform(RetryBin, Boolean, List, List, Date, Path)}, but transforms the care events on
+     * a fork-join pool. The result is the same as when transforming sequentially.
+     *
+     * @param pool The pool to transform on, or null to transform sequentially.
+     * @see #doTransform(RetryBin, Boolean, List, List, Date, Path)
+     */
+    public static void doTransform(RetryBin retryBin, Boolean addLookupFails, List<CareEventType> responseList, 
+                                   List<Ersättningshändelse> sourceList, Date fileUpdatedTime, Path currentFile, ForkJoinPool pool) 
+            throws TransformationException, DatatypeConfigurationException 
+    {
+        doTransform(retryBin, addLookupFails, responseList, sourceList, fileUpdatedTime, currentFile, null, pool);
+    }
+
+    /**
+     * Same as {@link #doTransform(RetryBin, Boolean, List, List, Date, Path, ForkJoinPool)}, but with a given
+     * version of the code server index.
+     *
+     * @param index The index snapshot to look up codes in, or null to use the current one.
+     * @param pool The pool to transform on, or null to transform sequentially.
+     * @see #doTransform(RetryBin, Boolean, List, List, Date, Path)
+     */
+    public static void doTransform(RetryBin retryBin, Boolean addLookupFails, List<CareEventType> responseList, 
+                                   List<Ersättningshändelse> sourceList, Date fileUpdatedTime, Path currentFile, 
+                                   IndexSnapshot index, ForkJoinPool pool) 
+            throws TransformationException, DatatypeConfigurationException 
+    {
+        LOG.info(String.format("Transforming file %s with %d care events updated at %s.", currentFile, sourceList.size(), fileUpdatedTime));
+        apply(retryBin, addLookupFails, responseList, transform(sourceList, fileUpdatedTime, currentFile, index, pool));
+    }
 
-        // Instantiate the Cache Manager.
-        CodeServerMEKCacheManagerService cacheManager = CodeServerMEKCacheManagerService.getInstance();
+    /**
+     * Transforms the events in the retry bin that were updated at or before a time again, adding the
+     * ones that now succeed to the response. Events are skipped if they are known to fail again, i.e. if
+     * they failed with the same generation of the code server index, or if a kombika they failed on is still unknown.
+     *
+     * @param retryBin The retry bin.
+     * @param responseList The list to add transformed Ersättningshändelse objects to.
+     * @param fileUpdatedTime The update time of the last file in the response, newer events are left in the bin.
+     * @param index The index snapshot to look up codes in, or null to use the current one.
+     * @param pool The pool to transform on, or null to transform sequentially.
+     * @throws TransformationException
+     * @throws DatatypeConfigurationException
+     */
+    public static void retry(RetryBin retryBin, List<CareEventType> responseList, Date fileUpdatedTime,
+                             IndexSnapshot index, ForkJoinPool pool) 
+            throws TransformationException, DatatypeConfigurationException 
+    {
+        if (index == null) {
+            index = CodeServerMEKCacheManagerService.getInstance().getSnapshot();
+        }
+        KombikaResolver resolver = KombikaResolver.forIndex(index);
+
+        // Only the events to transform are decoded.
+        List<TimeOrderedEventMap.Header> old = retryBin.getOldHeaders(fileUpdatedTime);
+        List<Ersättningshändelse> sourceList = new ArrayList<>();
+        for (TimeOrderedEventMap.Header header : old) {
+            boolean unchanged = header.getFailedGeneration() == index.getGeneration();
+            for (String kombika : header.getFailedKombikas()) {
+                unchanged |= !resolver.isKnown(kombika);
+            }
+            Ersättningshändelse ersh = unchanged ? null : retryBin.getOld(header);
+            if (ersh != null) {
+                sourceList.add(ersh);
+            }
+        }
+        LOG.info(String.format("Retrying %d of %d care events in retry bin with index generation %d, the others would fail as before.", 
+                               sourceList.size(), old.size(), index.getGeneration()));
         
+        boolean addLookupFails = false;
+        doTransform(retryBin, addLookupFails, responseList, sourceList, null, retryBin.getCurrentFile(), index, pool);
+    }
+
+    /**
+     * Transforms a list of {@link se.sll.ersmo.xml.indata.ERSMOIndata.Ersättningshändelse} without touching
+     * the retry bin, the result is applied with {@link #apply(RetryBin, Boolean, List, List)}. This makes it
+     * possible to do the transformation ahead of the request.
+     *
+     * @param sourceList The list of {@link se.sll.ersmo.xml.indata.ERSMOIndata.Ersättningshändelse} to be transformed.
+     * @param fileUpdatedTime The update time for the file the ERSMOIndata was read from.
+     * @param currentFile The current file that the ERSMOIndata originates from. Used for logging.
+     * @return The transformed care events in source order, care events without a Vårdkontakt are left out.
+     * @throws TransformationException
+     */
+    public static List<TransformedEvent> transform(List<Ersättningshändelse> sourceList, Date fileUpdatedTime, Path currentFile)
+            throws TransformationException
+    {
         LOG.info(String.format("Transforming file %s with %d care events updated at %s.", currentFile, sourceList.size(), fileUpdatedTime));
+        return transform(sourceList, fileUpdatedTime, currentFile, null);
+    }
 
+    /**
+     * Transforms a list of {@link se.sll.ersmo.xml.indata.ERSMOIndata.Ersättningshändelse} without touching
+     * the retry bin, optionally split over a fork-join pool. The result is merged back in source order, and if
+     * several care events fail the exception for the first one is thrown, just like when transforming sequentially.
+     *
+     * @param sourceList The list of {@link se.sll.ersmo.xml.indata.ERSMOIndata.Ersättningshändelse} to be transformed.
+     * @param fileUpdatedTime The update time for the file the ERSMOIndata was read from.
+     * @param currentFile The current file that the ERSMOIndata originates from. Used for logging.
+     * @param pool The pool to transform on, or null to transform sequentially.
+     * @return The transformed care events in source order, care events without a Vårdkontakt are left out.
+     * @throws TransformationException
+     */
+    public static List<TransformedEvent> transform(List<Ersättningshändelse> sourceList, Date fileUpdatedTime, Path currentFile,
+                                                   ForkJoinPool pool) throws TransformationException
+    {
+        return transform(sourceList, fileUpdatedTime, currentFile, null, pool);
+    }
+
+    /**
+     * Same as {@link #transform(List, Date, Path, ForkJoinPool)}, but with a given version of the code server index.
+     *
+     * @param index The index snapshot to look up codes in, or null to use the current one.
+     * @param pool The pool to transform on, or null to transform sequentially.
+     * @see #transform(List, Date, Path, ForkJoinPool)
+     */
+    public static List<TransformedEvent> transform(List<Ersättningshändelse> sourceList, Date fileUpdatedTime, Path currentFile,
+                                                   IndexSnapshot index, ForkJoinPool pool) throws TransformationException
+    {
+        if (index == null) {
+            index = CodeServerMEKCacheManagerService.getInstance().getSnapshot();
+        }
+        // Lookups are remembered for the index, as most care events share kombika and dates.
+        KombikaResolver resolver = KombikaResolver.forIndex(index);
+
+        if (pool == null || sourceList.size() <= PARALLEL_THRESHOLD) {
+            return transform(resolver, sourceList, 0, sourceList.size(), fileUpdatedTime, currentFile);
+        }
+        try {
+            return pool.invoke(new TransformTask(resolver, sourceList, 0, sourceList.size(), fileUpdatedTime, currentFile));
+        } catch (TransformFailure e) {
+            throw e.failure;
+        } catch (RuntimeException e) {
+            // The pool may rethrow a copy of an exception thrown on another thread.
+            if (e.getCause() != null && e.getCause().getClass() == e.getClass()) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw e;
+        }
+    }
+
+    //
+    private static List<TransformedEvent> transform(KombikaResolver resolver, List<Ersättningshändelse> sourceList,
+                                                    int from, int to, Date fileUpdatedTime, Path currentFile) throws TransformationException
+    {
+        ObjectFactory of = new ObjectFactory();
+        List<TransformedEvent> transformed = new ArrayList<>(to - from);
+        for (Ersättningshändelse ersh : sourceList.subList(from, to)) {
+            TransformedEvent event = transform(of, resolver, ersh, fileUpdatedTime, currentFile);
+            if (event != null) {
+                transformed.add(event);
+            }
+        }
+        return transformed;
+    }
+
+    /**
+     * Transforms a range of the source list, splitting it in halves until it's small enough.
+     */
+    @SuppressWarnings("serial")
+    private static class TransformTask extends RecursiveTask<List<TransformedEvent>> {
+        private final KombikaResolver resolver;
+        private final List<Ersättningshändelse> sourceList;
+        private final int from;
+        private final int to;
+        private final Date fileUpdatedTime;
+        private final Path currentFile;
+
+        TransformTask(KombikaResolver resolver, List<Ersättningshändelse> sourceList, int from, int to,
+                      Date fileUpdatedTime, Path currentFile) {
+            this.resolver = resolver;
+            this.sourceList = sourceList;
+            this.from = from;
+            this.to = to;
+            this.fileUpdatedTime = fileUpdatedTime;
+            this.currentFile = currentFile;
+        }
+
+        @Override
+        protected List<TransformedEvent> compute() {
+            if (to - from <= PARALLEL_THRESHOLD) {
+                try {
+                    return transform(resolver, sourceList, from, to, fileUpdatedTime, currentFile);
+                } catch (TransformationException e) {
+                    throw new TransformFailure(e);
+                }
+            }
+            int mid = (from + to) >>> 1;
+            TransformTask first = new TransformTask(resolver, sourceList, from, mid, fileUpdatedTime, currentFile);
+            TransformTask second = new TransformTask(resolver, sourceList, mid, to, fileUpdatedTime, currentFile);
+            first.fork();
+            List<TransformedEvent> secondResult;
+            try {
+                secondResult = second.compute();
+            } catch (RuntimeException e) {
+                // A failure in the first half takes precedence, as it would have been thrown first.
+                first.join();
+                throw e;
+            }
+            List<TransformedEvent> result = first.join();
+            result.addAll(secondResult);
+            return result;
+        }
+    }
+
+    /**
+     * Carries a {@link TransformationException} out of a {@link TransformTask}. There is deliberately no
+     * constructor taking a Throwable, so that the pool rethrows the instance itself.
+     */
+    @SuppressWarnings("serial")
+    private static class TransformFailure extends RuntimeException {
+        private final TransformationException failure;
+
+        TransformFailure(TransformationException failure) {
+            super(failure.getMessage());
+            this.failure = failure;
+        }
+    }
+
+    //
+    private static TransformedEvent transform(ObjectFactory of, KombikaResolver resolver, Ersättningshändelse ersh,
+                                              Date fileUpdatedTime, Path currentFile) throws TransformationException
+    {
+        if (ersh.getHändelseklass().getVårdkontakt() == null) {
+            return null;
+        }
+        CareEventType careEvent = of.createCareEventType();
+        List<String> failedKombikas = new ArrayList<>(2);
+        Status status = populateCareEventFromErsättningshändelse(of, careEvent, ersh, resolver, fileUpdatedTime, currentFile, failedKombikas);
+        return new TransformedEvent(ersh, careEvent, status, fileUpdatedTime, resolver.getGeneration(), failedKombikas);
+    }
+
+    /**
+     * Adds the result of {@link #transform(List, Date, Path)} to the response and updates the retry bin.
+     *
+     * @param retryBin The retry bin to add or remove Ersättningshändelse objects from.
+     * @param addLookupFails If true lookup fails are added to the response and retry bin. When processing the retry bin, this will be set to false. 
+     * @param responseList The list to add transformed Ersättningshändelse objects to.
+     * @param transformed The transformed care events.
+     * @throws TransformationException
+     * @throws DatatypeConfigurationException
+     */
+    public static void apply(RetryBin retryBin, Boolean addLookupFails, List<CareEventType> responseList,
+                             List<TransformedEvent> transformed) throws TransformationException, DatatypeConfigurationException
+    {
         int lookupFailCount = 0;
         int testSamverksCount = 0;
         int okCount = 0;
 
-        for (Ersättningshändelse ersh : sourceList) {
-            if (ersh.getHändelseklass().getVårdkontakt() != null) {
-                
-                CareEventType careEvent = of.createCareEventType();
-                Status status = populateCareEventFromErsättningshändelse(of, careEvent, ersh, cacheManager, fileUpdatedTime, currentFile);
-                
-                switch (status) {
-                case LOOKUP_FAIL:
-                    ++lookupFailCount;
-                    if (addLookupFails) {
-                        retryBin.put(ersh, fileUpdatedTime); 
-                        responseList.add(careEvent);
-                    }
-                    break;
-                case TEST_SAMVERKS:
-                    ++testSamverksCount;
-                    break;
-                case OK:
-                    ++okCount;
-                    retryBin.remove(ersh.getID());
-                    responseList.add(careEvent);
-                    break;
-                default:
-                    fatal("This is a bug.");
+        for (TransformedEvent event : transformed) {
+            switch (event.status) {
+            case LOOKUP_FAIL:
+                ++lookupFailCount;
+                if (addLookupFails) {
+                    retryBin.put(event.ersh, event.fileUpdatedTime); 
+                    responseList.add(event.careEvent);
                 }
-                
+                retryBin.setFailed(event.ersh, event.generation, event.failedKombikas);
+                break;
+            case TEST_SAMVERKS:
+                ++testSamverksCount;
+                break;
+            case OK:
+                ++okCount;
+                retryBin.remove(event.ershId);
+                responseList.add(event.careEvent);
+                break;
+            default:
+                fatal("This is a bug.");
             }
         }
         
@@ -136,18 +413,20 @@ public class ERSMOIndataToCareEventTransformer {
      * @param careEvent The {@link riv.followup.processdevelopment.reimbursement.v1.CareEventType} to populate.
      *
      * @param ersh The {@link se.sll.ersmo.xml.indata.ERSMOIndata.Ersättningshändelse} to transform from.
-     * @param cacheManager The {@link se.sll.reimbursementadapter.admincareevent.service.CodeServerMEKCacheManagerService}
-     *                     to use for looking up additional information not available in the source data.
+     * @param resolver The lookups in the {@link se.sll.reimbursementadapter.admincareevent.service.CodeServerMEKCacheManagerService}
+     *                 index to use for looking up additional information not available in the source data.
      * @param updatedTime The update time for the file the ERSMOIndata was read from. This is used
      *                    for setting the "lastUpdatedTime" parameter in the transformation, which
      *                    is not available in the source data.
      * @param currentFile The current file that the ersmoIndata originates from. Used for logging.
+     * @param failedKombikas The list to add the kombikas whose lookups failed to.
      * @return The status of the transformation.
      * @throws TransformationException
      */
     static Status populateCareEventFromErsättningshändelse(ObjectFactory of, CareEventType careEvent, ERSMOIndata.Ersättningshändelse ersh,
-                                                           CodeServerMEKCacheManagerService cacheManager,
-                                                           Date updatedTime, Path currentFile) throws TransformationException 
+                                                           KombikaResolver resolver,
+                                                           Date updatedTime, Path currentFile, List<String> failedKombikas)
+            throws TransformationException 
     {
         Status status = Status.OK;
         
@@ -163,8 +442,8 @@ public class ERSMOIndataToCareEventTransformer {
 
             String kombika = ersh.getSlutverksamhet();
             
-            TermItem<FacilityState> avd = cacheManager.getCurrentIndex().get(kombika);
-            if (avd == null) {
+            boolean known = resolver.isKnown(kombika);
+            if (!known) {
             	// #246 Add reason for failure to the ersh.
                 status = Status.LOOKUP_FAIL;
             }
@@ -174,35 +453,38 @@ public class ERSMOIndataToCareEventTransformer {
             //
             
             Date stateDate = null;
-            FacilityState currentAvd = null;
+            KombikaResolver.Facility currentAvd = null;
             
             // Start using the Startdatum from the Ersättningshändelse. 
             stateDate = getLookupDate(ersh.getStartdatum());
             
-            if (avd != null) {
-                currentAvd = avd.getState(stateDate);
+            if (known) {
+                currentAvd = resolver.getFacility(kombika, stateDate);
             }
             
-            if (avd != null && currentAvd == null) {
+            if (known && currentAvd == null) {
                 // Try to use the dates in activities.
                 Åtgärder åtgärder = ersh.getHändelseklass().getVårdkontakt().getÅtgärder();
                 if (åtgärder != null) {
                     for (Åtgärder.Åtgärd åtgärd : åtgärder.getÅtgärd()) {
                         stateDate = getLookupDate(åtgärd.getDatum());
-                        currentAvd = avd.getState(stateDate);
+                        currentAvd = resolver.getFacility(kombika, stateDate);
                         if (currentAvd != null) break;
                     }
                 }
             }
             
-            if (avd != null && currentAvd == null && ersh.getSlutdatum() != null) {
+            if (known && currentAvd == null && ersh.getSlutdatum() != null) {
                 // Try with Slutdatum from the Ersättningshändelse.
                 stateDate = getLookupDate(ersh.getSlutdatum());
-                currentAvd = avd.getState(stateDate);
+                currentAvd = resolver.getFacility(kombika, stateDate);
             }
             
             if (currentAvd == null) {
                 status = Status.LOOKUP_FAIL;
+                if (kombika != null) {
+                    failedKombikas.add(kombika);
+                }
             }
         
             //
@@ -216,47 +498,23 @@ public class ERSMOIndataToCareEventTransformer {
             }
 
             // Care Unit
-            String careUnitHSAid = TransformHelper.createCareUnitStructure(ersh, currentFile, careEvent, 
-                                                                           ershId, stateDate, currentAvd);
+            String careUnitHSAid = TransformHelper.createCareUnitStructure(ersh, careEvent, currentAvd);
 
             // Set up mapping for the contact referral care unit to HSA-id.
             String referredFromHsaId = null;
             RemissFöre referralBefore = vårdkontakt.getRemissFöre();
             if (referralBefore != null) {
-                TermItem<FacilityState> mappedFacilitiesForReferral = cacheManager.getCurrentIndex().get(referralBefore.getKod());
+                KombikaResolver.Referral referral = resolver.getReferral(referralBefore.getKod(), stateDate);
 
-                if (mappedFacilitiesForReferral != null) {
-                    
-                    FacilityState facilityState = mappedFacilitiesForReferral.getState(stateDate);
-                    if (facilityState != null) {
-                        TermItem<HSAMappingState> hsaMapping = facilityState.getHSAMapping();
-                        if (hsaMapping != null) {
-                            HSAMappingState hsaMappingState = hsaMapping.getState(stateDate);
-                            if (hsaMappingState != null) {
-                                referredFromHsaId = hsaMappingState.getHsaId();
-                            }
-                        }
-                    }
-                    
-                    if (referredFromHsaId == null) {
-                        // Try with another state date for the referral kombika. The kombika may have expired but was valid at the time of the referral.
-                        facilityState = mappedFacilitiesForReferral.getStateBefore(stateDate);
-                        if (facilityState != null) {
-                            TermItem<HSAMappingState> hsaMapping = facilityState.getHSAMapping();
-                            if (hsaMapping != null) {
-                                HSAMappingState hsaMappingState = hsaMapping.getStateBefore(stateDate);
-                                if (hsaMappingState != null) {
-                                    referredFromHsaId = hsaMappingState.getHsaId();
-                                }
-                            }
-                        }
-                    }
+                if (referral.isKnown()) {
+                    referredFromHsaId = referral.getHsaId();
                     
                     if (referredFromHsaId != null) {
                         careEvent.setReferredFrom(referredFromHsaId);
                     }
                     else {
                         status = Status.LOOKUP_FAIL;
+                        failedKombikas.add(referralBefore.getKod());
                     }
                 }
             }
@@ -268,31 +526,21 @@ public class ERSMOIndataToCareEventTransformer {
             Vkhform händelseform = vårdkontakt.getHändelseform();
             if (currentAvd != null) {
                 // Loop over commissions (SAMVERKS).
-                for (TermItemCommission<CommissionState> samverks : currentAvd.getCommissions()) {
-
-                    if (samverks == null) {
-                        continue;
-                    }
-                    CommissionState currentSamverks = samverks.getState(stateDate);
-
-                    if (currentSamverks == null) {
-                        continue;
-                    }
-
-                    if (currentSamverks.getFollowsTemplate() != null && currentSamverks.getFollowsTemplate() == false) {
+                for (KombikaResolver.Commission samverks : currentAvd.getCommissions()) {
+                    if (samverks.getFollowsTemplate() != null && samverks.getFollowsTemplate() == false) {
                         // This care event uses a test SAMVERKS, skip it.
                         return Status.TEST_SAMVERKS;
                     }
                     
-                    String assignmentType = currentSamverks.getAssignmentType();
+                    String assignmentType = samverks.getAssignmentType();
                     if ("06".equals(assignmentType) || "07".equals(assignmentType) || "08".equals(assignmentType)) {
                         // Lookup the payer organization. Extracted from getCareContractFromState due to number of parameters.
-                        String payerOrganization = TransformHelper.getPayerOrganization(händelseform, stateDate, currentAvd, samverks, 
+                        String payerOrganization = TransformHelper.getPayerOrganization(resolver, händelseform, stateDate, currentAvd, samverks, 
                                                                                         TransformHelper.SLL_CAREGIVER_HSA_ID, referredFromHsaId,
                                                                                         kombika, ershId, currentFile);
 
                         // Map the current commission information to a CareContractType and add it to the currentEvent list.
-                        CareContractType currentContract = TransformHelper.getCareContractFromState(stateDate, careUnitHSAid, samverks, payerOrganization);
+                        CareContractType currentContract = TransformHelper.getCareContractFromState(careUnitHSAid, samverks, payerOrganization);
                         careEvent.getContracts().getContract().add(currentContract);
                     }
                 }
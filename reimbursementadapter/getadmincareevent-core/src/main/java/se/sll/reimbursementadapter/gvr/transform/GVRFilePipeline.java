@@ -0,0 +1,368 @@
+/**
+ *  Copyright (c) 2013 SLL <http://sll.se/>
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package se.sll.reimbursementadapter.gvr.transform;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+import javax.xml.bind.JAXBException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.xml.sax.SAXException;
+
+import se.sll.ersmo.xml.indata.ERSMOIndata.Ersättningshändelse;
+import se.sll.reimbursementadapter.admincareevent.service.IndexSnapshot;
+import se.sll.reimbursementadapter.exception.TransformationException;
+import se.sll.reimbursementadapter.gvr.reader.GVRFile;
+import se.sll.reimbursementadapter.gvr.reader.GVRFileCatalog;
+import se.sll.reimbursementadapter.gvr.reader.GVRFileReader;
+import se.sll.reimbursementadapter.gvr.transform.ERSMOIndataToCareEventTransformer.TransformedEvent;
+import se.sll.reimbursementadapter.gvr.transform.GVRFilePreTransformer.PreparedFile;
+
+/**
+ * Reads, unmarshals and transforms a list of GVR files ahead of the consumer on an executor, while
+ * handing out the results strictly in file order. At most depth files are loaded ahead. <p>
+ *
+ * Loading has no side effects, errors are kept with the file and only reported when the consumer
+ * gets to that file, so the consumer sees the same sequence of events as if the files were
+ * handled one at a time.
+ */
+public class GVRFilePipeline {
+
+    /** Logger */
+    private static final Logger LOG = LoggerFactory.getLogger(GVRFilePipeline.class);
+
+    /** The number of Ersättningshändelse read before they are transformed, when transforming on a pool. */
+    static final int TRANSFORM_BATCH_SIZE = 2048;
+
+    private final GVRFileReader gvrFileReader;
+    private final GVRFilePreTransformer preTransformer;
+    private final Iterator<GVRFile> files;
+    private final ExecutorService executor;
+    private final int depth;
+    private final int maxEvents;
+    private final IndexSnapshot index;
+    private final ForkJoinPool transformPool;
+    private final Deque<Pending> pending = new ArrayDeque<>();
+
+    /** Sum of the event counts of the pending files. */
+    private int pendingEvents;
+
+    /** The next file to load and its event count, once counted. */
+    private GVRFile upcoming;
+    private int upcomingEvents;
+
+    /** Set when a file that can't fit has been handed out, no files after it are loaded. */
+    private boolean exhausted;
+
+    /**
+     * A file that has been loaded or is being loaded.
+     */
+    private static class Pending {
+        private final int eventCount;
+        private final LoadedFile loaded;
+        private final Future<LoadedFile> future;
+
+        Pending(int eventCount, LoadedFile loaded, Future<LoadedFile> future) {
+            this.eventCount = eventCount;
+            this.loaded = loaded;
+            this.future = future;
+        }
+    }
+
+    /**
+     * A loaded GVR file.
+     */
+    public static class LoadedFile {
+        private final GVRFile file;
+        private PreparedFile preparedFile;
+        private int eventCount;
+        private String källa;
+        private List<TransformedEvent> events;
+        private String readErrorMessage;
+        private Exception readError;
+        private RuntimeException transformRuntimeError;
+        private TransformationException transformError;
+        private boolean countOnly;
+
+        LoadedFile(GVRFile file) {
+            this.file = file;
+        }
+
+        public GVRFile getFile() {
+            return file;
+        }
+
+        /** @return the prepared file the events came from, or null if the file was read. */
+        public PreparedFile getPreparedFile() {
+            return preparedFile;
+        }
+
+        /** @return the number of Ersättningshändelse in the file. */
+        public int getEventCount() {
+            return eventCount;
+        }
+
+        /** @return true if the file was only counted, because it doesn't fit. */
+        public boolean isCountOnly() {
+            return countOnly;
+        }
+
+        public String getKälla() {
+            return källa;
+        }
+
+        /** @return a description of the read error, or null if the file was read successfully. */
+        public String getReadErrorMessage() {
+            return readErrorMessage;
+        }
+
+        public Exception getReadError() {
+            return readError;
+        }
+
+        /**
+         * @return the transformed care events.
+         * @throws TransformationException if the transformation failed.
+         */
+        public List<TransformedEvent> getEvents() throws TransformationException {
+            if (transformError != null) {
+                throw transformError;
+            }
+            if (transformRuntimeError != null) {
+                throw transformRuntimeError;
+            }
+            return events;
+        }
+    }
+
+    /**
+     * Creates a pipeline.
+     *
+     * @param gvrFileReader the reader.
+     * @param preTransformer source of prepared files, or null.
+     * @param files the files in the order they should be handed out.
+     * @param executor the executor to load files on, or null to load each file when asked for.
+     * @param depth the maximum number of files to load ahead.
+     * @param maxEvents the maximum number of events the consumer accepts in total.
+     * @param index the code server index to transform with, or null to use the current one when each file is transformed.
+     * @param transformPool the pool to transform the care events within a file on, or null.
+     */
+    public GVRFilePipeline(GVRFileReader gvrFileReader, GVRFilePreTransformer preTransformer, List<GVRFile> files,
+                           ExecutorService executor, int depth, int maxEvents, IndexSnapshot index, ForkJoinPool transformPool) {
+        this.gvrFileReader = gvrFileReader;
+        this.preTransformer = preTransformer;
+        this.files = files.iterator();
+        this.executor = (depth > 1) ? executor : null;
+        this.depth = (this.executor != null) ? depth : 1;
+        this.maxEvents = maxEvents;
+        this.index = index;
+        this.transformPool = transformPool;
+    }
+
+    /**
+     * Returns the next file in order, waiting for it to be loaded if needed. <p>
+     *
+     * Files are counted before they are loaded. A file that can't fit into maxEvents, given the events
+     * the consumer already has, is handed out with only the event count and nothing after it is
+     * loaded. Files are only loaded ahead as long as all of them are sure to fit.
+     *
+     * @param consumedEvents the number of events the consumer has accepted so far.
+     * @return the next loaded file, or null when there are no more files.
+     */
+    public LoadedFile next(int consumedEvents) {
+        while (!exhausted && pending.size() < depth) {
+            if (upcoming == null) {
+                if (!files.hasNext()) {
+                    break;
+                }
+                upcoming = files.next();
+                upcomingEvents = gvrFileReader.getEventCount(upcoming.getPath());
+            }
+            boolean known = (upcomingEvents != GVRFileCatalog.UNKNOWN_EVENT_COUNT);
+            if (known && consumedEvents + upcomingEvents > maxEvents) {
+                LoadedFile counted = new LoadedFile(upcoming);
+                counted.eventCount = upcomingEvents;
+                counted.countOnly = true;
+                pending.add(new Pending(upcomingEvents, counted, null));
+                upcoming = null;
+                exhausted = true;
+                break;
+            }
+            if (!pending.isEmpty() && (!known || consumedEvents + pendingEvents + upcomingEvents > maxEvents)) {
+                // Might not fit, wait until the consumer has caught up.
+                break;
+            }
+            pending.add(submit(upcoming, known ? upcomingEvents : 0));
+            upcoming = null;
+        }
+
+        Pending head = pending.poll();
+        if (head == null) {
+            return null;
+        }
+        pendingEvents -= head.eventCount;
+        if (head.loaded != null) {
+            return head.loaded;
+        }
+        try {
+            return head.future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for GVR file to load.", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new IllegalStateException(cause);
+        }
+    }
+
+    /**
+     * Stops loading files that haven't been handed out.
+     */
+    public void close() {
+        for (Pending p : pending) {
+            if (p.future != null) {
+                p.future.cancel(true);
+            }
+        }
+        pending.clear();
+    }
+
+    //
+    private Pending submit(final GVRFile file, int eventCount) {
+        pendingEvents += eventCount;
+        if (executor == null) {
+            return new Pending(eventCount, load(file), null);
+        }
+        return new Pending(eventCount, null, executor.submit(new Callable<LoadedFile>() {
+            @Override
+            public LoadedFile call() {
+                return load(file);
+            }
+        }));
+    }
+
+    //
+    private LoadedFile load(GVRFile file) {
+        PreparedFile preparedFile = (preTransformer != null) ? preTransformer.get(file, index) : null;
+        if (preparedFile != null) {
+            LoadedFile loaded = new LoadedFile(file);
+            loaded.preparedFile = preparedFile;
+            loaded.eventCount = preparedFile.getEventCount();
+            loaded.källa = preparedFile.getKälla();
+            loaded.events = preparedFile.getEvents();
+            return loaded;
+        }
+
+        return read(gvrFileReader, file, index, transformPool);
+    }
+
+    /**
+     * Reads and transforms a file one Ersättningshändelse at a time, so that only the transformed care
+     * events are kept in memory and never the whole unmarshalled file. With a transform pool, the
+     * Ersättningshändelse are instead transformed in batches split over the pool.
+     *
+     * @param gvrFileReader the reader.
+     * @param file the GVR file.
+     * @param index the code server index to transform with, or null to use the current one.
+     * @param transformPool the pool to transform on, or null to transform sequentially.
+     * @return the loaded file.
+     */
+    static LoadedFile read(GVRFileReader gvrFileReader, GVRFile file, IndexSnapshot index, ForkJoinPool transformPool) {
+        LoadedFile loaded = new LoadedFile(file);
+        Path currentFile = file.getPath();
+        List<TransformedEvent> events = new ArrayList<>();
+        int eventCount = 0;
+        int batchSize = (transformPool != null) ? TRANSFORM_BATCH_SIZE : 1;
+        List<Ersättningshändelse> batch = new ArrayList<>(batchSize);
+
+        // Get a reader for the current file and transform each Ersättningshändelse as it's read.
+        try (Reader fileContent = gvrFileReader.getReaderForFile(currentFile);
+             ERSMOIndataStreamReader ershReader = new ERSMOIndataStreamReader(fileContent)) {
+            loaded.källa = ershReader.getKälla();
+            // Files from another source are rejected by the consumer, only count the events.
+            boolean transform = TransformHelper.SLL_GVR_SOURCE.equals(loaded.källa);
+            Ersättningshändelse ersh;
+            while ((ersh = ershReader.next()) != null) {
+                eventCount++;
+                if (transform) {
+                    batch.add(ersh);
+                    if (batch.size() >= batchSize) {
+                        transform = transform(loaded, batch, events, index, transformPool);
+                    }
+                }
+            }
+            if (transform) {
+                transform(loaded, batch, events, index, transformPool);
+            }
+        } catch (IOException e) {
+            return readError(loaded, "Error when creating Reader for file: " + currentFile.getFileName(), e);
+        }
+        catch (SAXException e) {
+            return readError(loaded, "Error when loading schema file for ERSOMIndata", e);
+        }
+        catch (JAXBException e) {
+            return readError(loaded, "JAXB Error when parsing " + currentFile.getFileName() + ", is the XML Invalid?", e);
+        }
+
+        LOG.info(String.format("Transformed file %s with %d care events updated at %s.", currentFile, eventCount, file.getDate()));
+        loaded.eventCount = eventCount;
+        loaded.events = events;
+        gvrFileReader.recordEventCount(currentFile, eventCount);
+        return loaded;
+    }
+
+    //
+    private static boolean transform(LoadedFile loaded, List<Ersättningshändelse> batch, List<TransformedEvent> events, IndexSnapshot index,
+                                     ForkJoinPool transformPool) {
+        try {
+            events.addAll(ERSMOIndataToCareEventTransformer.transform(batch, loaded.file.getDate(), loaded.file.getPath(), index, transformPool));
+            return true;
+        } catch (TransformationException e) {
+            loaded.transformError = e;
+        } catch (RuntimeException e) {
+            loaded.transformRuntimeError = e;
+        } finally {
+            batch.clear();
+        }
+        return false;
+    }
+
+    //
+    private static LoadedFile readError(LoadedFile loaded, String message, Exception e) {
+        loaded.readErrorMessage = message;
+        loaded.readError = e;
+        return loaded;
+    }
+}
@@ -0,0 +1,86 @@
+/**
+ *  Copyright (c) 2013 SLL <http://sll.se/>
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package se.sll.reimbursementadapter.gvr.transform;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import javax.annotation.PreDestroy;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+/**
+ * Owns the threads that {@link GVRFilePipeline} reads and transforms GVR files ahead on. The threads
+ * are created on first use and stopped when the application context is closed.
+ */
+@Component
+public class GVRFilePipelineExecutor {
+
+    /**
+     * The number of threads used to read and transform GVR files ahead of the one being added to the
+     * response, and the number of files read ahead. 0 or 1 handles one file at a time.
+     */
+    @Value("${pr.gvr.io.pipelineThreads:0}")
+    public int threads;
+
+    private ExecutorService executor;
+
+    private boolean shutdown;
+
+    /**
+     * @return the number of files to read ahead, at most 1 if files should be handled one at a time.
+     */
+    public int getDepth() {
+        return threads;
+    }
+
+    /**
+     * Returns the executor, or null if files should be handled one at a time or the executor is shut down.
+     *
+     * @return the executor or null.
+     */
+    public synchronized ExecutorService getExecutor() {
+        if (threads <= 1 || shutdown) {
+            return null;
+        }
+        if (executor == null) {
+            executor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+                private int count = 0;
+                @Override
+                public synchronized Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "gvr-pipeline-" + (++count));
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+        }
+        return executor;
+    }
+
+    /**
+     * Stops the threads, interrupting any file being read.
+     */
+    @PreDestroy
+    public synchronized void shutdown() {
+        shutdown = true;
+        if (executor != null) {
+            executor.shutdownNow();
+            executor = null;
+        }
+    }
+}
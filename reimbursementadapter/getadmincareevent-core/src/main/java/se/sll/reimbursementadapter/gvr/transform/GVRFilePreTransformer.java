@@ -0,0 +1,264 @@
+/**
+ *  Copyright (c) 2013 SLL <http://sll.se/>
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package se.sll.reimbursementadapter.gvr.transform;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import se.sll.reimbursementadapter.admincareevent.service.CodeServerMEKCacheManagerService;
+import se.sll.reimbursementadapter.admincareevent.service.IndexSnapshot;
+import se.sll.reimbursementadapter.gvr.reader.GVRFile;
+import se.sll.reimbursementadapter.gvr.reader.GVRFileReader;
+import se.sll.reimbursementadapter.gvr.transform.ERSMOIndataToCareEventTransformer.TransformedEvent;
+
+/**
+ * Unmarshals and transforms newly arrived GVR files in the background, so that a request only has to
+ * apply the prepared result to the retry bin and response. <p>
+ *
+ * Only files that are newer than the last file handed out to a request are prepared, up to
+ * pr.gvr.io.preTransformMaxEvents care events in total. A prepared file is only used if the file is
+ * unchanged on disk and the code server index is the same as the one it was transformed with,
+ * otherwise the request falls back to reading the file itself.
+ */
+@Component
+public class GVRFilePreTransformer {
+
+    /** Logger */
+    private static final Logger LOG = LoggerFactory.getLogger(GVRFilePreTransformer.class);
+
+    /** The maximum number of prepared care events to keep in memory, 0 disables pre-transformation. */
+    @Value("${pr.gvr.io.preTransformMaxEvents:0}")
+    public int maxEvents;
+
+    @Autowired
+    private GVRFileReader gvrFileReader;
+
+    /** Prepared files in timestamp order. */
+    private final Map<Path, PreparedFile> prepared = new LinkedHashMap<>();
+
+    private int preparedEvents;
+
+    /** Timestamp of the newest file handed out to a request, or null if not known yet. */
+    private Long watermark;
+
+    /**
+     * A GVR file that has been unmarshalled and transformed ahead of the request.
+     */
+    public static class PreparedFile {
+        private final long timestamp;
+        private final long size;
+        private final long lastModified;
+        private final IndexSnapshot index;
+        private final String källa;
+        private final int eventCount;
+        private final List<TransformedEvent> events;
+
+        PreparedFile(long timestamp, BasicFileAttributes attrs, IndexSnapshot index, String källa, int eventCount, List<TransformedEvent> events) {
+            this.timestamp = timestamp;
+            this.size = attrs.size();
+            this.lastModified = attrs.lastModifiedTime().toMillis();
+            this.index = index;
+            this.källa = källa;
+            this.eventCount = eventCount;
+            this.events = events;
+        }
+
+        public String getKälla() {
+            return källa;
+        }
+
+        /** @return the number of Ersättningshändelse in the file. */
+        public int getEventCount() {
+            return eventCount;
+        }
+
+        public List<TransformedEvent> getEvents() {
+            return events;
+        }
+    }
+
+    public GVRFilePreTransformer() {
+    }
+
+    public GVRFilePreTransformer(GVRFileReader gvrFileReader) {
+        this.gvrFileReader = gvrFileReader;
+    }
+
+    /**
+     * Prepares the files that have arrived since the last file handed out to a request. The first call only
+     * records the newest file, files that were already there at startup are left to the requests.
+     */
+    public void prepareNewFiles() {
+        if (maxEvents <= 0) {
+            return;
+        }
+        IndexSnapshot index = CodeServerMEKCacheManagerService.getInstance().getSnapshot();
+        if (index == null) {
+            return;
+        }
+
+        Long from;
+        synchronized (this) {
+            from = watermark;
+        }
+        List<GVRFile> files;
+        try {
+            files = gvrFileReader.getFiles(from == null ? null : new Date(from + 1), null);
+        } catch (IOException e) {
+            LOG.warn("Unable to list GVR files for pre-transformation.", e);
+            return;
+        }
+        if (from == null) {
+            synchronized (this) {
+                if (watermark == null) {
+                    watermark = files.isEmpty() ? Long.valueOf(0L) : files.get(files.size() - 1).getTimestamp();
+                }
+            }
+            return;
+        }
+
+        for (GVRFile file : files) {
+            synchronized (this) {
+                if (preparedEvents >= maxEvents) {
+                    break;
+                }
+                PreparedFile existing = prepared.get(file.getPath());
+                if (existing != null && isValid(existing, file.getPath(), index)) {
+                    continue;
+                }
+            }
+            PreparedFile preparedFile = prepare(file, index);
+            if (preparedFile == null) {
+                // Leave the rest for the request, the files must be handled in order anyway.
+                break;
+            }
+            synchronized (this) {
+                if (watermark != null && file.getTimestamp() <= watermark) {
+                    continue;
+                }
+                PreparedFile old = prepared.put(file.getPath(), preparedFile);
+                if (old != null) {
+                    preparedEvents -= old.eventCount;
+                }
+                preparedEvents += preparedFile.eventCount;
+            }
+        }
+    }
+
+    /**
+     * Returns the prepared result for a file, if it's still valid with the current index.
+     *
+     * @param file the GVR file.
+     * @return the prepared file or null if the request has to read the file itself.
+     */
+    public PreparedFile get(GVRFile file) {
+        return get(file, null);
+    }
+
+    /**
+     * Returns the prepared result for a file, if it's still valid.
+     *
+     * @param file the GVR file.
+     * @param index the index the request uses, or null for the current index.
+     * @return the prepared file or null if the request has to read the file itself.
+     */
+    public synchronized PreparedFile get(GVRFile file, IndexSnapshot index) {
+        PreparedFile preparedFile = prepared.get(file.getPath());
+        if (preparedFile == null) {
+            return null;
+        }
+        if (index == null) {
+            index = CodeServerMEKCacheManagerService.getInstance().getSnapshot();
+        }
+        if (!isValid(preparedFile, file.getPath(), index)) {
+            remove(file.getPath());
+            return null;
+        }
+        return preparedFile;
+    }
+
+    /**
+     * Marks a file as handed out to a request. The file, and any prepared file older than it, is
+     * released.
+     *
+     * @param file the GVR file.
+     */
+    public synchronized void release(GVRFile file) {
+        if (watermark == null || file.getTimestamp() > watermark) {
+            watermark = file.getTimestamp();
+        }
+        remove(file.getPath());
+        for (Iterator<PreparedFile> it = prepared.values().iterator(); it.hasNext();) {
+            PreparedFile preparedFile = it.next();
+            if (preparedFile.timestamp <= watermark) {
+                preparedEvents -= preparedFile.eventCount;
+                it.remove();
+            }
+        }
+    }
+
+    //
+    private void remove(Path path) {
+        PreparedFile old = prepared.remove(path);
+        if (old != null) {
+            preparedEvents -= old.eventCount;
+        }
+    }
+
+    //
+    private PreparedFile prepare(GVRFile file, IndexSnapshot index) {
+        Path path = file.getPath();
+        try {
+            BasicFileAttributes attrs = Files.readAttributes(path, BasicFileAttributes.class);
+            GVRFilePipeline.LoadedFile loaded = GVRFilePipeline.read(gvrFileReader, file, index, null);
+            if (loaded.getReadError() != null) {
+                throw loaded.getReadError();
+            }
+            PreparedFile preparedFile = new PreparedFile(file.getTimestamp(), attrs, index, loaded.getKälla(), loaded.getEventCount(), loaded.getEvents());
+            // The file might have been written to while it was read.
+            return isValid(preparedFile, path, index) ? preparedFile : null;
+        } catch (Exception e) {
+            LOG.warn(String.format("Unable to pre-transform %s, leaving it to the request: %s", path, e.toString()));
+            return null;
+        }
+    }
+
+    //
+    private boolean isValid(PreparedFile preparedFile, Path path, IndexSnapshot index) {
+        if (preparedFile.index != index) {
+            return false;
+        }
+        try {
+            BasicFileAttributes attrs = Files.readAttributes(path, BasicFileAttributes.class);
+            return preparedFile.size == attrs.size() && preparedFile.lastModified == attrs.lastModifiedTime().toMillis();
+        } catch (IOException e) {
+            return false;
+        }
+    }
+}
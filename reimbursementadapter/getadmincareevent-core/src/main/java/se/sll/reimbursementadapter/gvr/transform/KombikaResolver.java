@@ -0,0 +1,354 @@
+/**
+ *  Copyright (c) 2013 SLL <http://sll.se/>
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package se.sll.reimbursementadapter.gvr.transform;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import se.sll.ersmo.xml.indata.Vkhform;
+import se.sll.reimbursementadapter.admincareevent.model.FacilityIndex;
+import se.sll.reimbursementadapter.admincareevent.service.IndexSnapshot;
+
+/**
+ * Remembers the code server lookups made when transforming care events. A GVR file typically has
+ * thousands of care events from a few hundred kombikas on a few distinct dates, so the same lookups
+ * are made over and over again. <p>
+ *
+ * Lookups that aren't remembered yet are made in the {@link FacilityIndex} of the snapshot. The
+ * results are only valid for the index they were looked up in, a new resolver is used when the
+ * index is replaced. Instances are thread-safe.
+ */
+class KombikaResolver {
+
+    /** The maximum number of results kept per kind of lookup, the results are dropped when reached. */
+    static final int MAX_ENTRIES = 50000;
+
+    /** Remembers that a kombika has no state at a date, the maps can't hold null. */
+    private static final Facility NO_FACILITY = new Facility(null, null, Collections.<Commission>emptyList());
+
+    private static volatile KombikaResolver current;
+
+    private final IndexSnapshot snapshot;
+    private final FacilityIndex index;
+    private final ConcurrentMap<Key, Facility> facilities = new ConcurrentHashMap<>();
+    private final ConcurrentMap<Key, Referral> referrals = new ConcurrentHashMap<>();
+    private final ConcurrentMap<Key, Payer> payers = new ConcurrentHashMap<>();
+
+    /**
+     * The state of a kombika at a date.
+     */
+    static class Facility {
+        private final String customerCode;
+        private final String careUnitHsaId;
+        private final List<Commission> commissions;
+
+        Facility(String customerCode, String careUnitHsaId, List<Commission> commissions) {
+            this.customerCode = customerCode;
+            this.careUnitHsaId = careUnitHsaId;
+            this.commissions = commissions;
+        }
+
+        /** @return the customer code (KUND) of the facility at the date, or null. */
+        String getCustomerCode() {
+            return customerCode;
+        }
+
+        /** @return the HSA-id the facility is mapped to at the date, or null. */
+        String getCareUnitHsaId() {
+            return careUnitHsaId;
+        }
+
+        /** @return the commissions of the facility that are valid at the date. */
+        List<Commission> getCommissions() {
+            return commissions;
+        }
+    }
+
+    /**
+     * A commission (SAMVERKS) and its state at a date.
+     */
+    static class Commission {
+        private final int number;
+        private final String id;
+        private final String name;
+        private final String assignmentType;
+        private final Boolean followsTemplate;
+        private final String typeId;
+        private final String typeName;
+
+        Commission(int number, String id, String name, String assignmentType, Boolean followsTemplate, String typeId, String typeName) {
+            this.number = number;
+            this.id = id;
+            this.name = name;
+            this.assignmentType = assignmentType;
+            this.followsTemplate = followsTemplate;
+            this.typeId = typeId;
+            this.typeName = typeName;
+        }
+
+        /** @return the commission number in the {@link FacilityIndex}. */
+        int getNumber() {
+            return number;
+        }
+
+        /** @return the id of the commission. */
+        String getId() {
+            return id;
+        }
+
+        /** @return the name of the commission at the date. */
+        String getName() {
+            return name;
+        }
+
+        /** @return the assignment type at the date. */
+        String getAssignmentType() {
+            return assignmentType;
+        }
+
+        /** @return if the commission follows a template at the date, or null if not set. */
+        Boolean getFollowsTemplate() {
+            return followsTemplate;
+        }
+
+        /** @return the id of the commission type, or null. */
+        String getTypeId() {
+            return typeId;
+        }
+
+        /** @return the name of the commission type at the date, or null. */
+        String getTypeName() {
+            return typeName;
+        }
+    }
+
+    /**
+     * The HSA-id of a referring kombika at a date.
+     */
+    static class Referral {
+        private final boolean known;
+        private final String hsaId;
+
+        Referral(boolean known, String hsaId) {
+            this.known = known;
+            this.hsaId = hsaId;
+        }
+
+        /** @return true if the kombika is in the index. */
+        boolean isKnown() {
+            return known;
+        }
+
+        /** @return the HSA-id, or null if it couldn't be mapped. */
+        String getHsaId() {
+            return hsaId;
+        }
+    }
+
+    //
+    private static class Payer {
+        private final String hsaId;
+
+        Payer(String hsaId) {
+            this.hsaId = hsaId;
+        }
+    }
+
+    //
+    private static class Key {
+        private final Object id;
+        private final Date date;
+        private final Object qualifier;
+
+        Key(Object id, Date date, Object qualifier) {
+            this.id = id;
+            this.date = date;
+            this.qualifier = qualifier;
+        }
+
+        @Override
+        public int hashCode() {
+            int h = (id == null) ? 0 : id.hashCode();
+            h = 31 * h + ((date == null) ? 0 : date.hashCode());
+            return 31 * h + ((qualifier == null) ? 0 : qualifier.hashCode());
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            if (!(other instanceof Key)) {
+                return false;
+            }
+            Key key = (Key) other;
+            return equal(id, key.id) && equal(date, key.date) && equal(qualifier, key.qualifier);
+        }
+
+        //
+        private static boolean equal(Object a, Object b) {
+            return (a == null) ? b == null : a.equals(b);
+        }
+    }
+
+    //
+    private KombikaResolver(IndexSnapshot snapshot) {
+        this.snapshot = snapshot;
+        this.index = (snapshot == null) ? FacilityIndex.of(null) : snapshot.getFacilityIndex();
+    }
+
+    /**
+     * Returns the resolver for an index.
+     *
+     * @param snapshot the index snapshot, or null if there is no index.
+     * @return the resolver.
+     */
+    static KombikaResolver forIndex(IndexSnapshot snapshot) {
+        KombikaResolver resolver = current;
+        if (resolver == null || resolver.snapshot != snapshot) {
+            resolver = new KombikaResolver(snapshot);
+            current = resolver;
+        }
+        return resolver;
+    }
+
+    /**
+     * @return the generation of the index the lookups are made in.
+     */
+    long getGeneration() {
+        return snapshot.getGeneration();
+    }
+
+    /**
+     * @param kombika the kombika.
+     * @return true if the kombika is in the index.
+     */
+    boolean isKnown(String kombika) {
+        return index.facilityOf(kombika) >= 0;
+    }
+
+    /**
+     * Looks up a kombika at a date.
+     *
+     * @param kombika the kombika.
+     * @param stateDate the date.
+     * @return the facility, or null if the kombika has no state at the date.
+     */
+    Facility getFacility(String kombika, Date stateDate) {
+        Key key = new Key(kombika, stateDate, null);
+        Facility facility = facilities.get(key);
+        if (facility == null) {
+            facility = resolveFacility(kombika, stateDate);
+            put(facilities, key, facility);
+        }
+        return (facility == NO_FACILITY) ? null : facility;
+    }
+
+    /**
+     * Looks up the HSA-id of a referring kombika at a date. If the kombika had no HSA-id at the date,
+     * the last one before the date is used, since the kombika may have expired after the referral.
+     *
+     * @param kombika the referring kombika.
+     * @param stateDate the date.
+     * @return the referral.
+     */
+    Referral getReferral(String kombika, Date stateDate) {
+        Key key = new Key(kombika, stateDate, null);
+        Referral referral = referrals.get(key);
+        if (referral == null) {
+            referral = resolveReferral(kombika, stateDate);
+            put(referrals, key, referral);
+        }
+        return referral;
+    }
+
+    /**
+     * Looks up the payer organization of a commission through the facilities that refer to it.
+     *
+     * @param kontaktForm the contact form of the care event.
+     * @param stateDate the date.
+     * @param samverks the commission.
+     * @return the HSA-id of the payer organization, or null if there is none.
+     * @see TransformHelper#getBackReferencedPayerOrganization(FacilityIndex, Vkhform, Date, int)
+     */
+    String getBackReferencedPayerOrganization(Vkhform kontaktForm, Date stateDate, Commission samverks) {
+        Key key = new Key(samverks.getNumber(), stateDate, kontaktForm);
+        Payer payer = payers.get(key);
+        if (payer == null) {
+            payer = new Payer(TransformHelper.getBackReferencedPayerOrganization(index, kontaktForm, stateDate, samverks.getNumber()));
+            put(payers, key, payer);
+        }
+        return payer.hsaId;
+    }
+
+    //
+    private Facility resolveFacility(String kombika, Date stateDate) {
+        final long time = stateDate.getTime();
+        final int avd = index.facilityOf(kombika);
+        final int state = (avd >= 0) ? index.stateAt(avd, time) : -1;
+        if (state < 0) {
+            return NO_FACILITY;
+        }
+
+        final int n = index.getCommissionCount(state);
+        List<Commission> commissions = new ArrayList<>(n);
+        for (int i = 0; i < n; i++) {
+            final int samverks = index.getCommissionRef(state, i);
+            final int commissionState = index.getCommissionStateAt(samverks, time);
+            if (commissionState >= 0) {
+                final int type = index.getCommissionType(commissionState);
+                commissions.add(new Commission(samverks, index.getCommissionId(samverks), index.getCommissionName(commissionState),
+                                               index.getAssignmentType(commissionState), index.getFollowsTemplate(commissionState),
+                                               (type < 0) ? null : index.getCommissionTypeId(type),
+                                               (type < 0) ? null : index.getCommissionTypeNameAt(type, time)));
+            }
+        }
+        return new Facility(index.getCustomerCode(state), index.getHsaIdAt(state, time), commissions);
+    }
+
+    //
+    private Referral resolveReferral(String kombika, Date stateDate) {
+        final long time = stateDate.getTime();
+        final int mappedFacilityForReferral = index.facilityOf(kombika);
+        if (mappedFacilityForReferral < 0) {
+            return new Referral(false, null);
+        }
+
+        int state = index.stateAt(mappedFacilityForReferral, time);
+        if (state >= 0) {
+            String hsaId = index.getHsaIdAt(state, time);
+            if (hsaId != null) {
+                return new Referral(true, hsaId);
+            }
+        }
+
+        // Try with another state date for the referral kombika. The kombika may have expired but was valid at the time of the referral.
+        state = index.stateBefore(mappedFacilityForReferral, time);
+        if (state >= 0) {
+            return new Referral(true, index.getHsaIdBefore(state, time));
+        }
+        return new Referral(true, null);
+    }
+
+    //
+    private static <V> void put(ConcurrentMap<Key, V> map, Key key, V value) {
+        if (map.size() >= MAX_ENTRIES) {
+            map.clear();
+        }
+        map.put(key, value);
+    }
+}
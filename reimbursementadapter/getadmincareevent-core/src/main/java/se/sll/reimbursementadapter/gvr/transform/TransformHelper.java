@@ -47,13 +47,8 @@ import se.sll.ersmo.xml.indata.Tillståndslista;
 import se.sll.ersmo.xml.indata.Vkhform;
 import se.sll.ersmo.xml.indata.Yrkeskategorier;
 import se.sll.ersmo.xml.indata.Åtgärder;
-import se.sll.reimbursementadapter.admincareevent.model.CommissionState;
-import se.sll.reimbursementadapter.admincareevent.model.CommissionTypeState;
-import se.sll.reimbursementadapter.admincareevent.model.FacilityState;
-import se.sll.reimbursementadapter.admincareevent.model.HSAMappingState;
-import se.sll.reimbursementadapter.admincareevent.model.TermItemCommission;
+import se.sll.reimbursementadapter.admincareevent.model.FacilityIndex;
 import se.sll.reimbursementadapter.exception.TransformationException;
-import se.sll.reimbursementadapter.parser.TermItem;
 
 /**
  * Contains most of the actual transformation logic for the {@link ERSMOIndataToCareEventTransformer}
@@ -65,6 +60,8 @@ public class TransformHelper {
     protected static final String SLL_CAREGIVER_HSA_ID = "SE2321000016-39KJ";
     protected static final String HYBRID_GUI_SEPARATOR = "+";
     private static final ObjectFactory of = new ObjectFactory();
+    private static final List<String> ALLOWED_PRIMARY_CARE_UNIT_TYPES = Arrays.asList("31", "40", "42", "43", "44", "45", "46", "48", "50", "51", "78", "90", "95", "99");
+    private static final List<String> ALLOWED_INPATIENT_CARE_UNIT_TYPES = Arrays.asList("10", "11", "20");
     
     private static final Logger LOG = LoggerFactory.getLogger(TransformHelper.class);
 
@@ -111,35 +108,30 @@ public class TransformHelper {
 
     /**
      * Creates the CareUnit structure in the incoming {@link riv.followup.processdevelopment.reimbursement.v1.CareEventType} using information from
-     * the incoming {@link se.sll.ersmo.xml.indata.ERSMOIndata.Ersättningshändelse}.
+     * the incoming {@link se.sll.ersmo.xml.indata.ERSMOIndata.Ersättningshändelse} and the already looked up care unit HSA-id.
      *
      * @param currentErsh The {@link se.sll.ersmo.xml.indata.ERSMOIndata.Ersättningshändelse} to read information from.
      * @param currentEvent The {@link riv.followup.processdevelopment.reimbursement.v1.CareEventType} to write the new structure in.
+     * @param mappedFacility The facility of the care event, or null if the kombika isn't mapped.
+     * @return the care unit HSA-id.
      */
-    protected static String createCareUnitStructure(ERSMOIndata.Ersättningshändelse currentErsh, Path currentFile, CareEventType currentEvent, String currentErsId, 
-                                                    Date stateDate, FacilityState mappedFacility) throws TransformationException 
+    static String createCareUnitStructure(ERSMOIndata.Ersättningshändelse currentErsh, CareEventType currentEvent, 
+                                          KombikaResolver.Facility mappedFacility) 
     {
+        final String careUnitHSAid = (mappedFacility == null) ? null : mappedFacility.getCareUnitHsaId();
+
         // Care Unit Local Id
         currentEvent.setCareUnit(of.createCareUnitType());
         currentEvent.getCareUnit().setCareUnitLocalId(new IIType());
         currentEvent.getCareUnit().getCareUnitLocalId().setRoot(OIDList.getOid(CodeSystem.HYBRID_GUID_IDENTIFIER));
         currentEvent.getCareUnit().getCareUnitLocalId().setExtension(SLL_CAREGIVER_HSA_ID + HYBRID_GUI_SEPARATOR + currentErsh.getSlutverksamhet());
 
-        // Care Unit HSA-id from MEK
-        if (mappedFacility != null) {
-            TermItem<HSAMappingState> hsaMapping = mappedFacility.getHSAMapping();
-            if (hsaMapping != null) {
-                HSAMappingState hsaMappingState = hsaMapping.getState(stateDate);
-                if (hsaMappingState != null) {
-                    String careUnitHSAid = hsaMappingState.getHsaId();
-                    currentEvent.getCareUnit().setCareUnitId(careUnitHSAid);
-                    return careUnitHSAid;
-                }
-            }
-        } else {
+        if (mappedFacility == null) {
             currentEvent.getCareUnit().setCareUnitId("");
+        } else if (careUnitHSAid != null) {
+            currentEvent.getCareUnit().setCareUnitId(careUnitHSAid);
         }
-        return null;
+        return careUnitHSAid;
     }
 
     /**
@@ -259,17 +251,14 @@ public class TransformHelper {
     /**
      * Instantiates and populates a RIV {@link riv.followup.processdevelopment.reimbursement.v1.CareContractType} from the provided source data.
      *
-     * @param stateDate The State date to use for looking up Commission codes from the Code Server index.
      * @param careUnitHSAid The care unit HSA id for the current care event.
-     * @param commissionState The CommissionState for the current Commission to extract contract information from.
+     * @param commissionState The Commission, as looked up at the state date, to extract contract information from.
      * @param payerOrganization The payerOrganization to use.
      * @return The populated {@link riv.followup.processdevelopment.reimbursement.v1.CareContractType}
      */
-    protected static CareContractType getCareContractFromState(Date stateDate, String careUnitHSAid, TermItemCommission<CommissionState> commissionState, 
-                                                               String payerOrganization) 
+    static CareContractType getCareContractFromState(String careUnitHSAid, KombikaResolver.Commission commissionState, 
+                                                     String payerOrganization) 
     {
-        CommissionState currentCommissionState = commissionState.getState(stateDate);
-        
         // Create the care contract type.
         CareContractType currentContract = of.createCareContractType();
 
@@ -277,17 +266,15 @@ public class TransformHelper {
         currentContract.setId(of.createIIType());
         currentContract.getId().setRoot(OIDList.getOid(CodeSystem.HYBRID_GUID_IDENTIFIER));
         currentContract.getId().setExtension(SLL_CAREGIVER_HSA_ID + HYBRID_GUI_SEPARATOR + commissionState.getId());
-        currentContract.setName(currentCommissionState.getName());
+        currentContract.setName(commissionState.getName());
 
         // Contract type
-        TermItem<CommissionTypeState> commissionType = currentCommissionState.getCommissionType();
         currentContract.setContractType(of.createCVType());
         currentContract.getContractType().setCodeSystem(OIDList.getOid(CodeSystem.SLL_CS_UPPDRAGSTYP));
         currentContract.getContractType().setCodeSystemName(OIDList.getName(CodeSystem.SLL_CS_UPPDRAGSTYP));
-        currentContract.getContractType().setCode(commissionType.getId());
-        CommissionTypeState currentCommissionType = commissionType.getState(stateDate);
-        if (currentCommissionType != null) {
-            currentContract.getContractType().setDisplayName(currentCommissionType.getName());
+        currentContract.getContractType().setCode(commissionState.getTypeId());
+        if (commissionState.getTypeName() != null) {
+            currentContract.getContractType().setDisplayName(commissionState.getTypeName());
         }
 
         // RequesterOrganization
@@ -398,8 +385,10 @@ public class TransformHelper {
     }
 
     /**
-     * Returns the HSA-id for the payerOrganization for the current commissionState.
+     * Returns the HSA-id for the payerOrganization for the current commissionState, with the back reference
+     * lookups remembered by the resolver.
      *
+     * @param resolver The lookups in the current index.
      * @param kontaktForm The type of contact, primary care or inpatient care.
      * @param stateDate The date to use for lookup code mapping states.
      * @param currentAvd The currently active Facility.
@@ -410,47 +399,26 @@ public class TransformHelper {
      * @param kombika 
      * @return the HSA-id for the payerOrganization for the current commissionState.
      */
-    protected static String getPayerOrganization(Vkhform kontaktForm, Date stateDate, FacilityState currentAvd, 
-                                                 TermItemCommission<CommissionState> samverks, String requesterOrgHsa, 
-                                                 String referredFromHsaId, String kombika, String currentErsId, Path currentFile) 
+    static String getPayerOrganization(KombikaResolver resolver, Vkhform kontaktForm, Date stateDate, KombikaResolver.Facility currentAvd, 
+                                       KombikaResolver.Commission samverks, String requesterOrgHsa, 
+                                       String referredFromHsaId, String kombika, String currentErsId, Path currentFile) 
     {
-        String payerOrganization = null;
-        List<String> allowedPrimaryCareUnitTypes = Arrays.asList("31", "40", "42", "43", "44", "45", "46", "48", "50", "51", "78", "90", "95", "99");
-        List<String> allowedInpatientCareUnitTypes = Arrays.asList("10", "11", "20");
-
-        // Steps to look up payer org from care event kombika:
-        // lookup of AVD from kombika
-        // lookup of SAMVERKS from AVD where SAMVERKStyp is in 06 07 08 (done before this code)
-        // lookup of all other kombika that is connected to the SAMVERKS
-        // lookup of AVDs from kombikas
-        // select AVD that has correct (9175) KUND and AVDELNINGSTYP/MOTTAGNINSTYP is correct (in list above) in regards to öppenvård/slutenvård
-        // => profit
-
         if (!"0000".equals(currentAvd.getCustomerCode())) {
             return requesterOrgHsa;
         }
+        return getPayerOrganization(resolver.getBackReferencedPayerOrganization(kontaktForm, stateDate, samverks), referredFromHsaId, 
+                                    kombika, currentErsId, currentFile);
+    }
 
-        for (FacilityState currentPayerFacility : getPotentialPayerFacilities(stateDate, samverks)) {
-
-            // Om det är en öppenvårdskontakt vars vårdenhetstyp finns med i allowedPrimaryCareUnitTypes, mappa.
-            if (kontaktForm.equals(Vkhform.ÖPPENVÅRDSKONTAKT) && allowedPrimaryCareUnitTypes.contains(currentPayerFacility.getCareUnitType())) {
-                payerOrganization = currentPayerFacility.getHSAMapping().getState(stateDate).getHsaId();
-            }
-
-            // Om det är en slutenvårdskontakt vars vårdenhetstyp finns med i allowedInpatientCareUnitTypes, mappa.
-            if (kontaktForm.equals(Vkhform.SLUTENVÅRDSTILLFÄLLE) && allowedInpatientCareUnitTypes.contains(currentPayerFacility.getCareUnitType())) {
-                payerOrganization = currentPayerFacility.getHSAMapping().getState(stateDate).getHsaId();
-            }
-        }
-        
+    //
+    private static String getPayerOrganization(String payerOrganization, String referredFromHsaId, String kombika, String currentErsId, Path currentFile) {
         if (payerOrganization != null) {
             LOG.info(String.format("Looked up kombika using strange back reference algorithm, verify this (and remove warning if code is correct)! "
                                    + "kombika %s on care event %s in %s.", kombika, currentErsId, currentFile));
             return payerOrganization;
         }
         
-        
-        if ("0000".equals(currentAvd.getCustomerCode()) && referredFromHsaId != null) {
+        if (referredFromHsaId != null) {
             // Fallback alternative way to look up payer.
             //
             // Verify that kundkod for kombika is 0000 (remittenten faktureras).
@@ -462,24 +430,64 @@ public class TransformHelper {
     }
 
     /**
-     * Returns a list of FacilityStates that are candidates for usage as payer facilities. The logic works in two steps:
+     * Looks up the payer organization of a commission through the facilities that refer to it, for a
+     * facility with the customer code '0000'.
+     *
+     * @param index The index to look up the facilities in.
+     * @param kontaktForm The type of contact, primary care or inpatient care.
+     * @param stateDate The date to use for lookup code mapping states.
+     * @param samverks The number of the currently active Commission in the index.
+     * @return the HSA-id for the payerOrganization, or null if none of the facilities matched.
+     */
+    protected static String getBackReferencedPayerOrganization(FacilityIndex index, Vkhform kontaktForm, Date stateDate, int samverks) {
+        String payerOrganization = null;
+        final long time = stateDate.getTime();
+
+        // Steps to look up payer org from care event kombika:
+        // lookup of AVD from kombika
+        // lookup of SAMVERKS from AVD where SAMVERKStyp is in 06 07 08 (done before this code)
+        // lookup of all other kombika that is connected to the SAMVERKS
+        // lookup of AVDs from kombikas
+        // select AVD that has correct (9175) KUND and AVDELNINGSTYP/MOTTAGNINSTYP is correct (in list above) in regards to öppenvård/slutenvård
+        // => profit
+
+        for (int currentPayerFacility : getPotentialPayerFacilities(index, stateDate, samverks)) {
+            String careUnitType = index.getCareUnitType(currentPayerFacility);
+
+            // Om det är en öppenvårdskontakt vars vårdenhetstyp finns med i allowedPrimaryCareUnitTypes, mappa.
+            if (kontaktForm.equals(Vkhform.ÖPPENVÅRDSKONTAKT) && ALLOWED_PRIMARY_CARE_UNIT_TYPES.contains(careUnitType)) {
+                payerOrganization = index.getHsaIdAt(currentPayerFacility, time);
+            }
+
+            // Om det är en slutenvårdskontakt vars vårdenhetstyp finns med i allowedInpatientCareUnitTypes, mappa.
+            if (kontaktForm.equals(Vkhform.SLUTENVÅRDSTILLFÄLLE) && ALLOWED_INPATIENT_CARE_UNIT_TYPES.contains(careUnitType)) {
+                payerOrganization = index.getHsaIdAt(currentPayerFacility, time);
+            }
+        }
+        return payerOrganization;
+    }
+
+    /**
+     * Returns the facility states that are candidates for usage as payer facilities. The logic works in two steps:
      * 1: If the currentFacility is of the customer type (KUNDKOD) '0000', then the payer facility must be located using a backreference
      * to lookup all the care units connected to the current CommissionState. If there is a unit that has a customer code
      * of '9175', the unit is added to the list of payer candidates.
      *
+     * @param index The index to look up the facilities in.
      * @param stateDate The date to use for lookup code mapping states.
-     * @param samverks The currently active Commission.
-     * @return A List with the FacilityState for all the potential payerFacilities.
+     * @param samverks The number of the currently active Commission in the index, or -1.
+     * @return A List with the facility state numbers of all the potential payerFacilities.
      */
-    protected static List<FacilityState> getPotentialPayerFacilities(Date stateDate, TermItemCommission<CommissionState> samverks) {
-        List<FacilityState> payerFacilities = new ArrayList<>();
-        if (samverks != null) {
-            List<TermItem<FacilityState>> backRefs = samverks.getBackRefs();
-            for (TermItem<FacilityState> currentBackRef : backRefs) {
-                FacilityState state = currentBackRef.getState(stateDate);
+    protected static List<Integer> getPotentialPayerFacilities(FacilityIndex index, Date stateDate, int samverks) {
+        List<Integer> payerFacilities = new ArrayList<>();
+        if (samverks >= 0) {
+            final long time = stateDate.getTime();
+            final int n = index.getBackRefCount(samverks);
+            for (int i = 0; i < n; i++) {
+                int state = index.stateAt(index.getBackRef(samverks, i), time);
                 // If the current facility has a Customer Code of 9175 "Betalningsansvar samtlig medicinsk service", add it to the map
                 // of potential payerFacilities.
-                if (state != null && "9175".equals(state.getCustomerCode())) {
+                if (state >= 0 && "9175".equals(index.getCustomerCode(state))) {
                     payerFacilities.add(state);
                 }
             }
@@ -0,0 +1,122 @@
+/**
+ *  Copyright (c) 2013 SLL <http://sll.se/>
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package se.sll.reimbursementadapter.admincareevent.model;
+
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+
+import se.sll.reimbursementadapter.admincareevent.util.CodeServerMEKCacheBuilder;
+import se.sll.reimbursementadapter.parser.TermItem;
+
+/**
+ * Tests that lookups in the index tables give the same result as in the object graph they are built from.
+ */
+public class FacilityIndexTest {
+
+    private static final String TEST_FILES = "src/test/resources/test-files/";
+
+    @Test
+    public void testSameAsTermItems() {
+        Map<String, TermItem<FacilityState>> index = new CodeServerMEKCacheBuilder()
+                .withCommissionFile(TEST_FILES + "SAMVERKS-REL-test.xml")
+                .withCommissionTypeFile(TEST_FILES + "UPPDRAGSTYP-test.xml")
+                .withFacilityFile(TEST_FILES + "AVD-REL-test.xml")
+                .withMekFile(TEST_FILES + "MEK-test.xml")
+                .build();
+        FacilityIndex facilityIndex = FacilityIndex.of(index);
+        Assert.assertEquals(index.size(), facilityIndex.size());
+        Assert.assertEquals(-1, facilityIndex.facilityOf("no such kombika"));
+
+        Date[] dates = { new Date(0), new Date(1262304000000L), new Date(1388534400000L), new Date() };
+        for (Map.Entry<String, TermItem<FacilityState>> entry : index.entrySet()) {
+            int avd = facilityIndex.facilityOf(entry.getKey());
+            Assert.assertTrue(avd >= 0);
+            Assert.assertEquals(entry.getKey(), facilityIndex.getKombika(avd));
+            for (Date date : dates) {
+                long time = date.getTime();
+                FacilityState expected = entry.getValue().getState(date);
+                int state = facilityIndex.stateAt(avd, time);
+                Assert.assertEquals(expected == null, state < 0);
+
+                FacilityState before = entry.getValue().getStateBefore(date);
+                int stateBefore = facilityIndex.stateBefore(avd, time);
+                Assert.assertEquals(before == null, stateBefore < 0);
+                if (before != null) {
+                    assertSameState(before, facilityIndex, stateBefore, date);
+                    HSAMappingState hsaMapping = (before.getHSAMapping() == null) ? null : before.getHSAMapping().getStateBefore(date);
+                    Assert.assertEquals((hsaMapping == null) ? null : hsaMapping.getHsaId(), facilityIndex.getHsaIdBefore(stateBefore, time));
+                }
+                if (expected != null) {
+                    assertSameState(expected, facilityIndex, state, date);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testEmpty() {
+        FacilityIndex facilityIndex = FacilityIndex.of(null);
+        Assert.assertEquals(0, facilityIndex.size());
+        Assert.assertEquals(-1, facilityIndex.facilityOf("1"));
+    }
+
+    /** Asserts that a facility state in the tables has the same values as in the graph. */
+    private static void assertSameState(FacilityState expected, FacilityIndex facilityIndex, int state, Date date) {
+        long time = date.getTime();
+        Assert.assertEquals(expected.getCustomerCode(), facilityIndex.getCustomerCode(state));
+        Assert.assertEquals(expected.getCareUnitType(), facilityIndex.getCareUnitType(state));
+        HSAMappingState hsaMapping = (expected.getHSAMapping() == null) ? null : expected.getHSAMapping().getState(date);
+        Assert.assertEquals((hsaMapping == null) ? null : hsaMapping.getHsaId(), facilityIndex.getHsaIdAt(state, time));
+
+        int n = 0;
+        for (TermItemCommission<CommissionState> samverks : expected.getCommissions()) {
+            if (samverks == null) {
+                continue;
+            }
+            int ref = facilityIndex.getCommissionRef(state, n++);
+            Assert.assertEquals(samverks.getId(), facilityIndex.getCommissionId(ref));
+
+            CommissionState commissionState = samverks.getState(date);
+            int i = facilityIndex.getCommissionStateAt(ref, time);
+            Assert.assertEquals(commissionState == null, i < 0);
+            if (commissionState != null) {
+                Assert.assertEquals(commissionState.getName(), facilityIndex.getCommissionName(i));
+                Assert.assertEquals(commissionState.getAssignmentType(), facilityIndex.getAssignmentType(i));
+                Assert.assertEquals(commissionState.getFollowsTemplate(), facilityIndex.getFollowsTemplate(i));
+                TermItem<CommissionTypeState> type = commissionState.getCommissionType();
+                int t = facilityIndex.getCommissionType(i);
+                Assert.assertEquals(type == null, t < 0);
+                if (type != null) {
+                    Assert.assertEquals(type.getId(), facilityIndex.getCommissionTypeId(t));
+                    CommissionTypeState typeState = type.getState(date);
+                    Assert.assertEquals((typeState == null) ? null : typeState.getName(), facilityIndex.getCommissionTypeNameAt(t, time));
+                }
+            }
+
+            List<TermItem<FacilityState>> backRefs = samverks.getBackRefs();
+            Assert.assertEquals(backRefs.size(), facilityIndex.getBackRefCount(ref));
+            for (int b = 0; b < backRefs.size(); b++) {
+                Assert.assertEquals(backRefs.get(b).getId(), facilityIndex.getKombika(facilityIndex.getBackRef(ref, b)));
+            }
+        }
+        Assert.assertEquals(n, facilityIndex.getCommissionCount(state));
+    }
+}
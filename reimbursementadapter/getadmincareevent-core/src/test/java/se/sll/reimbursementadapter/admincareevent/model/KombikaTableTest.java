@@ -0,0 +1,57 @@
+/**
+ *  Copyright (c) 2013 SLL <http://sll.se/>
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package se.sll.reimbursementadapter.admincareevent.model;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+
+public class KombikaTableTest {
+
+    @Test
+    public void testGet() {
+        String[] kombikas = { "19108011M04", "19108951M01", "1", "0", "00", "ZZZZZZZZZZZZ", "kombika-with-fallback", "1910801 1M04", "" };
+        KombikaTable table = new KombikaTable(kombikas);
+        for (int i = 0; i < kombikas.length; i++) {
+            Assert.assertEquals(kombikas[i], i, table.get(kombikas[i]));
+        }
+        Assert.assertEquals(-1, table.get(null));
+        Assert.assertEquals(-1, table.get("19108011M05"));
+        Assert.assertEquals(-1, table.get("000"));
+        Assert.assertEquals(-1, table.get("kombika"));
+    }
+
+    @Test
+    public void testManyKeys() {
+        String[] kombikas = new String[10000];
+        for (int i = 0; i < kombikas.length; i++) {
+            kombikas[i] = String.format("%08dM%02d", i * 7919, i % 100);
+        }
+        KombikaTable table = new KombikaTable(kombikas);
+        for (int i = 0; i < kombikas.length; i++) {
+            Assert.assertEquals(i, table.get(kombikas[i]));
+        }
+        Assert.assertEquals(-1, table.get("99999999M99"));
+    }
+
+    @Test
+    public void testEncode() {
+        Assert.assertTrue(KombikaTable.encode("ZZZZZZZZZZZZ") > 0);
+        Assert.assertFalse(KombikaTable.encode("0") == KombikaTable.encode("00"));
+        Assert.assertEquals(-1, KombikaTable.encode("ZZZZZZZZZZZZZ"));
+        Assert.assertEquals(-1, KombikaTable.encode("m04"));
+    }
+}
@@ -0,0 +1,96 @@
+/**
+ *  Copyright (c) 2013 SLL <http://sll.se/>
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package se.sll.reimbursementadapter.admincareevent.model;
+
+import java.util.Date;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+
+import se.sll.reimbursementadapter.parser.TermItem;
+
+/**
+ * Tests that state lookups give the same result as scanning the state vector.
+ */
+public class TermItemLookupTest {
+
+    private static final long DAY = 24L * 60 * 60 * 1000;
+
+    @Test
+    public void testOrderedStates() {
+        TermItem<FacilityState> item = new TermItem<>();
+        item.setId("1");
+        item.addState(state(10, 20));
+        item.addState(state(0, 4));
+        item.addState(state(5, 8));
+        item.addState(state(30, -1));
+        item.orderStates();
+        assertSameAsScan(item);
+    }
+
+    @Test
+    public void testUnorderedStates() {
+        TermItem<FacilityState> item = new TermItem<>();
+        item.setId("1");
+        item.addState(state(10, 20));
+        item.addState(state(0, 5));
+        item.addState(state(5, 8));
+        assertSameAsScan(item);
+
+        // States added after the first lookup are seen.
+        item.addState(state(30, 40));
+        assertSameAsScan(item);
+    }
+
+    @Test
+    public void testEmpty() {
+        TermItem<FacilityState> item = new TermItem<>();
+        Assert.assertNull(item.getState(new Date()));
+        Assert.assertNull(item.getStateBefore(new Date()));
+    }
+
+    //
+    private static FacilityState state(int fromDay, int toDay) {
+        FacilityState state = new FacilityState();
+        state.setValidFrom(new Date(fromDay * DAY));
+        state.setValidTo((toDay < 0) ? null : new Date(toDay * DAY));
+        return state;
+    }
+
+    //
+    private static void assertSameAsScan(TermItem<FacilityState> item) {
+        for (long t = -DAY; t <= 50 * DAY; t += DAY / 2) {
+            Date date = new Date(t);
+            FacilityState valid = null;
+            for (FacilityState state : item.getStateVector()) {
+                if (state.isValid(date)) {
+                    valid = state;
+                    break;
+                }
+            }
+            FacilityState before = null;
+            for (FacilityState state : item.getStateVector()) {
+                if (state.getValidFrom().before(date)) {
+                    before = state;
+                    break;
+                }
+            }
+            Assert.assertSame("getState at " + date, valid, item.getState(date));
+            Assert.assertSame("getStateBefore at " + date, before, item.getStateBefore(date));
+        }
+    }
+}
@@ -0,0 +1,175 @@
+/**
+ *  Copyright (c) 2013 SLL <http://sll.se/>
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package se.sll.reimbursementadapter.admincareevent.service;
+
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.RejectedExecutionException;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+
+import se.sll.reimbursementadapter.TestSupport;
+import se.sll.reimbursementadapter.admincareevent.model.FacilityIndex;
+import se.sll.reimbursementadapter.admincareevent.model.FacilityState;
+import se.sll.reimbursementadapter.admincareevent.model.HSAMappingState;
+import se.sll.reimbursementadapter.parser.TermItem;
+
+/**
+ * Tests rebuilding the index in the background and the checks of a rebuilt index.
+ */
+public class CodeServerMEKCacheManagerServiceTest extends TestSupport {
+
+    /** A time when the test facilities and HSA mappings are valid. */
+    private static final long NOW = 1388534400000L;
+
+    @Autowired
+    private CodeServerMEKCacheManagerService cacheManager;
+
+    @Test
+    public void testRevalidateAsync() throws Exception {
+        cacheManager.revalidate();
+        IndexSnapshot before = cacheManager.getSnapshot();
+        Assert.assertTrue(cacheManager.isReady());
+
+        cacheManager.revalidateAsync().get();
+        IndexSnapshot after = cacheManager.getSnapshot();
+        Assert.assertTrue(after.getGeneration() > before.getGeneration());
+        Assert.assertEquals(before.getFacilityIndex().size(), after.getFacilityIndex().size());
+    }
+
+    @Test
+    public void testRevalidatePublishesNewSnapshot() {
+        cacheManager.revalidate();
+        IndexSnapshot before = cacheManager.getSnapshot();
+        Assert.assertSame(before, cacheManager.getSnapshot());
+        Assert.assertSame(before.getFacilityIndex(), cacheManager.getCurrentIndex());
+
+        cacheManager.revalidate();
+        IndexSnapshot after = cacheManager.getSnapshot();
+        Assert.assertNotSame(before, after);
+        Assert.assertTrue(after.getGeneration() > before.getGeneration());
+        Assert.assertNotSame(before.getFacilityIndex(), after.getFacilityIndex());
+        Assert.assertEquals(before.getFacilityIndex().size(), after.getFacilityIndex().size());
+    }
+
+    @Test
+    public void testPinnedSnapshotSurvivesSwap() {
+        cacheManager.revalidate();
+        IndexSnapshot pinned = cacheManager.getSnapshot();
+        FacilityIndex pinnedIndex = pinned.getFacilityIndex();
+        long generation = pinned.getGeneration();
+        Assert.assertTrue(pinnedIndex.size() > 0);
+        String kombika = pinnedIndex.getKombika(0);
+        try {
+            cacheManager.setCurrentIndex(index(0, 10, true));
+            IndexSnapshot swapped = cacheManager.getSnapshot();
+            Assert.assertTrue(swapped.getGeneration() > generation);
+            Assert.assertEquals(-1, swapped.getFacilityIndex().facilityOf(kombika));
+
+            // A request holding the old snapshot still sees the old index.
+            Assert.assertEquals(generation, pinned.getGeneration());
+            Assert.assertSame(pinnedIndex, pinned.getFacilityIndex());
+            Assert.assertEquals(0, pinned.getFacilityIndex().facilityOf(kombika));
+        } finally {
+            cacheManager.setCurrentIndex(pinnedIndex);
+        }
+    }
+
+    @Test
+    public void testRevalidateIfChanged() {
+        cacheManager.revalidate();
+        IndexSnapshot before = cacheManager.getSnapshot();
+        cacheManager.revalidateIfChanged();
+        Assert.assertSame(before, cacheManager.getSnapshot());
+    }
+
+    @Test
+    public void testValidate() {
+        FacilityIndex current = index(0, 100, true);
+        Assert.assertNull(validate(null, index(0, 0, true)));
+        Assert.assertNull(validate(current, index(0, 100, true)));
+        Assert.assertNull(validate(current, index(0, 80, true)));
+        Assert.assertNull(CodeServerMEKCacheManagerService.validate(current, index(0, 0, true), 1, NOW));
+
+        Assert.assertNotNull(validate(current, index(0, 0, true)));
+        Assert.assertNotNull(validate(current, index(0, 79, true)));
+        // Same size, but most of the kombikas are new.
+        Assert.assertNotNull(validate(current, index(50, 150, true)));
+    }
+
+    @Test
+    public void testValidateResolvesKombikas() {
+        // Same kombikas, but they no longer map to HSA-ids.
+        Assert.assertNotNull(validate(index(0, 100, true), index(0, 100, false)));
+        // Kombikas that didn't resolve before aren't counted.
+        Assert.assertNull(validate(index(0, 100, false), index(0, 100, false)));
+    }
+
+    @Test
+    public void testValidateSampleSize() {
+        int size = CodeServerMEKCacheManagerService.KOMBIKA_SAMPLE_SIZE * 3;
+        String rejection = validate(index(0, size, true), index(0, size, false));
+        Assert.assertEquals(String.format("%1$d of %1$d sampled kombikas no longer resolve to an HSA-id.", CodeServerMEKCacheManagerService.KOMBIKA_SAMPLE_SIZE),
+                            rejection);
+        Assert.assertEquals("10 of 10 sampled kombikas no longer resolve to an HSA-id.", validate(index(0, 10, true), index(0, 10, false)));
+    }
+
+    @Test
+    public void testNoRebuildAfterShutdown() {
+        CodeServerMEKCacheManagerService service = new CodeServerMEKCacheManagerService();
+        service.shutdown();
+        try {
+            service.revalidateAsync();
+            Assert.fail("Expected a RejectedExecutionException");
+        } catch (RejectedExecutionException e) {
+            // expected
+        }
+    }
+
+    //
+    private static String validate(FacilityIndex current, FacilityIndex index) {
+        return CodeServerMEKCacheManagerService.validate(current, index, 0.2, NOW);
+    }
+
+    /** An index of the kombikas from to to, each with one facility state, mapped to an HSA-id or not. */
+    private static FacilityIndex index(int from, int to, boolean mapped) {
+        Map<String, TermItem<FacilityState>> index = new HashMap<>();
+        for (int i = from; i < to; i++) {
+            TermItem<FacilityState> item = new TermItem<>();
+            item.setId(String.valueOf(i));
+            FacilityState state = new FacilityState();
+            state.setValidFrom(new Date(0));
+            state.setValidTo(new Date(Long.MAX_VALUE));
+            if (mapped) {
+                TermItem<HSAMappingState> hsaMapping = new TermItem<>();
+                hsaMapping.setId(item.getId());
+                HSAMappingState hsaState = new HSAMappingState();
+                hsaState.setValidFrom(new Date(0));
+                hsaState.setValidTo(new Date(Long.MAX_VALUE));
+                hsaState.setHsaId("SE2321000016-" + i);
+                hsaMapping.addState(hsaState);
+                state.setHSAMapping(hsaMapping);
+            }
+            item.addState(state);
+            index.put(item.getId(), item);
+        }
+        return FacilityIndex.of(index);
+    }
+}
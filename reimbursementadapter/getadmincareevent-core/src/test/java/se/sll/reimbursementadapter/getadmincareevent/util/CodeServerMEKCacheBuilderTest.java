@@ -0,0 +1,228 @@
+/**
+ *  Copyright (c) 2013 SLL <http://sll.se/>
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package se.sll.reimbursementadapter.getadmincareevent.util;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.Assert;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import se.sll.reimbursementadapter.admincareevent.model.CommissionTypeState;
+import se.sll.reimbursementadapter.admincareevent.model.FacilityState;
+import se.sll.reimbursementadapter.admincareevent.model.HSAMappingState;
+import se.sll.reimbursementadapter.admincareevent.util.CodeServerMEKCacheBuilder;
+import se.sll.reimbursementadapter.parser.TermItem;
+
+/**
+ * Tests that a builder only parses the files that changed since its last build, and that the MEK
+ * file parsed on another thread is awaited and its failures passed on.
+ */
+public class CodeServerMEKCacheBuilderTest {
+
+    private static final String TEST_FILES = "src/test/resources/test-files/";
+    private static final String[] FILES = { "SAMVERKS-REL-test.xml", "UPPDRAGSTYP-test.xml", "AVD-REL-test.xml", "MEK-test.xml" };
+
+    private File dir;
+    private CodeServerMEKCacheBuilder builder;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = Files.createTempDirectory("codeserver").toFile();
+        for (String file : FILES) {
+            Files.copy(new File(TEST_FILES + file).toPath(), new File(dir, file).toPath());
+        }
+        builder = configure(new CodeServerMEKCacheBuilder());
+    }
+
+    @After
+    public void tearDown() {
+        for (File file : dir.listFiles()) {
+            file.delete();
+        }
+        dir.delete();
+    }
+
+    @Test
+    public void testRebuildChangedFiles() throws IOException {
+        Assert.assertTrue(builder.isChanged());
+        Map<String, TermItem<FacilityState>> first = builder.build();
+        Assert.assertFalse(builder.isChanged());
+
+        // Same content, new modification time.
+        File mek = new File(dir, FILES[3]);
+        Assert.assertTrue(mek.setLastModified(mek.lastModified() - 60000));
+        Assert.assertFalse(builder.isChanged());
+
+        Map<String, TermItem<FacilityState>> second = builder.build();
+        Assert.assertNotSame(first, second);
+        Assert.assertEquals(first.keySet(), second.keySet());
+        FacilityState a = mapped(first);
+        String kombika = key(first, a);
+        FacilityState b = second.get(kombika).getStateVector().get(0);
+        // The MEK file wasn't parsed again, but the facilities were linked again.
+        Assert.assertNotSame(a, b);
+        Assert.assertSame(a.getHSAMapping(), b.getHSAMapping());
+
+        try (FileWriter writer = new FileWriter(mek, true)) {
+            writer.write("\n");
+        }
+        Assert.assertTrue(builder.isChanged());
+        Map<String, TermItem<FacilityState>> third = builder.build();
+        FacilityState c = third.get(kombika).getStateVector().get(0);
+        Assert.assertNotSame(a.getHSAMapping(), c.getHSAMapping());
+        Assert.assertEquals(a.getHSAMapping().getStateVector().get(0).getHsaId(), c.getHSAMapping().getStateVector().get(0).getHsaId());
+        Assert.assertFalse(builder.isChanged());
+    }
+
+    @Test
+    public void testMekParsedWhileCommissionsAreBuilt() throws Exception {
+        final CountDownLatch commissionTypesStarted = new CountDownLatch(1);
+        final ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            final CodeServerMEKCacheBuilder builder = new CodeServerMEKCacheBuilder() {
+                @Override
+                protected Map<String, List<TermItem<HSAMappingState>>> createHSAIndex() {
+                    try {
+                        // Only gets past this if the commission types are built at the same time.
+                        Assert.assertTrue(commissionTypesStarted.await(10, TimeUnit.SECONDS));
+                        // Slow, so that the build has to wait for it.
+                        Thread.sleep(200);
+                    } catch (InterruptedException e) {
+                        throw new IllegalStateException(e);
+                    }
+                    return super.createHSAIndex();
+                }
+
+                @Override
+                protected HashMap<String, TermItem<CommissionTypeState>> createCommissionTypeIndex() {
+                    commissionTypesStarted.countDown();
+                    return super.createCommissionTypeIndex();
+                }
+            };
+            configure(builder).withExecutor(executor);
+
+            Map<String, TermItem<FacilityState>> index = builder.build();
+            Assert.assertNotNull(mapped(index).getHSAMapping());
+            Assert.assertFalse(builder.isChanged());
+            Assert.assertFalse(executor.isShutdown());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testMekFailurePassedOn() {
+        final IllegalStateException failure = new IllegalStateException("Broken MEK file");
+        final CodeServerMEKCacheBuilder builder = configure(new CodeServerMEKCacheBuilder() {
+            @Override
+            protected Map<String, List<TermItem<HSAMappingState>>> createHSAIndex() {
+                throw failure;
+            }
+        });
+        try {
+            builder.build();
+            Assert.fail("Expected the MEK failure");
+        } catch (IllegalStateException e) {
+            Assert.assertSame(failure, e);
+        }
+        // Nothing from the failed build is kept.
+        Assert.assertTrue(builder.isChanged());
+    }
+
+    @Test
+    public void testMekCancelledWhenCommissionsFail() throws Exception {
+        final CountDownLatch mekStarted = new CountDownLatch(1);
+        final CountDownLatch mekInterrupted = new CountDownLatch(1);
+        final IllegalStateException failure = new IllegalStateException("Broken UPPDRAGSTYP file");
+        final CodeServerMEKCacheBuilder builder = configure(new CodeServerMEKCacheBuilder() {
+            @Override
+            protected Map<String, List<TermItem<HSAMappingState>>> createHSAIndex() {
+                mekStarted.countDown();
+                try {
+                    Thread.sleep(60000);
+                } catch (InterruptedException e) {
+                    mekInterrupted.countDown();
+                }
+                return new HashMap<>();
+            }
+
+            @Override
+            protected HashMap<String, TermItem<CommissionTypeState>> createCommissionTypeIndex() {
+                try {
+                    Assert.assertTrue(mekStarted.await(10, TimeUnit.SECONDS));
+                } catch (InterruptedException e) {
+                    throw new IllegalStateException(e);
+                }
+                throw failure;
+            }
+        });
+        try {
+            builder.build();
+            Assert.fail("Expected the UPPDRAGSTYP failure");
+        } catch (IllegalStateException e) {
+            Assert.assertSame(failure, e);
+        }
+        Assert.assertTrue(mekInterrupted.await(10, TimeUnit.SECONDS));
+    }
+
+    //
+    private CodeServerMEKCacheBuilder configure(CodeServerMEKCacheBuilder builder) {
+        return builder
+                .withCommissionFile(path(FILES[0]))
+                .withCommissionTypeFile(path(FILES[1]))
+                .withFacilityFile(path(FILES[2]))
+                .withMekFile(path(FILES[3]));
+    }
+
+    //
+    private String path(String file) {
+        return new File(dir, file).getPath();
+    }
+
+    /** Returns the first facility state with an HSA mapping. */
+    private static FacilityState mapped(Map<String, TermItem<FacilityState>> index) {
+        for (TermItem<FacilityState> item : index.values()) {
+            FacilityState state = item.getStateVector().get(0);
+            if (state.getHSAMapping() != null) {
+                return state;
+            }
+        }
+        throw new AssertionError("No facility with an HSA mapping");
+    }
+
+    //
+    private static String key(Map<String, TermItem<FacilityState>> index, FacilityState state) {
+        for (Map.Entry<String, TermItem<FacilityState>> entry : index.entrySet()) {
+            if (entry.getValue().getStateVector().get(0) == state) {
+                return entry.getKey();
+            }
+        }
+        throw new AssertionError("No such state");
+    }
+}
@@ -0,0 +1,212 @@
+/**
+ *  Copyright (c) 2013 SLL <http://sll.se/>
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package se.sll.reimbursementadapter.getadmincareevent.util;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+
+import se.sll.reimbursementadapter.admincareevent.model.FacilityIndex;
+import se.sll.reimbursementadapter.admincareevent.util.CodeServerMEKCacheBuilder;
+import se.sll.reimbursementadapter.admincareevent.util.CodeServerMEKIndexFile;
+
+/**
+ * Tests that an index read back from the binary format gives the same lookups as the one written.
+ */
+public class CodeServerMEKIndexFileTest {
+
+    private static final String TEST_FILES = "src/test/resources/test-files/";
+
+    @Test
+    public void testRoundTrip() throws IOException {
+        FacilityIndex index = build();
+
+        File file = File.createTempFile("hsa-index", ".bin");
+        try {
+            CodeServerMEKIndexFile.write(index, file.getPath());
+            Assert.assertTrue(CodeServerMEKIndexFile.isIndexFile(file.getPath()));
+            FacilityIndex read = CodeServerMEKIndexFile.read(file.getPath());
+            assertSameLookups(index, read);
+
+            // Nothing is left open, the file can be replaced right after it's read.
+            CodeServerMEKIndexFile.write(read, file.getPath());
+            assertSameLookups(index, CodeServerMEKIndexFile.read(file.getPath()));
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void testEmpty() throws IOException {
+        File file = File.createTempFile("hsa-index", ".bin");
+        try {
+            CodeServerMEKIndexFile.write(FacilityIndex.of(null), file.getPath());
+            Assert.assertEquals(0, CodeServerMEKIndexFile.read(file.getPath()).size());
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void testTruncatedFile() throws IOException {
+        File file = File.createTempFile("hsa-index", ".bin");
+        try {
+            CodeServerMEKIndexFile.write(build(), file.getPath());
+            try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+                raf.setLength(raf.length() / 2);
+            }
+            Assert.assertTrue(CodeServerMEKIndexFile.isIndexFile(file.getPath()));
+            CodeServerMEKIndexFile.read(file.getPath());
+            Assert.fail("Expected an IOException");
+        } catch (IOException e) {
+            // expected
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void testCorruptReference() throws IOException {
+        File file = File.createTempFile("hsa-index", ".bin");
+        try {
+            CodeServerMEKIndexFile.write(build(), file.getPath());
+            try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+                // Each kombika is written as its length and bytes, the facility offsets follow.
+                raf.seek(8);
+                skipStrings(raf);
+                skipStrings(raf);
+                raf.readInt();
+                raf.writeInt(Integer.MAX_VALUE);
+            }
+            CodeServerMEKIndexFile.read(file.getPath());
+            Assert.fail("Expected an IOException");
+        } catch (IOException e) {
+            // expected
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void testOlderVersion() throws IOException {
+        File file = File.createTempFile("hsa-index", ".bin");
+        try (DataOutputStream os = new DataOutputStream(new FileOutputStream(file))) {
+            os.writeInt(0x47565249);
+            os.writeInt(1);
+            os.writeInt(0);
+        }
+        try {
+            Assert.assertTrue(CodeServerMEKIndexFile.isIndexFile(file.getPath()));
+            CodeServerMEKIndexFile.read(file.getPath());
+            Assert.fail("Expected an IOException");
+        } catch (IOException e) {
+            Assert.assertTrue(e.getMessage().contains("version 1"));
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void testNotIndexFile() throws IOException {
+        File file = File.createTempFile("hsa-index", ".gz");
+        try (FileOutputStream os = new FileOutputStream(file)) {
+            os.write(new byte[] { 0x1f, (byte) 0x8b, 8, 0, 0, 0, 0, 0 });
+        }
+        try {
+            Assert.assertFalse(CodeServerMEKIndexFile.isIndexFile(file.getPath()));
+            CodeServerMEKIndexFile.read(file.getPath());
+            Assert.fail("Expected an IOException");
+        } catch (IOException e) {
+            // expected
+        } finally {
+            file.delete();
+        }
+    }
+
+    //
+    private static FacilityIndex build() {
+        return FacilityIndex.of(new CodeServerMEKCacheBuilder()
+                .withCommissionFile(TEST_FILES + "SAMVERKS-REL-test.xml")
+                .withCommissionTypeFile(TEST_FILES + "UPPDRAGSTYP-test.xml")
+                .withFacilityFile(TEST_FILES + "AVD-REL-test.xml")
+                .withMekFile(TEST_FILES + "MEK-test.xml")
+                .build());
+    }
+
+    //
+    private static void skipStrings(RandomAccessFile raf) throws IOException {
+        for (int n = raf.readInt(); n > 0; n--) {
+            raf.skipBytes(raf.readInt());
+        }
+    }
+
+    //
+    private static void assertSameLookups(FacilityIndex expected, FacilityIndex actual) {
+        Assert.assertEquals(expected.size(), actual.size());
+        long[] times = { 0, 1262304000000L, 1388534400000L, System.currentTimeMillis() };
+        for (int avd = 0; avd < expected.size(); avd++) {
+            String kombika = expected.getKombika(avd);
+            Assert.assertEquals(avd, actual.facilityOf(kombika));
+            for (long time : times) {
+                int stateBefore = expected.stateBefore(avd, time);
+                Assert.assertEquals(stateBefore, actual.stateBefore(avd, time));
+                if (stateBefore >= 0) {
+                    Assert.assertEquals(expected.getHsaIdBefore(stateBefore, time), actual.getHsaIdBefore(stateBefore, time));
+                }
+
+                int state = expected.stateAt(avd, time);
+                Assert.assertEquals(state, actual.stateAt(avd, time));
+                if (state < 0) {
+                    continue;
+                }
+                Assert.assertEquals(expected.getCustomerCode(state), actual.getCustomerCode(state));
+                Assert.assertEquals(expected.getCareUnitType(state), actual.getCareUnitType(state));
+                Assert.assertEquals(expected.getHsaIdAt(state, time), actual.getHsaIdAt(state, time));
+                Assert.assertEquals(expected.getCommissionCount(state), actual.getCommissionCount(state));
+                for (int i = 0; i < expected.getCommissionCount(state); i++) {
+                    int samverks = expected.getCommissionRef(state, i);
+                    Assert.assertEquals(samverks, actual.getCommissionRef(state, i));
+                    Assert.assertEquals(expected.getCommissionId(samverks), actual.getCommissionId(samverks));
+                    Assert.assertEquals(expected.getBackRefCount(samverks), actual.getBackRefCount(samverks));
+                    for (int b = 0; b < expected.getBackRefCount(samverks); b++) {
+                        Assert.assertEquals(expected.getBackRef(samverks, b), actual.getBackRef(samverks, b));
+                    }
+
+                    int commissionState = expected.getCommissionStateAt(samverks, time);
+                    Assert.assertEquals(commissionState, actual.getCommissionStateAt(samverks, time));
+                    if (commissionState < 0) {
+                        continue;
+                    }
+                    Assert.assertEquals(expected.getCommissionName(commissionState), actual.getCommissionName(commissionState));
+                    Assert.assertEquals(expected.getAssignmentType(commissionState), actual.getAssignmentType(commissionState));
+                    Assert.assertEquals(expected.getFollowsTemplate(commissionState), actual.getFollowsTemplate(commissionState));
+                    int type = expected.getCommissionType(commissionState);
+                    Assert.assertEquals(type, actual.getCommissionType(commissionState));
+                    if (type >= 0) {
+                        Assert.assertEquals(expected.getCommissionTypeId(type), actual.getCommissionTypeId(type));
+                        Assert.assertEquals(expected.getCommissionTypeNameAt(type, time), actual.getCommissionTypeNameAt(type, time));
+                    }
+                }
+            }
+        }
+    }
+}
@@ -15,6 +15,8 @@
  */
 package se.sll.reimbursementadapter.getadmincareevent.util;
 
+import junit.framework.Assert;
+
 import org.junit.Test;
 import org.springframework.beans.factory.annotation.Autowired;
 
@@ -35,6 +35,7 @@ import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
 import riv.followup.processdevelopment.reimbursement.getadministrativecareeventresponder.v1.GetAdministrativeCareEventResponse;
 import riv.followup.processdevelopment.reimbursement.getadministrativecareeventresponder.v1.GetAdministrativeCareEventType;
 import riv.followup.processdevelopment.reimbursement.v1.DateTimePeriodType;
+import se.sll.reimbursementadapter.admincareevent.model.FacilityIndex;
 import se.sll.reimbursementadapter.admincareevent.service.CodeServerMEKCacheManagerService;
 import se.sll.reimbursementadapter.admincareevent.ws.AbstractProducer;
 import se.sll.reimbursementadapter.gvr.reader.DateFilterMethod;
@@ -174,13 +175,15 @@ public class GetAdministrativeCareEventProducerTest extends AbstractProducer {
     public void testTimezoneDateFilterEndExclusiveMetadata() throws Exception {
         this.getGvrFileReader().setDateFilterMethod(DateFilterMethod.METADATA);
         CodeServerMEKCacheManagerService.getInstance().revalidate();
-        for (String test : CodeServerMEKCacheManagerService.getInstance().getCurrentIndex().keySet()) {
+        FacilityIndex index = CodeServerMEKCacheManagerService.getInstance().getCurrentIndex();
+        for (int avd = 0; avd < index.size(); avd++) {
+            String test = index.getKombika(avd);
             if (test.startsWith("191370")) {
                 System.out.println("Kombika: " + test);
 
             }
         }
-        System.out.println("Testget: " + CodeServerMEKCacheManagerService.getInstance().getCurrentIndex().get("19137011000"));
+        System.out.println("Testget: " + index.facilityOf("19137011000"));
         SimpleDateFormat sf = new SimpleDateFormat("yyyyMMddHHmmssSSSZ");
         Date expectedDate = sf.parse("20140201080000000+0000");
         Date expectedDate2    = sf.parse("20140202080000000+0000");
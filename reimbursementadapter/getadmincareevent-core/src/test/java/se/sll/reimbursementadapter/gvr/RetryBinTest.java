@@ -16,10 +16,17 @@
 package se.sll.reimbursementadapter.gvr;
 
 import java.io.File;
+import java.io.FileOutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.Date;
 import java.util.GregorianCalendar;
 import java.util.HashMap;
+import java.util.List;
+import java.util.UUID;
 
 import javax.xml.datatype.DatatypeFactory;
 import javax.xml.datatype.XMLGregorianCalendar;
@@ -146,6 +153,25 @@ public class RetryBinTest
         Assert.assertNotNull(old.get("124"));
     }
 
+    @Test
+    public void testGetOldOfHeader() throws Exception
+    {
+        Date now = new Date();
+        retryBin.put(createMinimalErsh("123"), now);
+        retryBin.put(createMinimalErsh("124"), now);
+        retryBin.acceptNewAndSave();
+
+        List<TimeOrderedEventMap.Header> headers = retryBin.getOldHeaders(new Date(now.getTime() + 1));
+        Assert.assertEquals(2, headers.size());
+        Assert.assertEquals(headers.get(0).getId(), retryBin.getOld(headers.get(0)).getID());
+
+        // Gone, or put again since the header was read.
+        retryBin.remove(headers.get(0).getId());
+        Assert.assertNull(retryBin.getOld(headers.get(0)));
+        retryBin.old.put(headers.get(1).getId(), createMinimalErsh(headers.get(1).getId()));
+        Assert.assertNull(retryBin.getOld(headers.get(1)));
+    }
+
     @Test
     public void testSaveAndLoad() throws Exception 
     {        
@@ -219,7 +245,234 @@ public class RetryBinTest
     }
 
     @Test
-    public void testPutInsertsInNewIfAllEmpty() throws Exception 
+    public void testAcceptAndSaveAppendsChangesToJournal() throws Exception
+    {
+        Date now = new Date();
+        retryBin.journalMaxRecords = 100;
+        retryBin.put(createMinimalErsh("123"), now);
+        retryBin.put(createMinimalErsh("124"), now);
+        retryBin.acceptNewAndSave();
+
+        retryBin.load();
+        retryBin.put(createMinimalErsh("125"), now);
+        retryBin.remove("123");
+        retryBin.acceptNewAndSave();
+
+        retryBin.load();
+        Assert.assertEquals(2, retryBin.old.size());
+        retryBin.put(createMinimalErsh("126"), now);
+        retryBin.acceptNewAndSave();
+        
+        Assert.assertEquals(2, new File(retryBin.dir).listFiles().length);
+        Assert.assertTrue(Paths.get(retryBin.dir, "retry-bin-000000000.journal").toFile().isFile());
+
+        RetryBin loaded = new RetryBin();
+        loaded.dir = retryBin.dir;
+        loaded.load();
+        Assert.assertEquals(retryBin.old.keySet(), loaded.old.keySet());
+        Assert.assertNull(loaded.old.get("123"));
+        Assert.assertNotNull(loaded.old.get("126"));
+    }
+
+    @Test
+    public void testAcceptAndSaveWritesNothingIfUnchanged() throws Exception
+    {
+        retryBin.journalMaxRecords = 100;
+        retryBin.put(createMinimalErsh("123"), new Date());
+        retryBin.acceptNewAndSave();
+
+        retryBin.load();
+        retryBin.acceptNewAndSave();
+        
+        Assert.assertEquals(1, new File(retryBin.dir).listFiles().length);
+    }
+
+    @Test
+    public void testAcceptAndSaveWritesCheckpointWhenJournalIsFull() throws Exception
+    {
+        retryBin.journalMaxRecords = 2;
+        retryBin.acceptNewAndSave();
+
+        retryBin.load();
+        retryBin.put(createMinimalErsh("123"), new Date());
+        retryBin.put(createMinimalErsh("124"), new Date());
+        retryBin.acceptNewAndSave();
+        Assert.assertFalse(Paths.get(retryBin.dir, "retry-bin-000000001.xml").toFile().isFile());
+
+        retryBin.load();
+        retryBin.put(createMinimalErsh("125"), new Date());
+        retryBin.acceptNewAndSave();
+        Assert.assertTrue(Paths.get(retryBin.dir, "retry-bin-000000001.xml").toFile().isFile());
+
+        retryBin.load();
+        Assert.assertEquals(3, retryBin.old.size());
+    }
+
+    @Test
+    public void testLoadReplaysDiscardAndIgnoresUncommittedChanges() throws Exception
+    {
+        Date now = new Date();
+        Date timeExpired = new Date(now.getTime() - 1000L * 3600L * 24L * 181L);
+        retryBin.journalMaxRecords = 100;
+        retryBin.put(createMinimalErsh("12"), now);
+        retryBin.put(createMinimalErsh("13"), timeExpired);
+        retryBin.acceptNewAndSave();
+
+        retryBin.load();
+        retryBin.discardOld(now);
+        retryBin.acceptNewAndSave();
+
+        // A save that was interrupted.
+        try (FileOutputStream out = new FileOutputStream(Paths.get(retryBin.dir, "retry-bin-000000000.journal").toFile(), true)) {
+            out.write(new byte[] { 'R', 0, 2, '1' });
+        }
+
+        retryBin.load();
+        Assert.assertEquals(1, retryBin.old.size());
+        Assert.assertNotNull(retryBin.old.get("12"));
+
+        // Not appended to after the partial record.
+        retryBin.acceptNewAndSave();
+        Assert.assertTrue(Paths.get(retryBin.dir, "retry-bin-000000001.xml").toFile().isFile());
+    }
+
+    @Test
+    public void testLoadKeepsBinInMemory() throws Exception
+    {
+        Ersättningshändelse ersh = createMinimalErsh("123");
+        retryBin.journalMaxRecords = 100;
+        retryBin.put(ersh, new Date());
+        retryBin.acceptNewAndSave();
+
+        retryBin.old.setFailure("123", 7, Collections.<String>emptyList());
+
+        // Not read again, the header that isn't saved is kept.
+        retryBin.load();
+        Assert.assertEquals(7, retryBin.old.getHeader("123").getFailedGeneration());
+        Assert.assertEquals(Paths.get(retryBin.dir, "retry-bin-000000000.xml"), retryBin.getCurrentFile());
+
+        // Compacted, decoded when read.
+        Assert.assertNotSame(ersh, retryBin.old.get("123"));
+        Assert.assertNotSame(retryBin.old.get("123"), retryBin.old.get("123"));
+        Assert.assertEquals("191212121212", retryBin.old.get("123").getPatient().getID());
+
+        // Changes that weren't saved are thrown away.
+        retryBin.remove("123");
+        retryBin.put(createMinimalErsh("124"), new Date());
+        retryBin.load();
+        Assert.assertEquals(1, retryBin.old.size());
+        Assert.assertNotNull(retryBin.old.get("123"));
+        Assert.assertEquals(0, retryBin.nev.size());
+    }
+
+    @Test
+    public void testLoadAgainWhenFilesAreChanged() throws Exception
+    {
+        retryBin.journalMaxRecords = 100;
+        retryBin.put(createMinimalErsh("123"), new Date());
+        retryBin.acceptNewAndSave();
+        retryBin.load();
+
+        RetryBin other = new RetryBin();
+        other.dir = retryBin.dir;
+        other.fileKeepCount = 4;
+        other.journalMaxRecords = 100;
+        other.load();
+        other.put(createMinimalErsh("124"), new Date());
+        other.acceptNewAndSave();
+
+        retryBin.load();
+        Assert.assertEquals(2, retryBin.old.size());
+
+        other.journalMaxRecords = 0;
+        other.remove("123");
+        other.acceptNewAndSave();
+
+        retryBin.load();
+        Assert.assertEquals(1, retryBin.old.size());
+        Assert.assertEquals(Paths.get(retryBin.dir, "retry-bin-000000001.xml"), retryBin.getCurrentFile());
+    }
+
+    @Test
+    public void testLoadIgnoresJournalOfReplacedCheckpoint() throws Exception
+    {
+        retryBin.journalMaxRecords = 100;
+        retryBin.put(createMinimalErsh("123"), new Date());
+        retryBin.acceptNewAndSave();
+        retryBin.load();
+        retryBin.put(createMinimalErsh("124"), new Date());
+        retryBin.acceptNewAndSave();
+
+        // Replaced with an empty bin.
+        RetryBin empty = new RetryBin();
+        empty.dir = tmp.newFolder().getAbsolutePath();
+        empty.fileKeepCount = 4;
+        empty.acceptNewAndSave();
+        File checkpoint = Paths.get(retryBin.dir, "retry-bin-000000000.xml").toFile();
+        checkpoint.delete();
+        Assert.assertTrue(Paths.get(empty.dir, "retry-bin-000000000.xml").toFile().renameTo(checkpoint));
+
+        retryBin.load();
+        Assert.assertEquals(0, retryBin.old.size());
+    }
+
+    @Test
+    public void testLoadIgnoresJournalOfSameLengthCheckpoint() throws Exception
+    {
+        retryBin.journalMaxRecords = 100;
+        retryBin.put(createMinimalErsh("123"), new Date());
+        retryBin.acceptNewAndSave();
+        retryBin.load();
+        retryBin.put(createMinimalErsh("124"), new Date());
+        retryBin.acceptNewAndSave();
+
+        // Replaced with a checkpoint of the same length, that only differs in its ID.
+        Path checkpoint = Paths.get(retryBin.dir, "retry-bin-000000000.xml");
+        String content = new String(Files.readAllBytes(checkpoint), "ISO-8859-1");
+        String id = content.replaceFirst("(?s).*<ERSMOIndata [^>]*ID=\"([^\"]*)\".*", "$1");
+        byte[] replaced = content.replace(id, UUID.randomUUID().toString()).getBytes("ISO-8859-1");
+        Assert.assertEquals(Files.size(checkpoint), replaced.length);
+        Files.write(checkpoint, replaced);
+
+        retryBin.load();
+        Assert.assertEquals(1, retryBin.old.size());
+        Assert.assertNotNull(retryBin.old.get("123"));
+    }
+
+    @Test
+    public void testFailuresAreSavedWithTheEvents() throws Exception
+    {
+        retryBin.journalMaxRecords = 100;
+        retryBin.put(createMinimalErsh("123"), new Date());
+        retryBin.put(createMinimalErsh("124"), new Date());
+        retryBin.acceptNewAndSave();
+        retryBin.load();
+        retryBin.setFailed(retryBin.old.get("123"), 7, Arrays.asList("99999999M99", "19108011M04"));
+        retryBin.acceptNewAndSave();
+
+        // Appended to the journal.
+        RetryBin other = new RetryBin();
+        other.dir = retryBin.dir;
+        other.fileKeepCount = 4;
+        other.journalMaxRecords = 1;
+        other.load();
+        Assert.assertEquals(Paths.get(retryBin.dir, "retry-bin-000000000.xml"), other.getCurrentFile());
+        Assert.assertEquals(7, other.old.getHeader("123").getFailedGeneration());
+        Assert.assertEquals(Arrays.asList("99999999M99", "19108011M04"), other.old.getHeader("123").getFailedKombikas());
+        Assert.assertTrue(other.old.getHeader("124").getFailedKombikas().isEmpty());
+
+        // Carried over to the next checkpoint.
+        other.put(createMinimalErsh("125"), new Date());
+        other.acceptNewAndSave();
+        Assert.assertTrue(Paths.get(retryBin.dir, "retry-bin-000000001.xml").toFile().isFile());
+        retryBin.load();
+        Assert.assertEquals(3, retryBin.old.size());
+        Assert.assertEquals(7, retryBin.old.getHeader("123").getFailedGeneration());
+        Assert.assertEquals(Arrays.asList("99999999M99", "19108011M04"), retryBin.old.getHeader("123").getFailedKombikas());
+    }
+
+    @Test
+    public void testPutInsertsInNewIfAllEmpty()throws Exception 
     {
         Ersättningshändelse ersh = new Ersättningshändelse();
         ersh.setID("123");
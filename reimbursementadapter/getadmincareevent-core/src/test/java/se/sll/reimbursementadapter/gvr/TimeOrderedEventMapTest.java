@@ -0,0 +1,180 @@
+/**
+ *  Copyright (c) 2013 SLL <http://sll.se/>
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package se.sll.reimbursementadapter.gvr;
+
+import java.util.Arrays;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.Map;
+
+import javax.xml.datatype.DatatypeFactory;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import se.sll.ersmo.xml.indata.ERSMOIndata.Ersättningshändelse;
+
+public class TimeOrderedEventMapTest
+{
+    @Test
+    public void testOrderedByTime() throws Exception
+    {
+        TimeOrderedEventMap map = new TimeOrderedEventMap();
+        map.put("1", ersh("1", 3000));
+        map.put("2", ersh("2", 1000));
+        map.put("3", ersh("3", 2000));
+        map.put("4", ersh("4", 1000));
+        map.put("5", new Ersättningshändelse());
+
+        Assert.assertEquals(5, map.size());
+        Assert.assertEquals(Long.valueOf(2000), map.getTime("3"));
+        Assert.assertNull(map.getTime("6"));
+        Assert.assertEquals(3, map.atOrBefore(1000).size());
+        Assert.assertEquals(4, map.atOrBefore(2999).size());
+        Assert.assertEquals("1", map.atOrBefore(3000).get(4).getID());
+
+        // Moved when put again.
+        map.put("1", ersh("1", 500));
+        Assert.assertEquals(4, map.atOrBefore(1000).size());
+        Assert.assertEquals(5, map.size());
+
+        Assert.assertEquals(2, map.removeBefore(1000));
+        Assert.assertEquals(3, map.size());
+        Assert.assertNull(map.get("1"));
+        Assert.assertNull(map.get("5"));
+        Assert.assertNotNull(map.get("2"));
+        Assert.assertNotNull(map.get("4"));
+        Assert.assertEquals(0, map.removeBefore(1000));
+        Assert.assertEquals(2, map.removeBefore(1001));
+    }
+
+    @Test
+    public void testRemoveThroughIterator() throws Exception
+    {
+        TimeOrderedEventMap map = new TimeOrderedEventMap();
+        map.put("1", ersh("1", 1000));
+        map.put("2", ersh("2", 2000));
+        map.put("3", ersh("3", 2000));
+
+        Iterator<Map.Entry<String, Ersättningshändelse>> iterator = map.entrySet().iterator();
+        Assert.assertEquals("1", iterator.next().getKey());
+        Assert.assertTrue(iterator.hasNext());
+        iterator.remove();
+        Assert.assertEquals("2", iterator.next().getKey());
+        iterator.remove();
+        Assert.assertEquals("3", iterator.next().getKey());
+        Assert.assertFalse(iterator.hasNext());
+
+        Assert.assertEquals(1, map.size());
+        Assert.assertTrue(map.containsKey("3"));
+        Assert.assertEquals(1, map.atOrBefore(2000).size());
+        Assert.assertNull(map.remove("1"));
+        Assert.assertNotNull(map.remove("3"));
+        Assert.assertTrue(map.isEmpty());
+    }
+
+    @Test
+    public void testHeaderKeptUntilPutAgain() throws Exception
+    {
+        TimeOrderedEventMap map = new TimeOrderedEventMap();
+        map.put("1", ersh("1", 1000));
+        Assert.assertEquals(0, map.getHeader("1").getFailedGeneration());
+        map.setFailure("1", 3, Arrays.asList("19108011M04"));
+        map.setFailure("2", 3, Arrays.asList("19108011M04"));
+        Assert.assertNull(map.getHeader("2"));
+
+        TimeOrderedEventMap other = new TimeOrderedEventMap();
+        other.putAll(map);
+        Assert.assertEquals(3, other.getHeader("1").getFailedGeneration());
+        Assert.assertEquals(Arrays.asList("19108011M04"), other.getHeader("1").getFailedKombikas());
+        Assert.assertEquals(1000, other.getHeader("1").getTime());
+
+        map.put("1", ersh("1", 2000));
+        Assert.assertEquals(0, map.getHeader("1").getFailedGeneration());
+        Assert.assertTrue(map.getHeader("1").getFailedKombikas().isEmpty());
+    }
+
+    @Test
+    public void testCompact() throws Exception
+    {
+        TimeOrderedEventMap map = new TimeOrderedEventMap();
+        Ersättningshändelse ersh = RetryBinTest.createMinimalErsh("1");
+        ersh.setLastUpdated(RetryBin.dateToXmlCal(new Date(1000)));
+        ersh.setStartdatum(DatatypeFactory.newInstance().newXMLGregorianCalendar("2014-06-01"));
+        ersh.setSlutdatum(ersh.getStartdatum());
+        map.put("1", ersh);
+        map.put("2", ersh("2", 2000));
+        map.setFailure("1", 3, Arrays.asList("19108011M04"));
+
+        Assert.assertEquals(2, map.compact());
+        Assert.assertEquals(0, map.compact());
+
+        Ersättningshändelse decoded = map.get("1");
+        Assert.assertNotSame(ersh, decoded);
+        Assert.assertEquals("1", decoded.getID());
+        Assert.assertEquals(ersh.getLastUpdated(), decoded.getLastUpdated());
+        Assert.assertEquals(ersh.getStartdatum(), decoded.getStartdatum());
+        Assert.assertEquals(ersh.getSlutverksamhet(), decoded.getSlutverksamhet());
+        Assert.assertEquals(ersh.getPatient().getID(), decoded.getPatient().getID());
+        Assert.assertEquals(ersh.getHändelseklass().getVårdkontakt().getHändelseform(), decoded.getHändelseklass().getVårdkontakt().getHändelseform());
+        Assert.assertEquals(3, map.getHeader("1").getFailedGeneration());
+
+        Assert.assertEquals("1", map.headersAtOrBefore(1000).get(0).getId());
+        Assert.assertEquals(2, map.atOrBefore(2000).size());
+        Assert.assertEquals("2", map.remove("2").getID());
+        Assert.assertNotNull(map.delete("1"));
+        Assert.assertTrue(map.isEmpty());
+    }
+
+    @Test
+    public void testCompactOnlyEncodesEventsPutSinceLastTime() throws Exception
+    {
+        TimeOrderedEventMap map = new TimeOrderedEventMap();
+        map.put("1", ersh("1", 1000));
+        map.put("2", ersh("2", 1000));
+        Assert.assertEquals(2, map.compact());
+
+        map.put("3", ersh("3", 2000));
+        map.put("4", ersh("4", 3000));
+        map.put("2", ersh("2", 2000));
+        map.remove("3");
+        map.removeBefore(3000);
+        Assert.assertEquals(1, map.compact());
+        Assert.assertEquals(0, map.compact());
+
+        // Copied as they are, nothing new to encode.
+        TimeOrderedEventMap other = new TimeOrderedEventMap();
+        other.putAll(map);
+        Assert.assertEquals(0, other.compact());
+        Assert.assertNotSame(other.get("4"), other.get("4"));
+
+        Ersättningshändelse ersh = ersh("5", 4000);
+        map.put("5", ersh);
+        other.putAll(map);
+        Assert.assertSame(ersh, other.get("5"));
+        Assert.assertEquals(1, other.compact());
+        Assert.assertEquals(2, other.size());
+    }
+
+    //
+    private static Ersättningshändelse ersh(String id, long time) throws Exception
+    {
+        Ersättningshändelse ersh = new Ersättningshändelse();
+        ersh.setID(id);
+        ersh.setLastUpdated(RetryBin.dateToXmlCal(new Date(time)));
+        return ersh;
+    }
+}
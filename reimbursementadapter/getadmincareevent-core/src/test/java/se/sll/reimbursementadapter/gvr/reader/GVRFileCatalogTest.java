@@ -0,0 +1,94 @@
+/**
+ *  Copyright (c) 2013 SLL <http://sll.se/>
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package se.sll.reimbursementadapter.gvr.reader;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.Date;
+import java.util.List;
+
+import junit.framework.Assert;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.springframework.beans.factory.annotation.Autowired;
+
+import se.sll.reimbursementadapter.TestSupport;
+
+/**
+ * Tests that the GVR file catalog follows changes in the directory.
+ */
+public class GVRFileCatalogTest extends TestSupport {
+
+    @Autowired
+    private GVRFileReader gvrFileReader;
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    @Test
+    public void testSyncFollowsDirectoryChanges() throws Exception {
+        GVRFileCatalog catalog = new GVRFileCatalog();
+        Path dir = tmp.getRoot().toPath();
+        Path first = Files.createFile(dir.resolve("ERSMO_2014-02-01T080000.000+0000.xml"));
+        Files.createFile(dir.resolve("ERSMO_2014-02-03T080000.000+0000.xml"));
+        Files.createFile(dir.resolve("readme.txt"));
+
+        catalog.sync(dir, gvrFileReader, DateFilterMethod.FILENAME);
+        List<GVRFile> all = catalog.getFiles(dir, null, null);
+        Assert.assertEquals(2, all.size());
+        Assert.assertEquals(first, all.get(0).getPath());
+
+        Files.createFile(dir.resolve("ERSMO_2014-02-02T080000.000+0000.xml"));
+        Files.delete(first);
+        // Make sure the change is noticed regardless of the file system timestamp granularity.
+        Files.setLastModifiedTime(dir, FileTime.fromMillis(System.currentTimeMillis() + 10000L));
+
+        catalog.sync(dir, gvrFileReader, DateFilterMethod.FILENAME);
+        all = catalog.getFiles(dir, null, null);
+        Assert.assertEquals(2, all.size());
+        Assert.assertEquals("ERSMO_2014-02-02T080000.000+0000.xml", all.get(0).getPath().getFileName().toString());
+        Assert.assertEquals("ERSMO_2014-02-03T080000.000+0000.xml", all.get(1).getPath().getFileName().toString());
+    }
+
+    @Test
+    public void testRangeQueryAndEventCount() throws Exception {
+        GVRFileCatalog catalog = new GVRFileCatalog();
+        Path dir = tmp.getRoot().toPath();
+        for (int i = 1; i <= 5; i++) {
+            Path p = Files.createFile(dir.resolve("ERSMO_" + i + ".xml"));
+            Files.setLastModifiedTime(p, FileTime.fromMillis(i * 1000L));
+        }
+
+        catalog.sync(dir, gvrFileReader, DateFilterMethod.METADATA);
+        List<GVRFile> range = catalog.getFiles(dir, new Date(2000L), new Date(4000L));
+        Assert.assertEquals(3, range.size());
+        Assert.assertEquals("ERSMO_2.xml", range.get(0).getPath().getFileName().toString());
+        Assert.assertEquals(2000L, range.get(0).getTimestamp());
+        Assert.assertEquals("ERSMO_4.xml", range.get(2).getPath().getFileName().toString());
+
+        Path second = dir.resolve("ERSMO_2.xml");
+        Assert.assertEquals(GVRFileCatalog.UNKNOWN_EVENT_COUNT, catalog.getEntry(second).getEventCount());
+        catalog.recordEventCount(second, 42);
+        Assert.assertEquals(42, catalog.getEntry(second).getEventCount());
+
+        // Changed on disk, the count can no longer be trusted.
+        Files.write(second, new byte[] { 1 });
+        Assert.assertNull(catalog.getEntry(second));
+    }
+}
@@ -31,6 +31,7 @@ import org.junit.Test;
 import org.springframework.beans.factory.annotation.Autowired;
 
 import se.sll.reimbursementadapter.TestSupport;
+import se.sll.reimbursementadapter.gvr.transform.ERSMOIndataMarshaller;
 
 /**
  * Tests various functions in the GVRFileReader component.
@@ -224,5 +225,15 @@ public class GVRFileReaderTest extends TestSupport {
         Reader reader = gvrFileReader.getReaderForFile(entry);
         Assert.assertNotNull(reader);
     }
-}
 
+    @Test
+    public void testGetEventCount() throws Exception {
+        String localPath = gvrFileReader.getLocalPath();
+        Path entry = FileSystems.getDefault().getPath(localPath + "ERSMO_2014-02-04T080000.000+0000.xml");
+        int expected;
+        try (Reader reader = gvrFileReader.getReaderForFile(entry)) {
+            expected = new ERSMOIndataMarshaller().unmarshal(reader).getErsättningshändelse().size();
+        }
+        Assert.assertEquals(expected, gvrFileReader.getEventCount(entry));
+    }
+}
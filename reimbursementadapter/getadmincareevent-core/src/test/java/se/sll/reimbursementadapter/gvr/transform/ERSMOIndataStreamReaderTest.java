@@ -0,0 +1,91 @@
+/**
+ *  Copyright (c) 2013 SLL <http://sll.se/>
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package se.sll.reimbursementadapter.gvr.transform;
+
+import java.io.Reader;
+import java.io.StringReader;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+import javax.xml.bind.JAXBException;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+
+import se.sll.ersmo.xml.indata.ERSMOIndata;
+import se.sll.ersmo.xml.indata.ERSMOIndata.Ersättningshändelse;
+import se.sll.reimbursementadapter.TestSupport;
+import se.sll.reimbursementadapter.gvr.reader.GVRFileReader;
+
+/**
+ * Tests that the streaming reader yields the same content as unmarshalling the whole file.
+ */
+public class ERSMOIndataStreamReaderTest extends TestSupport {
+
+    /** Lists files matching a period and provides Readers for individual files. */
+    @Autowired
+    private GVRFileReader gvrFileReader;
+
+    @Test
+    public void testSameAsMarshaller() throws Exception {
+        List<Path> files = gvrFileReader.getFileList((Date) null, (Date) null);
+        Assert.assertFalse(files.isEmpty());
+        for (Path file : files) {
+            ERSMOIndata expected = null;
+            try (Reader reader = gvrFileReader.getReaderForFile(file)) {
+                expected = new ERSMOIndataMarshaller().unmarshal(reader);
+            } catch (JAXBException e) {
+            }
+
+            List<Ersättningshändelse> actual = new ArrayList<>();
+            String källa = null;
+            try (Reader reader = gvrFileReader.getReaderForFile(file);
+                 ERSMOIndataStreamReader streamReader = new ERSMOIndataStreamReader(reader)) {
+                källa = streamReader.getKälla();
+                Ersättningshändelse ersh;
+                while ((ersh = streamReader.next()) != null) {
+                    actual.add(ersh);
+                }
+                Assert.assertNotNull("Invalid file was read: " + file, expected);
+            } catch (JAXBException e) {
+                Assert.assertNull("Valid file was rejected: " + file, expected);
+                continue;
+            }
+
+            Assert.assertEquals(expected.getKälla(), källa);
+            Assert.assertEquals(expected.getErsättningshändelse().size(), actual.size());
+            for (int i = 0; i < actual.size(); i++) {
+                Ersättningshändelse e = expected.getErsättningshändelse().get(i);
+                Assert.assertEquals(e.getID(), actual.get(i).getID());
+                Assert.assertEquals(e.getSlutverksamhet(), actual.get(i).getSlutverksamhet());
+                Assert.assertEquals(e.getStartdatum(), actual.get(i).getStartdatum());
+            }
+        }
+    }
+
+    @Test(expected = JAXBException.class)
+    public void testInvalidDocument() throws Exception {
+        String xml = "<?xml version=\"1.0\" encoding=\"ISO-8859-1\"?>\n<ERSMOIndata Källa=\"GVR\" ID=\"1\"><Okänd/></ERSMOIndata>";
+        try (ERSMOIndataStreamReader streamReader = new ERSMOIndataStreamReader(new StringReader(xml))) {
+            while (streamReader.next() != null) {
+            }
+        }
+    }
+}
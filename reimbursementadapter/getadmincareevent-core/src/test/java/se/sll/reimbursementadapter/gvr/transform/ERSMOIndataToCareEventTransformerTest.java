@@ -1,28 +1,40 @@
 package se.sll.reimbursementadapter.gvr.transform;
 
 import java.io.Reader;
+import java.io.StringWriter;
 import java.nio.file.FileSystems;
 import java.nio.file.Path;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.Date;
 import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+
+import javax.xml.bind.JAXBContext;
+import javax.xml.bind.JAXBElement;
+import javax.xml.bind.Marshaller;
+import javax.xml.namespace.QName;
 
 import org.junit.Assert;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 import org.springframework.beans.factory.annotation.Autowired;
 
 import riv.followup.processdevelopment.reimbursement.v1.CareEventType;
 import se.sll.ersmo.xml.indata.ERSMOIndata;
+import se.sll.ersmo.xml.indata.ERSMOIndata.Ersättningshändelse;
 import se.sll.ersmo.xml.indata.Vkhform;
 import se.sll.reimbursementadapter.TestSupport;
-import se.sll.reimbursementadapter.admincareevent.model.CommissionState;
-import se.sll.reimbursementadapter.admincareevent.model.FacilityState;
-import se.sll.reimbursementadapter.admincareevent.model.TermItemCommission;
+import se.sll.reimbursementadapter.admincareevent.model.FacilityIndex;
 import se.sll.reimbursementadapter.admincareevent.service.CodeServerMEKCacheManagerService;
+import se.sll.reimbursementadapter.admincareevent.service.IndexSnapshot;
 import se.sll.reimbursementadapter.gvr.RetryBin;
+import se.sll.reimbursementadapter.gvr.RetryBinTest;
+import se.sll.reimbursementadapter.gvr.TimeOrderedEventMap;
 import se.sll.reimbursementadapter.gvr.reader.DateFilterMethod;
 import se.sll.reimbursementadapter.gvr.reader.GVRFileReader;
-import se.sll.reimbursementadapter.parser.TermItem;
 
 /**
  * Tests the ERSMOIndataToCareEventTransformer with different
@@ -34,6 +46,9 @@ public class ERSMOIndataToCareEventTransformerTest extends TestSupport {
     @Autowired
     private GVRFileReader gvrFileReader;
 
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
     /**
      * Tests the entire transformation of a ERSMOIndata file to a List of CareEventTypes
      * @throws Exception on IO exceptions when reading files.
@@ -337,12 +352,12 @@ public class ERSMOIndataToCareEventTransformerTest extends TestSupport {
         instance.revalidate(); // ??
         Date stateDate = new Date();
         String sourceFacilityId = "91605010010";
-        final TermItem<FacilityState> avd = instance.getCurrentIndex().get(sourceFacilityId);
-        FacilityState currentAvd = avd.getState(stateDate);
-        final TermItemCommission<CommissionState> samverks = currentAvd.getCommissions().get(0);
+        final KombikaResolver resolver = KombikaResolver.forIndex(instance.getSnapshot());
+        final KombikaResolver.Facility currentAvd = resolver.getFacility(sourceFacilityId, stateDate);
+        final KombikaResolver.Commission samverks = currentAvd.getCommissions().get(0);
         // Not really part of this test, but it never hurts.
         Assert.assertEquals("Facility ID", "9081", samverks.getId());
-        Assert.assertEquals("Payer facility HSA", "SE2321000016-15CQ", TransformHelper.getPayerOrganization(Vkhform.SLUTENVÅRDSTILLFÄLLE, stateDate, currentAvd, samverks, "SE2321000016-39KJ", null, null, null, null));
+        Assert.assertEquals("Payer facility HSA", "SE2321000016-15CQ", TransformHelper.getPayerOrganization(resolver, Vkhform.SLUTENVÅRDSTILLFÄLLE, stateDate, currentAvd, samverks, "SE2321000016-39KJ", null, null, null, null));
     }
 
     @Test
@@ -351,11 +366,12 @@ public class ERSMOIndataToCareEventTransformerTest extends TestSupport {
         instance.revalidate(); // ??
         Date stateDate = new Date();
         String sourceFacilityId = "30216311003";
-        final TermItem<FacilityState> facilityState = instance.getCurrentIndex().get(sourceFacilityId);
-        final TermItemCommission<CommissionState> commissionState = facilityState.getState(stateDate).getCommissions().get(0);
+        final KombikaResolver resolver = KombikaResolver.forIndex(instance.getSnapshot());
+        final KombikaResolver.Facility facilityState = resolver.getFacility(sourceFacilityId, stateDate);
+        final KombikaResolver.Commission commissionState = facilityState.getCommissions().get(0);
         // Not really part of this test, but it never hurts.
         Assert.assertEquals("Facility ID", "9081", commissionState.getId());
-        Assert.assertEquals("Payer facility HSA", "SE2321000016-39KJ", TransformHelper.getPayerOrganization(Vkhform.SLUTENVÅRDSTILLFÄLLE, stateDate, facilityState.getState(stateDate), commissionState, "SE2321000016-39KJ", null, null, null, null));
+        Assert.assertEquals("Payer facility HSA", "SE2321000016-39KJ", TransformHelper.getPayerOrganization(resolver, Vkhform.SLUTENVÅRDSTILLFÄLLE, stateDate, facilityState, commissionState, "SE2321000016-39KJ", null, null, null, null));
     }
 
     @Test
@@ -364,13 +380,95 @@ public class ERSMOIndataToCareEventTransformerTest extends TestSupport {
         instance.revalidate(); // ??
         Date stateDate = new Date();
         String sourceFacilityId = "91605010010";
-        final TermItem<FacilityState> facilityState = instance.getCurrentIndex().get(sourceFacilityId);
-        final TermItemCommission<CommissionState> commissionState = facilityState.getState(stateDate).getCommissions().get(0);
+        final FacilityIndex index = instance.getCurrentIndex();
+        final KombikaResolver.Facility facilityState = KombikaResolver.forIndex(instance.getSnapshot()).getFacility(sourceFacilityId, stateDate);
+        final KombikaResolver.Commission commissionState = facilityState.getCommissions().get(0);
         // Not really part of this test, but it never hurts.
         Assert.assertEquals("Facility ID", "9081", commissionState.getId());
 
-        Assert.assertEquals("Payer facility 1", "30216311002", TransformHelper.getPotentialPayerFacilities(stateDate, commissionState).get(0).getHSAMapping().getId());
-        Assert.assertEquals("Payer facility 1", "30216311003", TransformHelper.getPotentialPayerFacilities(stateDate, commissionState).get(1).getHSAMapping().getId());
+        List<Integer> payerFacilities = TransformHelper.getPotentialPayerFacilities(index, stateDate, commissionState.getNumber());
+        Assert.assertEquals("Payer facility 1", index.stateAt(index.facilityOf("30216311002"), stateDate.getTime()), (int) payerFacilities.get(0));
+        Assert.assertEquals("Payer facility 1", index.stateAt(index.facilityOf("30216311003"), stateDate.getTime()), (int) payerFacilities.get(1));
     }
-    
-}
\ No newline at end of file
+
+    @Test
+    public void testParallelTransformSameAsSequential() throws Exception {
+        CodeServerMEKCacheManagerService.getInstance().revalidate();
+        gvrFileReader.setDateFilterMethod(DateFilterMethod.FILENAME);
+
+        Path inFile = FileSystems.getDefault().getPath(gvrFileReader.getLocalPath() + "ERSMO_2014-02-02T080000.000+0000.xml");
+        List<ERSMOIndata.Ersättningshändelse> ershList = new ArrayList<>();
+        while (ershList.size() <= 4 * ERSMOIndataToCareEventTransformer.PARALLEL_THRESHOLD) {
+            try (Reader fileReader = gvrFileReader.getReaderForFile(inFile)) {
+                ershList.addAll(new ERSMOIndataMarshaller().unmarshal(fileReader).getErsättningshändelse());
+            }
+        }
+        Date fileUpdatedTime = gvrFileReader.getDateFromGVRFile(inFile);
+
+        List<CareEventType> sequential = new ArrayList<>();
+        ERSMOIndataToCareEventTransformer.doTransform(new RetryBin(), true, sequential, ershList, fileUpdatedTime, inFile);
+        List<CareEventType> parallel = new ArrayList<>();
+        ForkJoinPool pool = new ForkJoinPool(4);
+        try {
+            ERSMOIndataToCareEventTransformer.doTransform(new RetryBin(), true, parallel, ershList, fileUpdatedTime, inFile, pool);
+        } finally {
+            pool.shutdown();
+        }
+
+        Assert.assertEquals(sequential.size(), parallel.size());
+        Marshaller marshaller = JAXBContext.newInstance(CareEventType.class).createMarshaller();
+        for (int i = 0; i < sequential.size(); i++) {
+            Assert.assertEquals("Care event " + i, toXml(marshaller, sequential.get(i)), toXml(marshaller, parallel.get(i)));
+        }
+    }
+
+    //
+    private static String toXml(Marshaller marshaller, CareEventType careEvent) throws Exception {
+        StringWriter writer = new StringWriter();
+        marshaller.marshal(new JAXBElement<>(new QName("careEvent"), CareEventType.class, careEvent), writer);
+        return writer.toString();
+    }
+
+    /**
+     * Tests that retry bin events aren't transformed again when they are known to fail as before.
+     */
+    @Test
+    public void testRetrySkipsUnchangedFailures() throws Exception {
+        final CodeServerMEKCacheManagerService instance = CodeServerMEKCacheManagerService.getInstance();
+        instance.revalidate();
+        IndexSnapshot index = instance.getSnapshot();
+        long generation = index.getGeneration();
+
+        RetryBin retryBin = new RetryBin();
+        retryBin.dir = tmp.getRoot().getAbsolutePath();
+        Ersättningshändelse ersh = RetryBinTest.createMinimalErsh("123");
+        ersh.setSlutverksamhet("99999999M99");
+        ersh.setLastUpdated(RetryBin.dateToXmlCal(new Date(0)));
+        retryBin.old.put("123", ersh);
+        List<CareEventType> careEventList = new ArrayList<CareEventType>();
+
+        ERSMOIndataToCareEventTransformer.retry(retryBin, careEventList, new Date(), index, null);
+        TimeOrderedEventMap.Header header = retryBin.old.getHeader("123");
+        Assert.assertEquals(generation, header.getFailedGeneration());
+        Assert.assertEquals(Arrays.asList("99999999M99"), header.getFailedKombikas());
+
+        // Failed with this index, not transformed again.
+        retryBin.old.setFailure("123", generation, Collections.<String>emptyList());
+        ERSMOIndataToCareEventTransformer.retry(retryBin, careEventList, new Date(), index, null);
+        Assert.assertTrue(retryBin.old.getHeader("123").getFailedKombikas().isEmpty());
+
+        // Failed with an older index.
+        retryBin.old.setFailure("123", generation - 1, Collections.<String>emptyList());
+        ERSMOIndataToCareEventTransformer.retry(retryBin, careEventList, new Date(), index, null);
+        Assert.assertEquals(generation, retryBin.old.getHeader("123").getFailedGeneration());
+        Assert.assertEquals(Arrays.asList("99999999M99"), retryBin.old.getHeader("123").getFailedKombikas());
+
+        // Failed with an older index, but the kombika is still unknown.
+        retryBin.old.setFailure("123", generation - 1, Arrays.asList("99999999M99"));
+        ERSMOIndataToCareEventTransformer.retry(retryBin, careEventList, new Date(), index, null);
+        Assert.assertEquals(generation - 1, retryBin.old.getHeader("123").getFailedGeneration());
+
+        Assert.assertEquals(0, careEventList.size());
+        Assert.assertEquals(1, retryBin.old.size());
+    }
+}
@@ -0,0 +1,237 @@
+/**
+ *  Copyright (c) 2013 SLL <http://sll.se/>
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package se.sll.reimbursementadapter.gvr.transform;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.Assert;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import se.sll.reimbursementadapter.gvr.reader.GVRFile;
+import se.sll.reimbursementadapter.gvr.reader.GVRFileReader;
+import se.sll.reimbursementadapter.gvr.transform.GVRFilePipeline.LoadedFile;
+
+/**
+ * Tests that the file pipeline loads ahead on an executor but hands out the files in order.
+ */
+public class GVRFilePipelineTest {
+
+    /** A valid file without care events, from another source so that nothing is transformed. */
+    private static final String EMPTY_FILE = "<?xml version=\"1.0\" encoding=\"ISO-8859-1\"?>\n<ERSMOIndata Källa=\"TEST\" ID=\"1\"/>";
+
+    private static final long TIMEOUT_SECONDS = 10;
+
+    private ExecutorService executor;
+
+    @Before
+    public void setUp() {
+        executor = Executors.newFixedThreadPool(2);
+    }
+
+    @After
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void testHandsOutFilesInOrder() throws Exception {
+        StubReader reader = new StubReader();
+        GVRFile first = reader.add("first", 1);
+        GVRFile second = reader.add("second", 1);
+        // The first file isn't done until the second one is.
+        reader.gates.put(first.getPath(), reader.loaded.get(second.getPath()));
+
+        GVRFilePipeline pipeline = new GVRFilePipeline(reader, null, Arrays.asList(first, second), executor, 2, 100, null, null);
+        try {
+            LoadedFile loaded = pipeline.next(0);
+            Assert.assertSame(first, loaded.getFile());
+            Assert.assertNull(loaded.getReadErrorMessage());
+            Assert.assertSame(second, pipeline.next(0).getFile());
+            Assert.assertNull(pipeline.next(0));
+        } finally {
+            pipeline.close();
+        }
+    }
+
+    @Test
+    public void testErrorsAreKeptWithTheFile() throws Exception {
+        StubReader reader = new StubReader();
+        GVRFile broken = reader.add("broken", 1);
+        GVRFile good = reader.add("good", 1);
+        GVRFile failing = reader.add("failing", 1);
+        IOException readError = new IOException("Broken");
+        IllegalStateException runtimeError = new IllegalStateException("Failing");
+        reader.errors.put(broken.getPath(), readError);
+        reader.errors.put(failing.getPath(), runtimeError);
+
+        GVRFilePipeline pipeline = new GVRFilePipeline(reader, null, Arrays.asList(broken, good, failing), executor, 2, 100, null, null);
+        try {
+            LoadedFile loaded = pipeline.next(0);
+            Assert.assertSame(broken, loaded.getFile());
+            Assert.assertNotNull(loaded.getReadErrorMessage());
+            Assert.assertSame(readError, loaded.getReadError());
+
+            loaded = pipeline.next(0);
+            Assert.assertSame(good, loaded.getFile());
+            Assert.assertNull(loaded.getReadErrorMessage());
+
+            try {
+                pipeline.next(0);
+                Assert.fail("Expected the load failure to be rethrown.");
+            } catch (IllegalStateException e) {
+                Assert.assertSame(runtimeError, e);
+            }
+        } finally {
+            pipeline.close();
+        }
+    }
+
+    @Test
+    public void testCloseCancelsPendingLoads() throws Exception {
+        StubReader reader = new StubReader();
+        GVRFile first = reader.add("first", 1);
+        GVRFile stuck = reader.add("stuck", 1);
+        reader.gates.put(stuck.getPath(), new CountDownLatch(1));
+
+        GVRFilePipeline pipeline = new GVRFilePipeline(reader, null, Arrays.asList(first, stuck), executor, 2, 100, null, null);
+        Assert.assertSame(first, pipeline.next(0).getFile());
+        Assert.assertTrue(reader.opened.get(stuck.getPath()).await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        pipeline.close();
+        Assert.assertTrue(reader.interrupted.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        Assert.assertFalse(reader.recorded.contains(stuck.getPath()));
+        Assert.assertNull(pipeline.next(1));
+    }
+
+    @Test
+    public void testReadsAheadAtMostDepthFiles() throws Exception {
+        StubReader reader = new StubReader();
+        GVRFile first = reader.add("first", 1);
+        GVRFile second = reader.add("second", 1);
+        GVRFile third = reader.add("third", 1);
+
+        GVRFilePipeline pipeline = new GVRFilePipeline(reader, null, Arrays.asList(first, second, third), executor, 2, 100, null, null);
+        try {
+            Assert.assertSame(first, pipeline.next(0).getFile());
+            Assert.assertEquals(2, reader.counted.get());
+            Assert.assertSame(second, pipeline.next(1).getFile());
+            Assert.assertSame(third, pipeline.next(2).getFile());
+            Assert.assertNull(pipeline.next(3));
+        } finally {
+            pipeline.close();
+        }
+    }
+
+    @Test
+    public void testStopsReadingAheadAtMaxEvents() throws Exception {
+        StubReader reader = new StubReader();
+        GVRFile first = reader.add("first", 2);
+        GVRFile second = reader.add("second", 2);
+        GVRFile third = reader.add("third", 2);
+
+        GVRFilePipeline pipeline = new GVRFilePipeline(reader, null, Arrays.asList(first, second, third), executor, 3, 5, null, null);
+        try {
+            Assert.assertSame(first, pipeline.next(0).getFile());
+            Assert.assertSame(second, pipeline.next(2).getFile());
+
+            // The third file doesn't fit, it's handed out with only the count.
+            LoadedFile loaded = pipeline.next(4);
+            Assert.assertSame(third, loaded.getFile());
+            Assert.assertTrue(loaded.isCountOnly());
+            Assert.assertEquals(2, loaded.getEventCount());
+            Assert.assertNull(pipeline.next(4));
+            Assert.assertEquals(1, reader.opened.get(third.getPath()).getCount());
+        } finally {
+            pipeline.close();
+        }
+    }
+
+    /**
+     * Serves empty files with given event counts. Opening a file can be held back by a gate, or fail.
+     */
+    private static class StubReader extends GVRFileReader {
+        private final Map<Path, Integer> eventCounts = new HashMap<>();
+        private final Map<Path, CountDownLatch> gates = new HashMap<>();
+        private final Map<Path, Exception> errors = new HashMap<>();
+        private final Map<Path, CountDownLatch> opened = new HashMap<>();
+        private final Map<Path, CountDownLatch> loaded = new HashMap<>();
+        private final Set<Path> recorded = Collections.synchronizedSet(new HashSet<Path>());
+        private final CountDownLatch interrupted = new CountDownLatch(1);
+        private final AtomicInteger counted = new AtomicInteger();
+
+        GVRFile add(String name, int eventCount) {
+            Path path = Paths.get(name + ".xml");
+            eventCounts.put(path, eventCount);
+            opened.put(path, new CountDownLatch(1));
+            loaded.put(path, new CountDownLatch(1));
+            return new GVRFile(path, eventCounts.size());
+        }
+
+        @Override
+        public int getEventCount(Path file) {
+            counted.incrementAndGet();
+            return eventCounts.get(file);
+        }
+
+        @Override
+        public void recordEventCount(Path file, int eventCount) {
+            recorded.add(file);
+            loaded.get(file).countDown();
+        }
+
+        @Override
+        public Reader getReaderForFile(Path path) throws IOException {
+            opened.get(path).countDown();
+            CountDownLatch gate = gates.get(path);
+            if (gate != null) {
+                try {
+                    if (!gate.await(TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+                        throw new IOException("Timed out waiting to open " + path);
+                    }
+                } catch (InterruptedException e) {
+                    interrupted.countDown();
+                    throw new InterruptedIOException();
+                }
+            }
+            Exception error = errors.get(path);
+            if (error instanceof IOException) {
+                throw (IOException) error;
+            }
+            if (error != null) {
+                throw (RuntimeException) error;
+            }
+            return new StringReader(EMPTY_FILE);
+        }
+    }
+}
@@ -0,0 +1,98 @@
+/**
+ *  Copyright (c) 2013 SLL <http://sll.se/>
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package se.sll.reimbursementadapter.gvr.transform;
+
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+
+import junit.framework.Assert;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.springframework.beans.factory.annotation.Autowired;
+
+import se.sll.reimbursementadapter.TestSupport;
+import se.sll.reimbursementadapter.admincareevent.service.CodeServerMEKCacheManagerService;
+import se.sll.reimbursementadapter.gvr.reader.DateFilterMethod;
+import se.sll.reimbursementadapter.gvr.reader.GVRFile;
+import se.sll.reimbursementadapter.gvr.reader.GVRFileReader;
+
+/**
+ * Tests that newly arrived GVR files are prepared, and that stale results are not used.
+ */
+public class GVRFilePreTransformerTest extends TestSupport {
+
+    /** Lists files matching a period and provides Readers for individual files. */
+    @Autowired
+    private GVRFileReader gvrFileReader;
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    @Test
+    public void testPrepareNewFiles() throws Exception {
+        CodeServerMEKCacheManagerService.getInstance().revalidate();
+
+        String localPath = gvrFileReader.getLocalPath();
+        gvrFileReader.setDateFilterMethod(DateFilterMethod.FILENAME);
+        gvrFileReader.setLocalPath(tmp.getRoot().getAbsolutePath());
+        try {
+            GVRFilePreTransformer preTransformer = new GVRFilePreTransformer(gvrFileReader);
+            preTransformer.maxEvents = 1000;
+
+            // Files present at the first run are left to the requests.
+            copy(localPath, "ERSMO_2014-07-15T080000.000+0000.xml");
+            preTransformer.prepareNewFiles();
+            List<GVRFile> files = gvrFileReader.getFiles(null, null);
+            Assert.assertEquals(1, files.size());
+            Assert.assertNull(preTransformer.get(files.get(0)));
+
+            copy(localPath, "ERSMO_2014-07-15T090000.000+0000.xml");
+            preTransformer.prepareNewFiles();
+            files = gvrFileReader.getFiles(null, null);
+            Assert.assertEquals(2, files.size());
+            GVRFile newFile = files.get(1);
+            GVRFilePreTransformer.PreparedFile preparedFile = preTransformer.get(newFile);
+            Assert.assertNotNull(preparedFile);
+            Assert.assertEquals(TransformHelper.SLL_GVR_SOURCE, preparedFile.getKälla());
+            Assert.assertTrue(preparedFile.getEventCount() > 0);
+            Assert.assertEquals(preparedFile.getEventCount(), preparedFile.getEvents().size());
+
+            // A changed file has to be read again by the request.
+            Files.write(newFile.getPath(), "\n".getBytes(), StandardOpenOption.APPEND);
+            Assert.assertNull(preTransformer.get(newFile));
+
+            // Handed out files are not prepared again.
+            preTransformer.prepareNewFiles();
+            Assert.assertNotNull(preTransformer.get(newFile));
+            preTransformer.release(newFile);
+            preTransformer.prepareNewFiles();
+            Assert.assertNull(preTransformer.get(newFile));
+        } finally {
+            gvrFileReader.setLocalPath(localPath);
+        }
+    }
+
+    //
+    private void copy(String fromDir, String fileName) throws Exception {
+        Path source = FileSystems.getDefault().getPath(fromDir + fileName);
+        Files.copy(source, tmp.getRoot().toPath().resolve(fileName));
+    }
+}
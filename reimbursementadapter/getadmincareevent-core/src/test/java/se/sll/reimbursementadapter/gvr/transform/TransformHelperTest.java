@@ -1,6 +1,7 @@
 package se.sll.reimbursementadapter.gvr.transform;
 
 import java.util.Date;
+import java.util.List;
 
 import org.junit.Assert;
 import org.junit.Test;
@@ -10,12 +11,9 @@ import se.sll.ersmo.xml.indata.ERSMOIndata;
 import se.sll.ersmo.xml.indata.Kon;
 import se.sll.ersmo.xml.indata.Vkhform;
 import se.sll.reimbursementadapter.TestSupport;
-import se.sll.reimbursementadapter.admincareevent.model.CommissionState;
-import se.sll.reimbursementadapter.admincareevent.model.FacilityState;
-import se.sll.reimbursementadapter.admincareevent.model.TermItemCommission;
+import se.sll.reimbursementadapter.admincareevent.model.FacilityIndex;
 import se.sll.reimbursementadapter.admincareevent.service.CodeServerMEKCacheManagerService;
 import se.sll.reimbursementadapter.gvr.reader.GVRFileReader;
-import se.sll.reimbursementadapter.parser.TermItem;
 
 /**
  * Tests the ERSMOIndataToCareEventTransformer with different
@@ -40,14 +38,14 @@ public class TransformHelperTest extends TestSupport {
         instance.revalidate(); // ??
         Date stateDate = new Date();
         String sourceFacilityId = "91605010010";
-        final TermItem<FacilityState> avd = instance.getCurrentIndex().get(sourceFacilityId);
-        FacilityState currentAvd = avd.getState(stateDate);
-        final TermItemCommission<CommissionState> samverks = currentAvd.getCommissions().get(0);
+        final KombikaResolver resolver = KombikaResolver.forIndex(instance.getSnapshot());
+        final KombikaResolver.Facility currentAvd = resolver.getFacility(sourceFacilityId, stateDate);
+        final KombikaResolver.Commission samverks = currentAvd.getCommissions().get(0);
         // Not really part of this test, but it never hurts.
         Assert.assertEquals("Facility ID", "9081", samverks.getId());
         Assert.assertEquals("Payer facility HSA", 
                             "SE2321000016-15CQ", 
-                            TransformHelper.getPayerOrganization(Vkhform.SLUTENVÅRDSTILLFÄLLE, stateDate, currentAvd, samverks, "SE2321000016-39KJ", null, null, null, null));
+                            TransformHelper.getPayerOrganization(resolver, Vkhform.SLUTENVÅRDSTILLFÄLLE, stateDate, currentAvd, samverks, "SE2321000016-39KJ", null, null, null, null));
     }
 
     @Test
@@ -56,11 +54,12 @@ public class TransformHelperTest extends TestSupport {
         instance.revalidate(); // ??
         Date stateDate = new Date();
         String sourceFacilityId = "30216311003";
-        final TermItem<FacilityState> facilityState = instance.getCurrentIndex().get(sourceFacilityId);
-        final TermItemCommission<CommissionState> commissionState = facilityState.getState(stateDate).getCommissions().get(0);
+        final KombikaResolver resolver = KombikaResolver.forIndex(instance.getSnapshot());
+        final KombikaResolver.Facility facilityState = resolver.getFacility(sourceFacilityId, stateDate);
+        final KombikaResolver.Commission commissionState = facilityState.getCommissions().get(0);
         // Not really part of this test, but it never hurts.
         Assert.assertEquals("Facility ID", "9081", commissionState.getId());
-        Assert.assertEquals("Payer facility HSA", "SE2321000016-39KJ", TransformHelper.getPayerOrganization(Vkhform.SLUTENVÅRDSTILLFÄLLE, stateDate, facilityState.getState(stateDate), commissionState, "SE2321000016-39KJ", null, null, null, null));
+        Assert.assertEquals("Payer facility HSA", "SE2321000016-39KJ", TransformHelper.getPayerOrganization(resolver, Vkhform.SLUTENVÅRDSTILLFÄLLE, stateDate, facilityState, commissionState, "SE2321000016-39KJ", null, null, null, null));
     }
 
     @Test
@@ -69,13 +68,15 @@ public class TransformHelperTest extends TestSupport {
         instance.revalidate(); // ??
         Date stateDate = new Date();
         String sourceFacilityId = "91605010010";
-        final TermItem<FacilityState> facilityState = instance.getCurrentIndex().get(sourceFacilityId);
-        final TermItemCommission<CommissionState> commissionState = facilityState.getState(stateDate).getCommissions().get(0);
+        final FacilityIndex index = instance.getCurrentIndex();
+        final KombikaResolver.Facility facilityState = KombikaResolver.forIndex(instance.getSnapshot()).getFacility(sourceFacilityId, stateDate);
+        final KombikaResolver.Commission commissionState = facilityState.getCommissions().get(0);
         // Not really part of this test, but it never hurts.
         Assert.assertEquals("Facility ID", "9081", commissionState.getId());
 
-        Assert.assertEquals("Payer facility 1", "30216311002", TransformHelper.getPotentialPayerFacilities(stateDate, commissionState).get(0).getHSAMapping().getId());
-        Assert.assertEquals("Payer facility 1", "30216311003", TransformHelper.getPotentialPayerFacilities(stateDate, commissionState).get(1).getHSAMapping().getId());
+        List<Integer> payerFacilities = TransformHelper.getPotentialPayerFacilities(index, stateDate, commissionState.getNumber());
+        Assert.assertEquals("Payer facility 1", index.stateAt(index.facilityOf("30216311002"), stateDate.getTime()), (int) payerFacilities.get(0));
+        Assert.assertEquals("Payer facility 1", index.stateAt(index.facilityOf("30216311003"), stateDate.getTime()), (int) payerFacilities.get(1));
     }
 
     @Test
@@ -0,0 +1,219 @@
+/**
+ *  Copyright (c) 2013 SLL <http://sll.se/>
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package se.sll.reimbursementadapter.parser;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+
+import javax.xml.namespace.QName;
+import javax.xml.stream.XMLEventReader;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.events.Attribute;
+import javax.xml.stream.events.StartElement;
+import javax.xml.stream.events.XMLEvent;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+
+/**
+ * Tests that the cursor based parser gives the same entries as the event based parser it replaced,
+ * and that content of no interest is skipped.
+ */
+public class CodeServiceXMLParserTest {
+
+    private static final String TEST_FILES = "src/test/resources/test-files/";
+
+    @Test
+    public void testSameAsEventParser() throws Exception {
+        // The attributes and code systems the index builder extracts, and a few more.
+        List<String> attributes = Arrays.asList("shortname", "abbreviation", "Följer mall", "status", "longname", "OKOD");
+        List<String> codeSystems = Arrays.asList("SAMVERKS", "KUND", "AVDTYP", "UPPDRAGSTYP", "STYP", "AVTAL");
+        for (String file : new String[] { "AVD-REL-test.xml", "UPPDRAGSTYP-test.xml", "SAMVERKS-REL-test.xml" }) {
+            for (Date newerThan : new Date[] { CodeServiceXMLParser.BREAK_POINT, new Date(0) }) {
+                List<String> expected = eventParse(TEST_FILES + file, attributes, codeSystems, newerThan);
+                List<String> actual = parse(TEST_FILES + file, attributes, codeSystems, newerThan);
+                Assert.assertFalse(file, expected.isEmpty());
+                Assert.assertEquals(file, expected, actual);
+            }
+        }
+    }
+
+    @Test
+    public void testNestedUnknownElementsSkipped() throws Exception {
+        File file = xml("<body>"
+                + "<termitementry id=\"1\" begindate=\"2013-01-01T00:00:00\" expirationdate=\"2099-12-31T23:59:59\">"
+                + "<attribute type=\"note\"><attribute type=\"shortname\">WRONG</attribute>"
+                + "<codedvalue codesystem=\"KUND\" code=\"WRONG\"/><termitementry id=\"2\"/></attribute>"
+                + "<attribute type=\"shortname\">A</attribute>"
+                + "<attribute type=\"externallink\"><codedvalue codesystem=\"KUND\" code=\"01\" referenceid=\"r\"/></attribute>"
+                + "</termitementry>"
+                + "<termitementry id=\"3\" begindate=\"2000-01-01T00:00:00\" expirationdate=\"2001-01-01T00:00:00\">"
+                + "<attribute type=\"shortname\"><termitementry id=\"4\" expirationdate=\"2099-12-31T23:59:59\"/></attribute>"
+                + "</termitementry>"
+                + "<termitementry id=\"5\" begindate=\"2013-01-01T00:00:00\" expirationdate=\"2099-12-31T23:59:59\">"
+                + "<attribute type=\"shortname\">B</attribute>"
+                + "</termitementry>"
+                + "</body>");
+        try {
+            List<String> entries = parse(file.getPath(), Arrays.asList("shortname"), Arrays.asList("KUND"), new Date(1000000000000L));
+            Assert.assertEquals(2, entries.size());
+            Assert.assertEquals(describe("1", "2013-01-01T00:00:00", "2099-12-31T23:59:59", "shortname=A", "KUND=[01/r]"), entries.get(0));
+            Assert.assertEquals(describe("5", "2013-01-01T00:00:00", "2099-12-31T23:59:59", "shortname=B", "KUND=null"), entries.get(1));
+        } finally {
+            file.delete();
+        }
+    }
+
+    //
+    private static List<String> parse(String file, final List<String> attributes, final List<String> codeSystems, Date newerThan) {
+        final List<String> entries = new ArrayList<>();
+        CodeServiceXMLParser parser = new CodeServiceXMLParser(file, new CodeServiceXMLParser.CodeServiceEntryCallback() {
+            @Override
+            public void onCodeServiceEntry(CodeServiceEntry codeServiceEntry) {
+                entries.add(describe(codeServiceEntry, attributes, codeSystems));
+            }
+        });
+        for (String attribute : attributes) {
+            parser.extractAttribute(attribute);
+        }
+        for (String codeSystem : codeSystems) {
+            parser.extractCodeSystem(codeSystem);
+        }
+        parser.setNewerThan(newerThan);
+        parser.parse();
+        return entries;
+    }
+
+    //
+    private static String describe(CodeServiceEntry entry, List<String> attributes, List<String> codeSystems) {
+        StringBuilder sb = new StringBuilder();
+        sb.append(entry.getId()).append(' ').append(entry.getValidFrom().getTime()).append(' ').append(entry.getValidTo().getTime());
+        for (String attribute : attributes) {
+            sb.append(' ').append(attribute).append('=').append(entry.getAttribute(attribute));
+        }
+        for (String codeSystem : codeSystems) {
+            sb.append(' ').append(codeSystem).append('=');
+            List<CodeServerCode> codes = entry.getCodes(codeSystem);
+            if (codes == null) {
+                sb.append("null");
+            } else {
+                sb.append('[');
+                for (CodeServerCode code : codes) {
+                    sb.append(code.getValue()).append('/').append(code.getReferenceId()).append(' ');
+                }
+                sb.setLength(sb.length() - 1);
+                sb.append(']');
+            }
+        }
+        return sb.toString();
+    }
+
+    //
+    private static String describe(String id, String from, String to, String attribute, String codes) {
+        return id + " " + TermState.toDate(from).getTime() + " " + TermState.toDate(to).getTime() + " " + attribute + " " + codes;
+    }
+
+    //
+    private static File xml(String content) throws IOException {
+        File file = File.createTempFile("codeserver", ".xml");
+        Files.write(file.toPath(), ("<?xml version='1.0' encoding='UTF-8'?>" + content).getBytes(StandardCharsets.UTF_8));
+        return file;
+    }
+
+    /**
+     * The event based parser as it was before the cursor API was used, for comparison.
+     */
+    private static List<String> eventParse(String file, List<String> attributes, List<String> codeSystems, Date newerThan) throws IOException, XMLStreamException {
+        final List<String> entries = new ArrayList<>();
+        try (InputStream in = new BufferedInputStream(new FileInputStream(file))) {
+            final XMLEventReader reader = XMLInputFactory.newInstance().createXMLEventReader(in, "UTF-8");
+            while (reader.hasNext()) {
+                final XMLEvent e = reader.nextEvent();
+                if (e.isStartElement() && name(e).equals("termitementry")) {
+                    final StartElement start = e.asStartElement();
+                    final Date expirationDate = TermState.toDate(attribute(start, "expirationdate"));
+                    if (expirationDate.after(newerThan)) {
+                        final CodeServiceEntry entry = eventParseEntry(reader, start, attributes, codeSystems);
+                        entry.setValidFrom(TermState.toDate(attribute(start, "begindate")));
+                        entry.setValidTo(expirationDate);
+                        entries.add(describe(entry, attributes, codeSystems));
+                    }
+                }
+            }
+            reader.close();
+        }
+        return entries;
+    }
+
+    //
+    private static CodeServiceEntry eventParseEntry(XMLEventReader reader, StartElement start, List<String> attributes, List<String> codeSystems) throws XMLStreamException {
+        final CodeServiceEntry entry = new CodeServiceEntry();
+        entry.setId(attribute(start, "id"));
+        while (reader.hasNext()) {
+            final XMLEvent e = reader.nextEvent();
+            if (e.isStartElement() && name(e).equals("attribute")) {
+                final String type = attribute(e.asStartElement(), "type");
+                if (attributes.contains(type)) {
+                    while (reader.hasNext()) {
+                        final XMLEvent v = reader.nextEvent();
+                        if (v.isCharacters()) {
+                            entry.setAttribute(type, v.asCharacters().getData());
+                        } else if (v.isEndElement() && name(v).equals("attribute")) {
+                            break;
+                        }
+                    }
+                } else if ("externallink".equals(type)) {
+                    while (reader.hasNext()) {
+                        final XMLEvent v = reader.nextEvent();
+                        if (v.isStartElement() && name(v).equals("codedvalue")) {
+                            final String codeSystem = attribute(v.asStartElement(), "codesystem");
+                            if (codeSystems.contains(codeSystem)) {
+                                entry.addCode(codeSystem, attribute(v.asStartElement(), "code"), attribute(v.asStartElement(), "referenceid"));
+                            }
+                        } else if (v.isEndElement() && (name(v).equals("codedvalue") || name(v).equals("attribute"))) {
+                            break;
+                        }
+                    }
+                }
+            } else if (e.isEndElement() && name(e).equals("termitementry")) {
+                return entry;
+            }
+        }
+        return null;
+    }
+
+    //
+    private static String name(XMLEvent e) {
+        return e.isStartElement() ? e.asStartElement().getName().getLocalPart() : e.asEndElement().getName().getLocalPart();
+    }
+
+    //
+    private static String attribute(StartElement start, String name) {
+        final Attribute attr = start.getAttributeByName(new QName(start.getName().getNamespaceURI(), name));
+        return (attr == null) ? null : attr.getValue();
+    }
+}
@@ -0,0 +1,157 @@
+/**
+ *  Copyright (c) 2013 SLL <http://sll.se/>
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package se.sll.reimbursementadapter.parser;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.xml.stream.XMLEventReader;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.events.XMLEvent;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+
+/**
+ * Tests that the cursor based parser matches the same elements as the event based parser it
+ * replaced, and that elements that aren't registered are skipped with their content.
+ */
+public class SimpleXMLElementParserTest {
+
+    private static final String TEST_FILES = "src/test/resources/test-files/";
+
+    @Test
+    public void testSameAsEventParser() throws Exception {
+        // As the index builder parses the MEK file.
+        Map<String, Integer> elements = new HashMap<>();
+        elements.put("Kombikakod", 1);
+        elements.put("HSAId", 2);
+        elements.put("FromDatum", 3);
+        elements.put("TillDatum", 4);
+        List<String> expected = eventParse(TEST_FILES + "MEK-test.xml", "mappning", elements);
+        Assert.assertTrue(expected.contains("1:19108011M04"));
+        Assert.assertEquals(expected, parse(TEST_FILES + "MEK-test.xml", "mappning", elements));
+    }
+
+    @Test
+    public void testNestedUnknownElementsSkipped() throws Exception {
+        File file = xml("<mappningar>"
+                + "<mappning><Kombikakod>K1</Kombikakod>"
+                + "<Historik><mappning><HSAId>WRONG</HSAId></mappning><Kombikakod>WRONG</Kombikakod></Historik>"
+                + "<HSAId>H1</HSAId></mappning>"
+                + "<mappning><Okänd>x<Okänd>y</Okänd>z</Okänd><Kombikakod>K2</Kombikakod></mappning>"
+                + "</mappningar>");
+        try {
+            Map<String, Integer> elements = new HashMap<>();
+            elements.put("Kombikakod", 1);
+            elements.put("HSAId", 2);
+            Assert.assertEquals(Arrays.asList("begin", "1:K1", "2:H1", "end", "begin", "1:K2", "end"),
+                    parse(file.getPath(), "mappning", elements));
+        } finally {
+            file.delete();
+        }
+    }
+
+    //
+    private static List<String> parse(String file, String enclosingName, Map<String, Integer> elements) {
+        final List<String> matches = new ArrayList<>();
+        new SimpleXMLElementParser(file).parse(enclosingName, elements, new SimpleXMLElementParser.ElementMatcherCallback() {
+            @Override
+            public void begin() {
+                matches.add("begin");
+            }
+
+            @Override
+            public void match(int code, String data) {
+                add(matches, code, data);
+            }
+
+            @Override
+            public void end() {
+                matches.add("end");
+            }
+        });
+        return matches;
+    }
+
+    /**
+     * Only registered elements are of interest, text in between them is not compared.
+     */
+    private static void add(List<String> matches, int code, String data) {
+        if (code > 0) {
+            matches.add(code + ":" + data);
+        }
+    }
+
+    //
+    private static File xml(String content) throws IOException {
+        File file = File.createTempFile("mek", ".xml");
+        Files.write(file.toPath(), ("<?xml version='1.0' encoding='UTF-8'?>" + content).getBytes(StandardCharsets.UTF_8));
+        return file;
+    }
+
+    /**
+     * The event based parser as it was before the cursor API was used, for comparison.
+     */
+    private static List<String> eventParse(String file, String enclosingName, Map<String, Integer> elements) throws IOException, XMLStreamException {
+        final List<String> matches = new ArrayList<>();
+        try (InputStream in = new BufferedInputStream(new FileInputStream(file))) {
+            final XMLEventReader r = XMLInputFactory.newInstance().createXMLEventReader(in, "UTF-8");
+            int code = 0;
+            boolean match = false;
+            while (r.hasNext()) {
+                final XMLEvent e = r.nextEvent();
+                switch (e.getEventType()) {
+                case XMLEvent.START_ELEMENT:
+                    if (match) {
+                        Integer i = elements.get(e.asStartElement().getName().getLocalPart());
+                        code = (i == null) ? Integer.MIN_VALUE : i;
+                    } else if (e.asStartElement().getName().getLocalPart().equals(enclosingName)) {
+                        matches.add("begin");
+                        match = true;
+                    }
+                    break;
+                case XMLEvent.CHARACTERS:
+                    if (match && code != Integer.MIN_VALUE) {
+                        add(matches, code, e.asCharacters().getData());
+                    }
+                    break;
+                case XMLEvent.END_ELEMENT:
+                    if (match && e.asEndElement().getName().getLocalPart().equals(enclosingName)) {
+                        match = false;
+                        matches.add("end");
+                    }
+                    code = 0;
+                    break;
+                }
+            }
+            r.close();
+        }
+        return matches;
+    }
+}
@@ -0,0 +1,61 @@
+/**
+ *  Copyright (c) 2013 SLL <http://sll.se/>
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package se.sll.reimbursementadapter.parser;
+
+import javax.xml.datatype.DatatypeFactory;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+
+/**
+ * Tests that dates are parsed as by {@link DatatypeFactory}.
+ */
+public class TermStateDateTest {
+
+    @Test
+    public void testSameAsDatatypeFactory() throws Exception {
+        DatatypeFactory datatypeFactory = DatatypeFactory.newInstance();
+        String[] values = {
+            "1970-01-01T00:00:01", "2099-12-31T23:59:59", "1995-01-01T00:00:01.0", "2000-12-31T23:59:59.0",
+            "2007-04-03T00:00:00+02:00", "2007-04-24T15:51:55.257+02:00", "2013-10-01T14:53:07.53587",
+            "2014-02-04T08:00:00.000Z", "2012-02-29T12:00:00-05:30",
+            // Daylight saving time changes in the default time zone.
+            "2013-03-31T02:30:00", "2013-10-27T02:30:00", "2013-10-27T02:30:00+01:00",
+            // Handed to the DatatypeFactory.
+            "2013-10-27T24:00:00", "12013-10-27T00:00:00", "-0001-01-01T00:00:00", "2013-01-01",
+        };
+        for (String value : values) {
+            long expected = datatypeFactory.newXMLGregorianCalendar(value).toGregorianCalendar().getTime().getTime();
+            Assert.assertEquals(value, expected, TermState.toDate(value).getTime());
+            // Again, from the cache.
+            Assert.assertEquals(value, expected, TermState.toDate(value).getTime());
+        }
+    }
+
+    @Test
+    public void testInvalid() {
+        for (String value : new String[] { "2013-02-29T00:00:00", "2013-13-01T00:00:00", "2013-01-01T00:00:00+2:00" }) {
+            Assert.assertNull(value, XMLDateTimeParser.parse(value));
+            try {
+                TermState.toDate(value);
+                Assert.fail("Expected IllegalArgumentException for " + value);
+            } catch (IllegalArgumentException e) {
+                // expected
+            }
+        }
+    }
+}
@@ -37,7 +37,7 @@ public class AppContextNotificationListener implements MuleContextNotificationLi
         if (notification.getAction() == MuleContextNotification.CONTEXT_STARTED) {
             log.debug("Context started.");
             if (CodeServerMEKCacheManagerService.getInstance().getCurrentIndex() == null) {
-                CodeServerMEKCacheManagerService.getInstance().revalidate();
+                CodeServerMEKCacheManagerService.getInstance().revalidateAsync();
             }
         }
     }
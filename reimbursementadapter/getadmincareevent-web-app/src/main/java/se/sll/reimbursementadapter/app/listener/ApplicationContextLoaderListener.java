@@ -45,9 +45,10 @@ public class ApplicationContextLoaderListener extends ContextLoaderListener {
         try {
             final WebApplicationContext wc = getWebRequest(event.getServletContext());
             final CodeServerMEKCacheManagerService codeServerMekCacheService = wc.getBean(CodeServerMEKCacheManagerService.class);
+            // Starts with the last saved index, the index is only built here if there is none.
             if (codeServerMekCacheService.getCurrentIndex() == null) {
-                LOG.info("Index needs to be revalidated, takes some time please be patient");
-                codeServerMekCacheService.revalidate();
+                LOG.info("Index needs to be revalidated, building it in the background, requests can't be served until it's ready");
+                codeServerMekCacheService.revalidateAsync();
             }
         } catch (Exception e) {
             LOG.error("Exception while initializing the WebApplicationContext.", e);
@@ -16,20 +16,16 @@
 package se.sll.reimbursementadapter.hej.transform;
 
 import java.io.Writer;
-import java.net.URL;
 
-import javax.xml.XMLConstants;
-import javax.xml.bind.JAXBContext;
 import javax.xml.bind.JAXBException;
 import javax.xml.bind.Marshaller;
-import javax.xml.validation.Schema;
-import javax.xml.validation.SchemaFactory;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.xml.sax.SAXException;
 
 import se.sll.hej.xml.indata.HEJIndata;
+import se.sll.reimbursementadapter.util.JAXBRegistry;
 
 /**
  * Marshals a HEJIndata XML Object to a string.
@@ -38,6 +34,9 @@ public class HEJIndataMarshaller {
     
     private static final Logger LOG = LoggerFactory.getLogger(HEJIndataMarshaller.class);
 
+    /** The JAXB context and schema, shared with {@link HEJIndataUnMarshaller}. */
+    static final JAXBRegistry.Binding BINDING = JAXBRegistry.getBinding(HEJIndata.class, "xsd/HEJIndata/HEJIndata2.0.xsd");
+
     /**
      * Marshals the HEJIndata to a string, and writes the string to the provided writer.
      *
@@ -46,16 +45,10 @@ public class HEJIndataMarshaller {
      */
     public void unmarshalString(HEJIndata src, Writer writer) throws SAXException, JAXBException {
         LOG.info("Starting to unmarshal contents of source Reader.");
-        // Read the schema from the XSD to apply the validation to the unmarshalled XML object.
-        SchemaFactory sf = SchemaFactory.newInstance(XMLConstants.W3C_XML_SCHEMA_NS_URI);
-        URL url = getClass().getClassLoader().getResource("xsd/HEJIndata/HEJIndata2.0.xsd");
-        Schema schema = sf.newSchema(url);
-
-        JAXBContext jaxbContext = JAXBContext.newInstance(HEJIndata.class);
-        Marshaller marshaller = jaxbContext.createMarshaller();
+        // The marshaller validates against the XSD.
+        Marshaller marshaller = BINDING.getMarshaller();
         marshaller.setProperty("jaxb.encoding", "ISO-8859-1");
         marshaller.setProperty(Marshaller.JAXB_FORMATTED_OUTPUT, true);
-        marshaller.setSchema(schema);
         marshaller.marshal(src, writer);
     }
 
@@ -16,14 +16,9 @@
 package se.sll.reimbursementadapter.hej.transform;
 
 import java.io.Reader;
-import java.net.URL;
 
-import javax.xml.XMLConstants;
-import javax.xml.bind.JAXBContext;
 import javax.xml.bind.JAXBException;
 import javax.xml.bind.Unmarshaller;
-import javax.xml.validation.Schema;
-import javax.xml.validation.SchemaFactory;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -41,15 +36,8 @@ public class HEJIndataUnMarshaller {
     public HEJIndata unmarshalString(Reader src) throws SAXException, JAXBException {
         LOG.info("Entering HEJIndataUnMarshaller with Reader: " + src);
 
-        // Read the schema from the XSD to apply the validation to the unmarshalled XML object.
-        SchemaFactory sf = SchemaFactory.newInstance(XMLConstants.W3C_XML_SCHEMA_NS_URI);
-        URL url = getClass().getClassLoader().getResource("xsd/HEJIndata/HEJIndata2.0.xsd");
-        Schema schema = sf.newSchema(url);
-
-        // Create a new JAXB Unmarshaller for ERSMOIndata and unmarshal the source XML.
-        JAXBContext jaxbContext = JAXBContext.newInstance(HEJIndata.class);
-        Unmarshaller unmarshaller = jaxbContext.createUnmarshaller();
-        unmarshaller.setSchema(schema);
+        // The unmarshaller validates against the XSD.
+        Unmarshaller unmarshaller = HEJIndataMarshaller.BINDING.getUnmarshaller(true);
 
         return (HEJIndata) unmarshaller.unmarshal(src);
     }
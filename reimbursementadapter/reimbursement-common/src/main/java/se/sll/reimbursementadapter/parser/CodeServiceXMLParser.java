@@ -17,21 +17,17 @@ package se.sll.reimbursementadapter.parser;
 
 import java.io.BufferedInputStream;
 import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
 import java.util.Calendar;
 import java.util.Date;
-import java.util.HashMap;
 import java.util.HashSet;
-import java.util.Map;
 import java.util.Set;
 
-import javax.xml.namespace.QName;
-import javax.xml.stream.XMLEventReader;
 import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
 import javax.xml.stream.XMLStreamException;
-import javax.xml.stream.events.Attribute;
-import javax.xml.stream.events.EndElement;
-import javax.xml.stream.events.StartElement;
-import javax.xml.stream.events.XMLEvent;
+import javax.xml.stream.XMLStreamReader;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -40,7 +36,9 @@ import org.slf4j.LoggerFactory;
 /**
  * Parses codeserver XML input based on the streaming parser (StAX) <p>
  * 
- * All attribute elements and code elements of interest are registered by names.
+ * All attribute elements and code elements of interest are registered by names. The cursor API
+ * is used, and entries that expired before {@link #getNewerThan()} are skipped without looking
+ * at their content.
  * 
  * @see CodeServiceXMLParser.CodeServiceEntryCallback
  * 
@@ -78,9 +76,9 @@ public class CodeServiceXMLParser {
 
     final static XMLInputFactory factory = XMLInputFactory.newInstance();
 
-    private XMLEventReader reader;
+    private InputStream in;
+    private XMLStreamReader reader;
     private Set<String> extractFilter = new HashSet<>();
-    private Map<String, QName> names = new HashMap<>();
     private CodeServiceEntryCallback codeServiceEntryCallback;
     private Date newerThan = BREAK_POINT;
 
@@ -99,8 +97,10 @@ public class CodeServiceXMLParser {
 
     public CodeServiceXMLParser(String file, CodeServiceEntryCallback codeServiceEntryCallback) {
         try {
-            this.reader = factory.createXMLEventReader(new BufferedInputStream(new FileInputStream(file)), "UTF-8");
+            this.in = new BufferedInputStream(new FileInputStream(file), 1 << 16);
+            this.reader = factory.createXMLStreamReader(in, "UTF-8");
         } catch (Exception e) {
+            close(in);
             throw new IllegalArgumentException(e);
         }
         this.codeServiceEntryCallback = codeServiceEntryCallback;
@@ -161,79 +161,97 @@ public class CodeServiceXMLParser {
             } catch (XMLStreamException e) {
                 LOG.error("Exception while parsing XML Stream.", e);
             }
+            close(in);
         }
     }
 
     //
-    private boolean same(StartElement startElement, String name) {
-        return startElement.getName().getLocalPart().equals(name);
+    private static void close(InputStream in) {
+        if (in != null) {
+            try {
+                in.close();
+            } catch (IOException e) {
+                LOG.error("Exception while closing XML Stream.", e);
+            }
+        }
     }
 
     //
-    private boolean same(EndElement endElement, String name) {
-        return endElement.getName().getLocalPart().equals(name);
+    private boolean same(String name) {
+        return name.equals(reader.getLocalName());
     }
 
-    //
-    private QName name(final String namespaceURI, final String localPart) {
-        final String key = namespaceURI + localPart;
-        QName qname = names.get(key);
-        if (qname == null) {
-            qname = new QName(namespaceURI, localPart);
-            names.put(key, qname);
+    /**
+     * Returns an attribute of the current element by local name, looked up by index.
+     */
+    private String attribute(String attrName) {
+        for (int i = 0, n = reader.getAttributeCount(); i < n; i++) {
+            if (attrName.equals(reader.getAttributeLocalName(i))) {
+                return reader.getAttributeValue(i);
+            }
         }
-        return qname;
-    }
-
-    //
-    private String attribute(StartElement startElement, String attrName) {
-        Attribute attr = startElement.getAttributeByName(name(startElement.getName().getNamespaceURI(), attrName));
-        return (attr == null) ? null : attr.getValue();
+        return null;
     }
 
     //
     private void parse0() throws XMLStreamException {
         while (reader.hasNext()) {
-            final XMLEvent e = reader.nextEvent();
-            switch (e.getEventType()) {
-            case XMLEvent.START_ELEMENT:
-                if (same(e.asStartElement(), TERMITEMENTRY)) {
-                    final Date expirationDate = TermState.toDate(attribute(e.asStartElement(), "expirationdate"));
-                    // avoid unnecessary processing, and check time before creating item
-                    if (expirationDate.after(newerThan)) {
-                        final CodeServiceEntry codeServiceEntry = processCodeServiceEntry(e.asStartElement());
-                        codeServiceEntry.setValidFrom(TermState.toDate(attribute(e.asStartElement(), "begindate")));
-                        codeServiceEntry.setValidTo(expirationDate);
-                        codeServiceEntryCallback.onCodeServiceEntry(codeServiceEntry);
-                    }
+            if (reader.next() == XMLStreamConstants.START_ELEMENT && same(TERMITEMENTRY)) {
+                final Date expirationDate = TermState.toDate(attribute("expirationdate"));
+                // avoid unnecessary processing, and check time before creating item
+                if (expirationDate.after(newerThan)) {
+                    final Date validFrom = TermState.toDate(attribute("begindate"));
+                    final CodeServiceEntry codeServiceEntry = processCodeServiceEntry();
+                    codeServiceEntry.setValidFrom(validFrom);
+                    codeServiceEntry.setValidTo(expirationDate);
+                    codeServiceEntryCallback.onCodeServiceEntry(codeServiceEntry);
+                } else {
+                    skipElement();
                 }
-                break;
             }
         }
     }
 
+    /**
+     * Moves the cursor from the start of an element to its end, without looking at the content.
+     */
+    private void skipElement() throws XMLStreamException {
+        int depth = 1;
+        while (depth > 0 && reader.hasNext()) {
+            switch (reader.next()) {
+            case XMLStreamConstants.START_ELEMENT:
+                depth++;
+                break;
+            case XMLStreamConstants.END_ELEMENT:
+                depth--;
+                break;
+            }
+        }
+    }
 
     //
-    private CodeServiceEntry processCodeServiceEntry(StartElement startElement) throws XMLStreamException {
+    private CodeServiceEntry processCodeServiceEntry() throws XMLStreamException {
         final CodeServiceEntry codeServiceEntry = new CodeServiceEntry();
-        codeServiceEntry.setId(attribute(startElement, ID));
+        codeServiceEntry.setId(attribute(ID));
         while (reader.hasNext()) {
-            final XMLEvent e = reader.nextEvent();
-            switch (e.getEventType()) {
-            case XMLEvent.START_ELEMENT:
-                if (same(e.asStartElement(), ATTRIBUTE)) {
-                    final String name = attribute(e.asStartElement(), TYPE);
+            switch (reader.next()) {
+            case XMLStreamConstants.START_ELEMENT:
+                if (same(ATTRIBUTE)) {
+                    final String name = attribute(TYPE);
                     if (extractFilter.contains(ATTR_PREFIX + name)) {
                         processAttributeValue(name, codeServiceEntry);
                     } else if (EXTERNALLINK.equals(name)) {
                         processCodeValue(codeServiceEntry);
+                    } else {
+                        skipElement();
                     }
                 }
                 break;
-            case XMLEvent.END_ELEMENT:
-                if (same(e.asEndElement(), TERMITEMENTRY)) {
+            case XMLStreamConstants.END_ELEMENT:
+                if (same(TERMITEMENTRY)) {
                     return codeServiceEntry;
                 }
+                break;
             }
         }
         return null;
@@ -241,14 +259,21 @@ public class CodeServiceXMLParser {
 
     private void processAttributeValue(String name,
             CodeServiceEntry state) throws XMLStreamException {
+        StringBuilder value = null;
         while (reader.hasNext()) {
-            final XMLEvent e = reader.nextEvent();
-            switch (e.getEventType()) {
-            case XMLEvent.CHARACTERS:
-                state.setAttribute(name, e.asCharacters().getData());
+            switch (reader.next()) {
+            case XMLStreamConstants.CHARACTERS:
+            case XMLStreamConstants.CDATA:
+                if (value == null) {
+                    value = new StringBuilder();
+                }
+                value.append(reader.getTextCharacters(), reader.getTextStart(), reader.getTextLength());
                 break;
-            case XMLEvent.END_ELEMENT:
-                if (same(e.asEndElement(), ATTRIBUTE)) {
+            case XMLStreamConstants.END_ELEMENT:
+                if (same(ATTRIBUTE)) {
+                    if (value != null) {
+                        state.setAttribute(name, value.toString());
+                    }
                     return;
                 }
                 break;
@@ -260,20 +285,19 @@ public class CodeServiceXMLParser {
     //
     private void processCodeValue(CodeServiceEntry state) throws XMLStreamException {
         while (reader.hasNext()) {
-            final XMLEvent e = reader.nextEvent();
-            switch (e.getEventType()) {
-            case XMLEvent.START_ELEMENT:
-                if (same(e.asStartElement(), CODEDVALUE)) {
-                    final String codeSystem = attribute(e.asStartElement(), CODESYSTEM);
+            switch (reader.next()) {
+            case XMLStreamConstants.START_ELEMENT:
+                if (same(CODEDVALUE)) {
+                    final String codeSystem = attribute(CODESYSTEM);
                     if (extractFilter.contains(CODE_PREFIX + codeSystem)) {
-                        state.addCode(codeSystem, attribute(e.asStartElement(), CODE), attribute(e.asStartElement(), "referenceid"));
+                        state.addCode(codeSystem, attribute(CODE), attribute("referenceid"));
                     }
                 }
                 break;
-            case XMLEvent.END_ELEMENT:
-                if (same(e.asEndElement(), CODEDVALUE)) {
+            case XMLStreamConstants.END_ELEMENT:
+                if (same(CODEDVALUE)) {
                     return;
-                } else if (same(e.asEndElement(), ATTRIBUTE)) {
+                } else if (same(ATTRIBUTE)) {
                     return;
                 }
                 break;
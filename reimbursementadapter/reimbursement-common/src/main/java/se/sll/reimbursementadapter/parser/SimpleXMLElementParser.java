@@ -17,13 +17,14 @@ package se.sll.reimbursementadapter.parser;
 
 import java.io.BufferedInputStream;
 import java.io.FileInputStream;
-import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
 import java.util.Map;
 
-import javax.xml.stream.XMLEventReader;
 import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
 import javax.xml.stream.XMLStreamException;
-import javax.xml.stream.events.XMLEvent;
+import javax.xml.stream.XMLStreamReader;
 
 
 /**
@@ -40,7 +41,8 @@ import javax.xml.stream.events.XMLEvent;
  * 
  * The parser invokes a callback method when a section enclosed by the given element begins and then 
  * for each matching element (with data), and finally 
- * when the enclosing element ends.
+ * when the enclosing element ends. Elements that aren't registered are skipped together with
+ * their content. The StAX cursor API is used.
  * 
  * @see SimpleXMLElementParser.ElementMatcherCallback
  * 
@@ -88,34 +90,48 @@ public class SimpleXMLElementParser {
         }
     }
 
-    private void parse0(String enclosingName, Map<String, Integer> nameCodeMap, ElementMatcherCallback matcher) throws FileNotFoundException, XMLStreamException {
+    private void parse0(String enclosingName, Map<String, Integer> nameCodeMap, ElementMatcherCallback matcher) throws IOException, XMLStreamException {
         final XMLInputFactory factory = XMLInputFactory.newInstance();
 
-        final XMLEventReader r = factory.createXMLEventReader(new BufferedInputStream(new FileInputStream(file)), "UTF-8");
+        try (InputStream in = new BufferedInputStream(new FileInputStream(file), 1 << 16)) {
+            final XMLStreamReader r = factory.createXMLStreamReader(in, "UTF-8");
+            try {
+                parse0(r, enclosingName, nameCodeMap, matcher);
+            } finally {
+                r.close();
+            }
+        }
+    }
 
+    //
+    private static void parse0(XMLStreamReader r, String enclosingName, Map<String, Integer> nameCodeMap, ElementMatcherCallback matcher) throws XMLStreamException {
         int code = 0;
         boolean match = false;
         while (r.hasNext()) {
-
-            final XMLEvent e = r.nextEvent();
-
-            switch (e.getEventType()) {
-            case XMLEvent.START_ELEMENT:
+            switch (r.next()) {
+            case XMLStreamConstants.START_ELEMENT:
                 if (match) {
-                    Integer i = nameCodeMap.get(e.asStartElement().getName().getLocalPart());
-                    code = (i == null) ? Integer.MIN_VALUE : i;
-                } else if (e.asStartElement().getName().getLocalPart().equals(enclosingName)) {
+                    Integer i = nameCodeMap.get(r.getLocalName());
+                    if (i == null) {
+                        // Not registered, nor is anything within it.
+                        skipElement(r);
+                        code = 0;
+                    } else {
+                        code = i;
+                    }
+                } else if (enclosingName.equals(r.getLocalName())) {
                     matcher.begin();
                     match = true;
                 }
                 break;
-            case XMLEvent.CHARACTERS:
-                if (match && code != Integer.MIN_VALUE) {
-                    matcher.match(code, e.asCharacters().getData());
+            case XMLStreamConstants.CHARACTERS:
+            case XMLStreamConstants.CDATA:
+                if (match) {
+                    matcher.match(code, r.getText());
                 }
                 break;
-            case XMLEvent.END_ELEMENT:
-                if (match && e.asEndElement().getName().getLocalPart().equals(enclosingName)) {
+            case XMLStreamConstants.END_ELEMENT:
+                if (match && enclosingName.equals(r.getLocalName())) {
                     match = false;
                     matcher.end();
                 }
@@ -123,6 +139,22 @@ public class SimpleXMLElementParser {
                 break;
             }
         }
-        r.close();
+    }
+
+    /**
+     * Moves the cursor from the start of an element to its end, without looking at the content.
+     */
+    private static void skipElement(XMLStreamReader r) throws XMLStreamException {
+        int depth = 1;
+        while (depth > 0 && r.hasNext()) {
+            switch (r.next()) {
+            case XMLStreamConstants.START_ELEMENT:
+                depth++;
+                break;
+            case XMLStreamConstants.END_ELEMENT:
+                depth--;
+                break;
+            }
+        }
     }
 }
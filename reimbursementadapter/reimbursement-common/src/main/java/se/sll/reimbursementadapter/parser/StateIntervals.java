@@ -0,0 +1,151 @@
+/**
+ *  Copyright (c) 2013 SLL <http://sll.se/>
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package se.sll.reimbursementadapter.parser;
+
+import java.util.List;
+
+/**
+ * The validity periods of a state vector, frozen into arrays of milliseconds. <p>
+ *
+ * When the states have been ordered by {@link TermItem#orderStates(List, String)}, newest first
+ * and not overlapping, lookups are binary searches. Otherwise the arrays are scanned in order,
+ * which gives the same result as scanning the states.
+ */
+public final class StateIntervals {
+
+    private final long[] validFrom;
+    private final long[] validTo;
+    private final boolean ordered;
+
+    //
+    private StateIntervals(long[] validFrom, long[] validTo, boolean ordered) {
+        this.validFrom = validFrom;
+        this.validTo = validTo;
+        this.ordered = ordered;
+    }
+
+    /**
+     * Freezes the validity periods of a state vector.
+     *
+     * @param stateVector the states.
+     * @return the intervals.
+     */
+    public static StateIntervals of(List<? extends TermState> stateVector) {
+        int n = stateVector.size();
+        long[] validFrom = new long[n];
+        long[] validTo = new long[n];
+        for (int i = 0; i < n; i++) {
+            TermState state = stateVector.get(i);
+            validFrom[i] = state.getValidFrom().getTime();
+            validTo[i] = state.getValidTo().getTime();
+        }
+        return new StateIntervals(validFrom, validTo, isOrdered(validFrom, validTo, 0, n));
+    }
+
+    /** @return the number of states. */
+    public int size() {
+        return validFrom.length;
+    }
+
+    /**
+     * Returns the state valid at a time, see {@link TermState#isValid(java.util.Date)}.
+     *
+     * @param time the time in milliseconds.
+     * @return the index of the state, or -1 if none is valid.
+     */
+    public int indexOfValid(long time) {
+        return indexOfValid(validFrom, validTo, 0, validFrom.length, ordered, time);
+    }
+
+    /**
+     * Returns the first state that became valid before a time, which is the latest one if
+     * the states are ordered.
+     *
+     * @param time the time in milliseconds.
+     * @return the index of the state, or -1 if there is none.
+     */
+    public int indexOfBefore(long time) {
+        return indexOfBefore(validFrom, 0, validFrom.length, ordered, time);
+    }
+
+    /**
+     * Returns if the periods of a range of states are ordered, newest first and not overlapping. The
+     * static methods work on ranges of shared arrays, for tables that keep many state vectors in the
+     * same arrays.
+     *
+     * @param validFrom the start of each period in milliseconds.
+     * @param validTo the end of each period in milliseconds.
+     * @param start the first state of the range.
+     * @param end the end of the range, exclusive.
+     * @return true if the range can be binary searched.
+     */
+    public static boolean isOrdered(long[] validFrom, long[] validTo, int start, int end) {
+        for (int i = start; i < end; i++) {
+            if (validFrom[i] >= validTo[i] || (i > start && validTo[i] > validFrom[i - 1])) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Same as {@link #indexOfValid(long)}, for a range of states.
+     *
+     * @return the index of the state in the arrays, or -1 if none is valid.
+     * @see #isOrdered(long[], long[], int, int)
+     */
+    public static int indexOfValid(long[] validFrom, long[] validTo, int start, int end, boolean ordered, long time) {
+        if (ordered) {
+            int i = indexOfBefore(validFrom, start, end, true, time);
+            return (i >= 0 && validTo[i] > time) ? i : -1;
+        }
+        for (int i = start; i < end; i++) {
+            if (validFrom[i] < time && validTo[i] > time) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Same as {@link #indexOfBefore(long)}, for a range of states.
+     *
+     * @return the index of the state in the arrays, or -1 if there is none.
+     * @see #isOrdered(long[], long[], int, int)
+     */
+    public static int indexOfBefore(long[] validFrom, int start, int end, boolean ordered, long time) {
+        if (ordered) {
+            // validFrom is strictly descending, find the first one before time.
+            int lo = start;
+            int hi = end;
+            while (lo < hi) {
+                int mid = (lo + hi) >>> 1;
+                if (validFrom[mid] < time) {
+                    hi = mid;
+                } else {
+                    lo = mid + 1;
+                }
+            }
+            return (lo < end) ? lo : -1;
+        }
+        for (int i = start; i < end; i++) {
+            if (validFrom[i] < time) {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
@@ -41,6 +41,10 @@ public class TermItem<T extends TermState> implements Serializable {
      * @serial
      */
     private List<T> stateVector = new ArrayList<>();
+    /**
+     * The validity periods of the state vector, frozen on the first lookup.
+     */
+    private transient volatile StateIntervals intervals;
     
     public String getId() {
         return id;
@@ -56,6 +60,7 @@ public class TermItem<T extends TermState> implements Serializable {
     
     public void addState(final T termState) {
         stateVector.add(termState);
+        intervals = null;
     }
 
     public static void orderStates(List<TermState> stateVector, String id) {
@@ -96,6 +101,7 @@ public class TermItem<T extends TermState> implements Serializable {
     @SuppressWarnings("unchecked")
     public void orderStates() {
         orderStates((List<TermState>) stateVector, id);
+        intervals = null;
     }
     
     /**
@@ -105,12 +111,8 @@ public class TermItem<T extends TermState> implements Serializable {
      * @return the state or null if none found.
      */
     public T getState(final Date date) {
-        for (final T state : stateVector) {
-            if (state.isValid(date)) {
-                return state;
-            }
-        }
-        return null;
+        final int i = getIntervals().indexOfValid(date.getTime());
+        return (i < 0) ? null : stateVector.get(i);
     }
 
     /**
@@ -120,14 +122,20 @@ public class TermItem<T extends TermState> implements Serializable {
      * @return the state or null if none found.
      */
     public T getStateBefore(final Date date) {
-        for (final T state : stateVector) {
-            if (state.getValidFrom().before(date)) {
-                return state;
-            }
-        }
-        return null;
+        final int i = getIntervals().indexOfBefore(date.getTime());
+        return (i < 0) ? null : stateVector.get(i);
     }
     
+    //
+    private StateIntervals getIntervals() {
+        StateIntervals frozen = intervals;
+        if (frozen == null || frozen.size() != stateVector.size()) {
+            frozen = StateIntervals.of(stateVector);
+            intervals = frozen;
+        }
+        return frozen;
+    }
+
     @Override
     public int hashCode() {
         final String id = getId();
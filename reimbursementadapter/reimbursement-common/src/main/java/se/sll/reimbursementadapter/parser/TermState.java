@@ -95,7 +95,17 @@ public abstract class TermState implements Comparable<TermState>, Serializable {
         return getValidTo().after(date);
     }
     
+    /**
+     * Parses an xs:dateTime value, see {@link XMLDateTimeParser}.
+     * 
+     * @param xmlDateTime the value.
+     * @return the date.
+     */
     public static Date toDate(String xmlDateTime) {
+        final Long millis = (xmlDateTime == null) ? null : XMLDateTimeParser.toMillis(xmlDateTime);
+        if (millis != null) {
+            return new Date(millis);
+        }
         final XMLGregorianCalendar cal = datatypeFactory.newXMLGregorianCalendar(xmlDateTime);
         return cal.toGregorianCalendar().getTime();    
     }
@@ -0,0 +1,165 @@
+/**
+ *  Copyright (c) 2013 SLL <http://sll.se/>
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package se.sll.reimbursementadapter.parser;
+
+import java.util.Calendar;
+import java.util.Date;
+import java.util.GregorianCalendar;
+import java.util.SimpleTimeZone;
+import java.util.TimeZone;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Parses the xs:dateTime values of the code server and MEK files, i.e. "2007-04-03T00:00:00+02:00",
+ * "1995-01-01T00:00:01.0" and the like, without creating an XMLGregorianCalendar. <p>
+ *
+ * The files have few distinct dates, so recently parsed values are kept. Values outside the
+ * supported subset, e.g. with a year of more than four digits or an hour of 24, are handed to
+ * the {@link javax.xml.datatype.DatatypeFactory}, which also reports invalid values. <p>
+ *
+ * The result is the same as <code>newXMLGregorianCalendar(value).toGregorianCalendar().getTime()</code>,
+ * values without a time zone are in the default time zone.
+ */
+final class XMLDateTimeParser {
+
+    /** The maximum number of values kept, they are dropped when reached. */
+    static final int MAX_ENTRIES = 4096;
+
+    private static final Date PURE_GREGORIAN_CHANGE = new Date(Long.MIN_VALUE);
+    private static final ConcurrentMap<String, Long> CACHE = new ConcurrentHashMap<>();
+
+    //
+    private XMLDateTimeParser() {
+    }
+
+    /**
+     * Parses a value.
+     *
+     * @param xmlDateTime the xs:dateTime value.
+     * @return the time in milliseconds, or null if the value is outside the supported subset.
+     */
+    static Long toMillis(String xmlDateTime) {
+        Long millis = CACHE.get(xmlDateTime);
+        if (millis == null) {
+            millis = parse(xmlDateTime);
+            if (millis != null) {
+                if (CACHE.size() >= MAX_ENTRIES) {
+                    CACHE.clear();
+                }
+                CACHE.put(xmlDateTime, millis);
+            }
+        }
+        return millis;
+    }
+
+    /**
+     * Parses "yyyy-MM-ddTHH:mm:ss", with optional fractional seconds and time zone.
+     *
+     * @return the time in milliseconds, or null if not in this format.
+     */
+    static Long parse(String s) {
+        final int length = s.length();
+        if (length < 19 || s.charAt(4) != '-' || s.charAt(7) != '-' || s.charAt(10) != 'T' || s.charAt(13) != ':' || s.charAt(16) != ':') {
+            return null;
+        }
+        final int year = digits(s, 0, 4);
+        final int month = digits(s, 5, 2);
+        final int day = digits(s, 8, 2);
+        final int hour = digits(s, 11, 2);
+        final int minute = digits(s, 14, 2);
+        final int second = digits(s, 17, 2);
+        if (year < 1 || month < 1 || month > 12 || day < 1 || day > daysInMonth(year, month)
+                || hour < 0 || hour > 23 || minute < 0 || minute > 59 || second < 0 || second > 59) {
+            return null;
+        }
+
+        int i = 19;
+        int millis = 0;
+        if (i < length && s.charAt(i) == '.') {
+            // Only milliseconds are kept, the rest of the fraction is truncated.
+            int scale = 100;
+            int start = ++i;
+            while (i < length && isDigit(s.charAt(i))) {
+                millis += scale * (s.charAt(i) - '0');
+                scale /= 10;
+                i++;
+            }
+            if (i == start) {
+                return null;
+            }
+        }
+
+        final TimeZone timeZone;
+        if (i == length) {
+            timeZone = TimeZone.getDefault();
+        } else if (i + 1 == length && s.charAt(i) == 'Z') {
+            timeZone = new SimpleTimeZone(0, "GMT");
+        } else if (i + 6 == length && (s.charAt(i) == '+' || s.charAt(i) == '-') && s.charAt(i + 3) == ':') {
+            final int offsetHours = digits(s, i + 1, 2);
+            final int offsetMinutes = digits(s, i + 4, 2);
+            if (offsetHours < 0 || offsetMinutes < 0 || offsetMinutes > 59 || offsetHours * 60 + offsetMinutes > 14 * 60) {
+                return null;
+            }
+            final int offset = (offsetHours * 60 + offsetMinutes) * 60 * 1000;
+            timeZone = new SimpleTimeZone((s.charAt(i) == '-') ? -offset : offset, "GMT");
+        } else {
+            return null;
+        }
+
+        final GregorianCalendar cal = new GregorianCalendar(timeZone);
+        cal.setGregorianChange(PURE_GREGORIAN_CHANGE);
+        cal.clear();
+        cal.set(year, month - 1, day, hour, minute, second);
+        cal.set(Calendar.MILLISECOND, millis);
+        return cal.getTimeInMillis();
+    }
+
+    //
+    private static boolean isDigit(char c) {
+        return c >= '0' && c <= '9';
+    }
+
+    /**
+     * @return the number, or -1 if not all digits.
+     */
+    private static int digits(String s, int start, int count) {
+        int n = 0;
+        for (int i = start; i < start + count; i++) {
+            final char c = s.charAt(i);
+            if (!isDigit(c)) {
+                return -1;
+            }
+            n = n * 10 + (c - '0');
+        }
+        return n;
+    }
+
+    //
+    private static int daysInMonth(int year, int month) {
+        switch (month) {
+        case 2:
+            return ((year % 4 == 0 && year % 100 != 0) || year % 400 == 0) ? 29 : 28;
+        case 4:
+        case 6:
+        case 9:
+        case 11:
+            return 30;
+        default:
+            return 31;
+        }
+    }
+}
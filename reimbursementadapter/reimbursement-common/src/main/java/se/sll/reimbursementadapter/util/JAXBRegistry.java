@@ -0,0 +1,174 @@
+/**
+ *  Copyright (c) 2013 SLL <http://sll.se/>
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package se.sll.reimbursementadapter.util;
+
+import java.net.URL;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.xml.XMLConstants;
+import javax.xml.bind.JAXBContext;
+import javax.xml.bind.JAXBException;
+import javax.xml.bind.Marshaller;
+import javax.xml.bind.Unmarshaller;
+import javax.xml.validation.Schema;
+import javax.xml.validation.SchemaFactory;
+
+import org.xml.sax.SAXException;
+
+/**
+ * Shared JAXB contexts and compiled schemas, one per document type. <p>
+ *
+ * Creating a {@link JAXBContext} and compiling a {@link Schema} are expensive, but both are thread-safe
+ * once created, so they are created the first time a document type is used and then kept. Marshallers and
+ * unmarshallers are not thread-safe and are instead kept per thread.
+ */
+public class JAXBRegistry {
+
+    private static final ConcurrentMap<Class<?>, Binding> bindings = new ConcurrentHashMap<>();
+
+    /**
+     * JAXB context and schema for a document type.
+     */
+    public static class Binding {
+        private final Class<?> type;
+        private final String schemaResource;
+        private volatile JAXBContext context;
+        private volatile Schema schema;
+
+        private final ThreadLocal<Unmarshaller> validatingUnmarshaller = new ThreadLocal<>();
+        private final ThreadLocal<Unmarshaller> unmarshaller = new ThreadLocal<>();
+        private final ThreadLocal<Marshaller> marshaller = new ThreadLocal<>();
+        private final ThreadLocal<Marshaller> fragmentMarshaller = new ThreadLocal<>();
+
+        Binding(Class<?> type, String schemaResource) {
+            this.type = type;
+            this.schemaResource = schemaResource;
+        }
+
+        /**
+         * @return the JAXB context.
+         * @throws JAXBException if the context can't be created.
+         */
+        public JAXBContext getContext() throws JAXBException {
+            JAXBContext c = context;
+            if (c == null) {
+                synchronized (this) {
+                    c = context;
+                    if (c == null) {
+                        c = JAXBContext.newInstance(type);
+                        context = c;
+                    }
+                }
+            }
+            return c;
+        }
+
+        /**
+         * @return the compiled schema.
+         * @throws SAXException if the schema can't be loaded.
+         */
+        public Schema getSchema() throws SAXException {
+            Schema s = schema;
+            if (s == null) {
+                synchronized (this) {
+                    s = schema;
+                    if (s == null) {
+                        SchemaFactory sf = SchemaFactory.newInstance(XMLConstants.W3C_XML_SCHEMA_NS_URI);
+                        URL url = type.getClassLoader().getResource(schemaResource);
+                        s = sf.newSchema(url);
+                        schema = s;
+                    }
+                }
+            }
+            return s;
+        }
+
+        /**
+         * Returns the unmarshaller of the calling thread, it must not be used by another thread.
+         *
+         * @param validating if the unmarshaller should validate against the schema.
+         * @return the unmarshaller.
+         * @throws SAXException if the schema can't be loaded.
+         * @throws JAXBException if the unmarshaller can't be created.
+         */
+        public Unmarshaller getUnmarshaller(boolean validating) throws SAXException, JAXBException {
+            ThreadLocal<Unmarshaller> pool = validating ? validatingUnmarshaller : unmarshaller;
+            Unmarshaller u = pool.get();
+            if (u == null) {
+                u = getContext().createUnmarshaller();
+                if (validating) {
+                    u.setSchema(getSchema());
+                }
+                pool.set(u);
+            }
+            return u;
+        }
+
+        /**
+         * Returns the validating marshaller of the calling thread, it must not be used by another thread.
+         *
+         * @return the marshaller.
+         * @throws SAXException if the schema can't be loaded.
+         * @throws JAXBException if the marshaller can't be created.
+         */
+        public Marshaller getMarshaller() throws SAXException, JAXBException {
+            Marshaller m = marshaller.get();
+            if (m == null) {
+                m = getContext().createMarshaller();
+                m.setSchema(getSchema());
+                marshaller.set(m);
+            }
+            return m;
+        }
+
+        /**
+         * Returns the fragment marshaller of the calling thread, it must not be used by another thread. It
+         * doesn't write an XML declaration and doesn't validate, for parts of a document.
+         *
+         * @return the marshaller.
+         * @throws JAXBException if the marshaller can't be created.
+         */
+        public Marshaller getFragmentMarshaller() throws JAXBException {
+            Marshaller m = fragmentMarshaller.get();
+            if (m == null) {
+                m = getContext().createMarshaller();
+                m.setProperty(Marshaller.JAXB_FRAGMENT, Boolean.TRUE);
+                fragmentMarshaller.set(m);
+            }
+            return m;
+        }
+    }
+
+    /**
+     * Returns the binding for a document type.
+     *
+     * @param type the JAXB root class of the document.
+     * @param schemaResource the class path resource of the XSD to validate documents with.
+     * @return the binding.
+     */
+    public static Binding getBinding(Class<?> type, String schemaResource) {
+        Binding binding = bindings.get(type);
+        if (binding == null) {
+            Binding newBinding = new Binding(type, schemaResource);
+            binding = bindings.putIfAbsent(type, newBinding);
+            if (binding == null) {
+                binding = newBinding;
+            }
+        }
+        return binding;
+    }
+}